@@ -0,0 +1,46 @@
+package benchmark;
+
+
+import org.openjdk.jmh.annotations.*;
+import server.Server;
+import settings.Message;
+import settings.ServerSettings;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/*
+* Рассылка одной строки чата всем пользователям сервера. Получатели держатся в памяти,
+* поэтому замеряется кодирование, обход списка пользователей и постановка кадров в очереди.
+* */
+@State(Scope.Benchmark)
+@BenchmarkMode({Mode.Throughput, Mode.AverageTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class BroadcastBenchmark {
+    @Param({"10", "1000", "10000"})
+    public int recipients;
+
+    private Server server;
+    private InMemoryConnection sender;
+    private Message message;
+
+    @Setup
+    public void setUp() throws IOException {
+        server = new Server(null, "Benchmark");
+        for (int i = 0; i < recipients; i++) {
+            InMemoryConnection connection = new InMemoryConnection(server, "user" + i);
+            server.loginCheck(connection, connection.getUser_name());
+            server.moveToRoom(connection, ServerSettings.DEFAULT_ROOM);
+        }
+        sender = new InMemoryConnection(server, "sender");
+        message = new Message("sender: А воз и ныне там.", "sender");
+    }
+
+    @Benchmark
+    public void sendBroadcastMessage() throws IOException {
+        server.sendBroadcastMessage(sender, message);
+    }
+}
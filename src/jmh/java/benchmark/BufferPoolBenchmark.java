@@ -0,0 +1,73 @@
+package benchmark;
+
+
+import org.openjdk.jmh.annotations.*;
+import server.Frame;
+import settings.BufferPool;
+import settings.Message;
+import settings.MessageCodec;
+import settings.MessageCodecs;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+/*
+* Путь кадра с буферами из пула и с новым массивом на каждый кадр, как было раньше.
+* Запускать с -prof gc: с пулом в gc.alloc.rate.norm остаются только объекты самого сообщения
+* (строки при разборе, Frame при отправке)
+* */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class BufferPoolBenchmark {
+    private MessageCodec codec;
+    private Message message;
+    private byte[] received;
+
+    @Setup
+    public void setUp() throws IOException {
+        codec = MessageCodecs.newCodec(MessageCodecs.BINARY);
+        message = new Message("user42: А воз и ныне там.", "user42");
+        message.setSequence(1000);
+        received = codec.encode(message);
+    }
+
+    @Benchmark
+    public int encodeAllocating() throws IOException {
+        byte[] payload = codec.encode(message);
+        byte[] frame = new byte[payload.length + 4];
+        ByteBuffer.wrap(frame).putInt(payload.length).put(payload);
+        return frame.length;
+    }
+
+    @Benchmark
+    public int encodePooled() throws IOException {
+        Frame frame = Frame.encode(codec, message);
+        int length = frame.length();
+        frame.release();
+        return length;
+    }
+
+    /*чтение кадра из потока моделируется копированием принятых байт в буфер*/
+    @Benchmark
+    public Message readAllocating() throws IOException {
+        byte[] bytes = new byte[received.length];
+        System.arraycopy(received, 0, bytes, 0, received.length);
+        return codec.decode(bytes, 0, received.length);
+    }
+
+    @Benchmark
+    public Message readPooled() throws IOException {
+        byte[] bytes = BufferPool.SHARED.acquire(received.length);
+        try {
+            System.arraycopy(received, 0, bytes, 0, received.length);
+            return codec.decode(bytes, 0, received.length);
+        } finally {
+            BufferPool.SHARED.release(bytes);
+        }
+    }
+}
@@ -0,0 +1,49 @@
+package benchmark;
+
+
+import org.openjdk.jmh.annotations.*;
+import settings.Message;
+import settings.MessageCodec;
+import settings.MessageCodecs;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/*кодирование и декодирование типичной строки чата каждым из кодеков*/
+@State(Scope.Thread)
+@BenchmarkMode({Mode.Throughput, Mode.AverageTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class CodecBenchmark {
+    @Param({MessageCodecs.JAVA, MessageCodecs.BINARY})
+    public String codecName;
+
+    private MessageCodec codec;
+    private Message message;
+    private byte[] encoded;
+
+    @Setup
+    public void setUp() throws IOException {
+        codec = MessageCodecs.newCodec(codecName);
+        message = new Message("user42: А воз и ныне там.", "user42");
+        encoded = codec.encode(message);
+    }
+
+    @Benchmark
+    public byte[] encode() throws IOException {
+        return codec.encode(message);
+    }
+
+    @Benchmark
+    public Message decode() throws IOException {
+        return codec.decode(encoded, 0, encoded.length);
+    }
+
+    @Benchmark
+    public Message roundTrip() throws IOException {
+        byte[] bytes = codec.encode(message);
+        return codec.decode(bytes, 0, bytes.length);
+    }
+}
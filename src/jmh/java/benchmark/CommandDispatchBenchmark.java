@@ -0,0 +1,38 @@
+package benchmark;
+
+
+import org.openjdk.jmh.annotations.*;
+import server.Server;
+import settings.Message;
+import settings.ServerSettings;
+
+import java.io.IOException;
+import java.lang.reflect.Method;
+import java.util.concurrent.TimeUnit;
+
+/*определение команды в сообщении: обычная строка чата, команда и неизвестная команда*/
+@State(Scope.Thread)
+@BenchmarkMode({Mode.Throughput, Mode.AverageTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class CommandDispatchBenchmark {
+    @Param({"hello everybody, how are you doing today?", ServerSettings.DIRECT_TO + " :user1 hello",
+            "/UNKNOWN command"})
+    public String text;
+
+    private Server server;
+    private Message message;
+
+    @Setup
+    public void setUp() throws IOException {
+        server = new Server(null, "Benchmark");
+        message = new Message(text, "user0");
+    }
+
+    @Benchmark
+    public Method getUserMethod() {
+        return server.getUserMethod(message);
+    }
+}
@@ -0,0 +1,64 @@
+package benchmark;
+
+
+import org.openjdk.jmh.annotations.*;
+import server.Server;
+import settings.Message;
+import settings.ServerSettings;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/*
+* Обработка строк чата сервером при нескольких одновременных отправителях: каждый поток бенчмарка -
+* отдельный пользователь в общей комнате. Запускать с разным числом потоков (-t 1, -t 4, -t 8),
+* чтобы видеть, как пропускная способность зависит от числа отправителей.
+* */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ConcurrentDispatchBenchmark {
+
+    @State(Scope.Benchmark)
+    public static class ServerState {
+        @Param({"100"})
+        public int recipients;
+
+        private final AtomicInteger senders = new AtomicInteger();
+        private Server server;
+
+        @Setup
+        public void setUp() throws IOException {
+            server = new Server(null, "Benchmark");
+            for (int i = 0; i < recipients; i++) {
+                join(server, new InMemoryConnection(server, "user" + i));
+            }
+        }
+    }
+
+    @State(Scope.Thread)
+    public static class Sender {
+        private InMemoryConnection connection;
+        private Message message;
+
+        @Setup
+        public void setUp(ServerState state) {
+            connection = new InMemoryConnection(state.server, "sender" + state.senders.incrementAndGet());
+            join(state.server, connection);
+            message = new Message("А воз и ныне там.", connection.getUser_name());
+        }
+    }
+
+    @Benchmark
+    public void onReceiveMessage(ServerState state, Sender sender) throws IOException {
+        state.server.onReceiveMessage(sender.connection, null, sender.message);
+    }
+
+    private static void join(Server server, InMemoryConnection connection) {
+        server.loginCheck(connection, connection.getUser_name());
+        server.moveToRoom(connection, ServerSettings.DEFAULT_ROOM);
+    }
+}
@@ -0,0 +1,56 @@
+package benchmark;
+
+
+import org.openjdk.jmh.annotations.*;
+import server.MessageHistory;
+import server.Server;
+import settings.Message;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/*добавление в историю последних сообщений и сборка истории для вновь подключившегося*/
+@State(Scope.Benchmark)
+@BenchmarkMode({Mode.Throughput, Mode.AverageTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class HistoryBenchmark {
+    @Param({"100", "10000"})
+    public int capacity;
+
+    private MessageHistory history;
+    private Server server;
+    private InMemoryConnection connection;
+
+    @Setup
+    public void setUp() throws IOException {
+        history = new MessageHistory(capacity);
+        for (int i = 0; i < capacity; i++) {
+            history.append("user" + i + ": А воз и ныне там.");
+        }
+        server = new Server(null, "Benchmark");
+        connection = new InMemoryConnection(server, "reader");
+        for (int i = 0; i < 100; i++) {
+            server.sendBroadcastMessage(connection, new Message("user: line " + i, "user"));
+        }
+    }
+
+    @Benchmark
+    public long append() {
+        return history.append("user: А воз и ныне там.");
+    }
+
+    @Benchmark
+    public List<MessageHistory.Entry> snapshot() {
+        return history.snapshot();
+    }
+
+    @Benchmark
+    public long sendLastMessages() throws IOException {
+        server.sendLastMessages(connection);
+        return connection.getFrames();
+    }
+}
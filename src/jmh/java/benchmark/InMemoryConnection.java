@@ -0,0 +1,43 @@
+package benchmark;
+
+
+import server.ClientConnection;
+import server.Frame;
+import server.Server;
+
+/*
+* Соединение без сокета для бенчмарков: кадры проходят через настоящую очередь отправки,
+* но сразу же забираются из нее, как если бы поток записи успевал отправлять все мгновенно.
+* */
+public class InMemoryConnection extends ClientConnection {
+    private long frames;
+    private long bytes;
+
+    public InMemoryConnection(Server server, String name) {
+        super(null, server);
+        setUser_name(name);
+    }
+
+    @Override
+    protected void onFrameQueued() {
+        Frame frame;
+        while ((frame = outbound.poll()) != null) {
+            frames++;
+            bytes += frame.length();
+            frame.release();
+        }
+    }
+
+    @Override
+    protected void disconnect() {
+        outbound.close();
+    }
+
+    public long getFrames() {
+        return frames;
+    }
+
+    public long getBytes() {
+        return bytes;
+    }
+}
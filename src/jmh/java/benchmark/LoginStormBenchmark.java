@@ -0,0 +1,64 @@
+package benchmark;
+
+
+import org.openjdk.jmh.annotations.*;
+import server.Server;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/*
+* Наплыв входов и выходов: каждый поток бенчмарка - отдельный клиент, который занимает свой логин
+* и тут же его освобождает, а в contended все потоки одновременно борются за один и тот же логин.
+* Запускать с разным числом потоков (-t 1, -t 4, -t 8): без общего замка пропускная способность
+* уникальных логинов растет вместе с числом потоков.
+* */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class LoginStormBenchmark {
+
+    @State(Scope.Benchmark)
+    public static class ServerState {
+        private final AtomicInteger clients = new AtomicInteger();
+        private Server server;
+
+        @Setup
+        public void setUp() throws IOException {
+            server = new Server(null, "Benchmark");
+        }
+    }
+
+    @State(Scope.Thread)
+    public static class Client {
+        private InMemoryConnection connection;
+        private String login;
+        //соединение, которое пытается занять общий логин; освободить его может только победитель
+        private InMemoryConnection admin;
+
+        @Setup
+        public void setUp(ServerState state) {
+            login = "bot" + state.clients.incrementAndGet();
+            connection = new InMemoryConnection(state.server, login);
+            admin = new InMemoryConnection(state.server, "admin");
+        }
+    }
+
+    @Benchmark
+    public boolean uniqueLogins(ServerState state, Client client) {
+        boolean logged = state.server.loginCheck(client.connection, client.login);
+        state.server.removeUser(client.connection);
+        return logged;
+    }
+
+    @Benchmark
+    public boolean contended(ServerState state, Client client) {
+        boolean logged = state.server.loginCheck(client.admin, "admin");
+        if (logged)
+            state.server.removeUser(client.admin);
+        return logged;
+    }
+}
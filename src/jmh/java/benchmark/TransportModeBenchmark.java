@@ -0,0 +1,135 @@
+package benchmark;
+
+
+import client.ConnectionToServer;
+import server.ClientConnection;
+import server.Server;
+import server.TrafficStats;
+import settings.Message;
+import settings.ServerSettings;
+
+import java.lang.management.ManagementFactory;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.channels.ServerSocketChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/*
+* Сравнение режимов транспорта сервера через настоящие сокеты. Это не бенчмарк JMH: замер идет от входа
+* клиентов до доставки всех рассылок, поэтому запускается обычным main, по очереди для каждого режима:
+*   java -cp <классы> benchmark.TransportModeBenchmark [clients] [messagesPerClient] [BLOCKING,NIO,VIRTUAL]
+* Каждый клиент логинится и отправляет сообщения, замеряется время, за которое все клиенты
+* получат все рассылки, число потоков, созданных сервером (без потоков чтения самих клиентов),
+* и число записей в сокеты на одно доставленное сообщение (TrafficStats).
+* Режим VIRTUAL без Java 21 выполняется на пуле обычных потоков, о чем сервер пишет при старте.
+* Если очереди отправки переполнятся (ServerSettings.OUTBOUND_QUEUE_SIZE), часть рассылок будет
+* отброшена, и замер завершится по таймауту с числом фактически доставленных сообщений.
+* */
+public class TransportModeBenchmark {
+    private static final String PREFIX = "bench-";
+    private static final AtomicLong received = new AtomicLong();
+
+    public static void main(String[] args) throws Exception {
+        int clients = args.length > 0 ? Integer.parseInt(args[0]) : 200;
+        int messagesPerClient = args.length > 1 ? Integer.parseInt(args[1]) : 20;
+        String[] transports = (args.length > 2 ? args[2] : ServerSettings.TRANSPORT_BLOCKING + ","
+                + ServerSettings.TRANSPORT_NIO + "," + ServerSettings.TRANSPORT_VIRTUAL).split(",");
+        for (String transport : transports) {
+            run(transport.trim(), clients, messagesPerClient);
+        }
+    }
+
+    private static void run(String transport, int clients, int messagesPerClient) throws Exception {
+        ServerSocket serverSocket = ServerSettings.TRANSPORT_NIO.equals(transport)
+                ? ServerSocketChannel.open().bind(new InetSocketAddress(0)).socket()
+                : new ServerSocket(0);
+        final Server server = new Server(serverSocket, "Benchmark", null, transport) {
+            @Override
+            public void addLog(ClientConnection userThread, String logMessage) {
+            }
+        };
+        int threadsBefore = ManagementFactory.getThreadMXBean().getThreadCount();
+        Thread listener = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                server.startSocketListener();
+            }
+        });
+        listener.setDaemon(true);
+        listener.start();
+
+        received.set(0);
+        int expected = messagesPerClient * (clients - 1);
+        final CountDownLatch delivered = new CountDownLatch(clients);
+        List<ConnectionToServer> connections = new ArrayList<ConnectionToServer>(clients);
+        long loginStart = System.nanoTime();
+        for (int i = 0; i < clients; i++) {
+            ConnectionToServer connection = new ConnectionToServer(
+                    new Socket(ServerSettings.INET_ADDRESS, serverSocket.getLocalPort()));
+            connection.sendToServer(new Message(null, "user" + i, ServerSettings.LOGIN_CHECK));
+            connection.readFromServer();
+            connections.add(connection);
+            startReader(connection, expected, delivered);
+        }
+        long loginTime = System.nanoTime() - loginStart;
+        int threads = ManagementFactory.getThreadMXBean().getThreadCount() - threadsBefore - clients;
+
+        TrafficStats.reset();
+        long start = System.nanoTime();
+        for (int m = 0; m < messagesPerClient; m++) {
+            for (int i = 0; i < clients; i++) {
+                connections.get(i).sendToServer(new Message(PREFIX + m, "user" + i));
+            }
+        }
+        boolean completed = delivered.await(1, TimeUnit.MINUTES);
+        long elapsed = System.nanoTime() - start;
+
+        long deliveries = received.get();
+        System.out.println("transport=" + transport + " clients=" + clients
+                + " messagesPerClient=" + messagesPerClient
+                + (completed ? "" : " (TIMED OUT, expected " + (long) clients * expected + " deliveries)"));
+        System.out.printf("login: %.1f ms, server threads (without client readers): %d%n",
+                loginTime / 1e6, threads);
+        System.out.printf("fan-out: %d deliveries in %.1f ms, %.0f deliveries/s%n",
+                deliveries, elapsed / 1e6, deliveries / (elapsed / 1e9));
+        long writes = TrafficStats.getWriteCalls();
+        System.out.printf("socket writes: %d for %d frames, %.2f frames per write, %.3f writes per delivery%n",
+                writes, TrafficStats.getFrames(), TrafficStats.getFrames() / (double) Math.max(1, writes),
+                writes / (double) Math.max(1, deliveries));
+
+        for (ConnectionToServer connection : connections) {
+            connection.closeConnection();
+        }
+        server.stopServer();
+    }
+
+    private static void startReader(final ConnectionToServer connection, final int expected,
+                                    final CountDownLatch delivered) {
+        Thread reader = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                int count = 0;
+                try {
+                    while (count < expected) {
+                        Message message = connection.readFromServer();
+                        if (message != null && message.getMessage() != null
+                                && message.getMessage().contains(PREFIX)) {
+                            count++;
+                            received.incrementAndGet();
+                        }
+                    }
+                    delivered.countDown();
+                } catch (Exception e) {
+                    //соединение закрыто в конце замера
+                }
+            }
+        });
+        reader.setDaemon(true);
+        reader.start();
+    }
+}
@@ -0,0 +1,83 @@
+package bot;
+
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/*
+* Гистограмма задержек в наносекундах с логарифмически-линейными корзинами:
+* значения до 128 хранятся точно, дальше каждая степень двойки делится на 64 корзины,
+* поэтому относительная ошибка перцентиля не превышает 1/64.
+* */
+public class LatencyHistogram {
+    private static final int SUB_BUCKET_BITS = 6;
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+    private static final int LINEAR = SUB_BUCKETS << 1;
+    private static final int BUCKETS = LINEAR + (63 - SUB_BUCKET_BITS) * SUB_BUCKETS;
+
+    private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+    private final AtomicLong total = new AtomicLong();
+    private final AtomicLong max = new AtomicLong();
+
+    public void record(long value) {
+        if (value < 0)
+            value = 0;
+        counts.incrementAndGet(indexOf(value));
+        total.incrementAndGet();
+        long current;
+        while (value > (current = max.get()) && !max.compareAndSet(current, value)) {
+        }
+    }
+
+    public void add(LatencyHistogram other) {
+        for (int i = 0; i < BUCKETS; i++) {
+            long count = other.counts.get(i);
+            if (count != 0)
+                counts.addAndGet(i, count);
+        }
+        total.addAndGet(other.getCount());
+        long current;
+        long value = other.getMax();
+        while (value > (current = max.get()) && !max.compareAndSet(current, value)) {
+        }
+    }
+
+    /*значение, не меньше которого percent процентов записанных значений*/
+    public long getValueAtPercentile(double percent) {
+        long count = total.get();
+        if (count == 0)
+            return 0;
+        long target = Math.max(1, (long) Math.ceil(count * percent / 100.0));
+        long seen = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            seen += counts.get(i);
+            if (seen >= target)
+                return Math.min(highestValueAt(i), max.get());
+        }
+        return max.get();
+    }
+
+    public long getCount() {
+        return total.get();
+    }
+
+    public long getMax() {
+        return max.get();
+    }
+
+    static int indexOf(long value) {
+        if (value < LINEAR)
+            return (int) value;
+        int shift = 63 - Long.numberOfLeadingZeros(value) - SUB_BUCKET_BITS;
+        int sub = (int) (value >>> shift) - SUB_BUCKETS;
+        return LINEAR + (shift - 1) * SUB_BUCKETS + sub;
+    }
+
+    static long highestValueAt(int index) {
+        if (index < LINEAR)
+            return index;
+        int shift = (index - LINEAR) / SUB_BUCKETS + 1;
+        long sub = (index - LINEAR) % SUB_BUCKETS + SUB_BUCKETS;
+        return ((sub + 1) << shift) - 1;
+    }
+}
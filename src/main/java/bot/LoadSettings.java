@@ -0,0 +1,30 @@
+package bot;
+
+
+/*настройки нагрузочного запуска ботов, задаются системными свойствами*/
+public class LoadSettings {
+    /*число ботов и скорость их подключения (ботов в секунду)*/
+    public static final int BOT_COUNT = Integer.getInteger("bots.count", 500);
+    public static final int RAMP_PER_SEC = Integer.getInteger("bots.rampPerSec", 10);
+    /*число потоков, обслуживающих соединения всех ботов, и столько же потоков отправки по расписанию*/
+    public static final int EVENT_LOOPS = Integer.getInteger("bots.eventLoops", Runtime.getRuntime().availableProcessors());
+    /*буфер чтения одного соединения бота в байтах: чем больше ботов, тем меньше стоит его делать*/
+    public static final int READ_BUFFER = Integer.getInteger("bots.readBuffer", 2048);
+    /*среднее число сообщений в секунду от одного бота*/
+    public static final double MESSAGES_PER_SEC = Double.parseDouble(System.getProperty("bots.rate", "0.4"));
+    /*OPEN - сообщения отправляются по расписанию независимо от задержек,
+    * CLOSED - следующее сообщение отправляется после паузы, отсчитанной от завершения предыдущей отправки*/
+    public static final String MODE_OPEN = "OPEN";
+    public static final String MODE_CLOSED = "CLOSED";
+    public static final String MODE = System.getProperty("bots.mode", MODE_CLOSED);
+    /*размер сообщений: FILE - строки из BotMessages.txt как есть, FIXED:n - ровно n символов,
+    * UNIFORM:min:max - равномерно от min до max символов*/
+    public static final String SIZE = System.getProperty("bots.size", "FILE");
+    /*длительность прогона в секундах; при 0 боты работают до команды /QUIT*/
+    public static final int DURATION_SEC = Integer.getInteger("bots.duration", 0);
+    /*файл с фразами ботов; если не задан, фразы берутся из ресурса BotMessages.txt*/
+    public static final String MESSAGES_FILE = System.getProperty("bots.messages");
+
+    /*метка времени отправки, которую бот ставит в начало сообщения*/
+    public static final String STAMP = "~t";
+}
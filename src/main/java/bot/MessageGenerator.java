@@ -0,0 +1,71 @@
+package bot;
+
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+/*подбирает фразы ботов нужной длины согласно настройке bots.size*/
+public class MessageGenerator {
+    private final List<String> lines;
+    private final int minSize;
+    private final int maxSize;
+
+    public MessageGenerator(List<String> lines, String size) {
+        if (lines.isEmpty())
+            throw new IllegalArgumentException("No bot messages");
+        this.lines = lines;
+        String[] parts = size.split(":");
+        if ("FIXED".equals(parts[0]) && parts.length == 2) {
+            minSize = maxSize = Integer.parseInt(parts[1]);
+        } else if ("UNIFORM".equals(parts[0]) && parts.length == 3) {
+            minSize = Integer.parseInt(parts[1]);
+            maxSize = Integer.parseInt(parts[2]);
+        } else if ("FILE".equals(parts[0])) {
+            minSize = maxSize = -1;
+        } else {
+            throw new IllegalArgumentException("Unknown message size distribution: " + size);
+        }
+        if (minSize > maxSize)
+            throw new IllegalArgumentException("Wrong message size range: " + size);
+    }
+
+    public String next(Random random) {
+        String line = lines.get(random.nextInt(lines.size()));
+        if (minSize < 0)
+            return line;
+
+        int size = minSize + random.nextInt(maxSize - minSize + 1);
+        StringBuilder sb = new StringBuilder(size);
+        while (sb.length() < size) {
+            if (sb.length() > 0)
+                sb.append(' ');
+            sb.append(line);
+            line = lines.get(random.nextInt(lines.size()));
+        }
+        sb.setLength(size);
+        return sb.toString();
+    }
+
+    /*фразы читаются из файла, если он задан, иначе из ресурса в classpath*/
+    public static List<String> loadMessages(String fileName) throws IOException {
+        InputStream in = fileName != null
+                ? new FileInputStream(fileName)
+                : MessageGenerator.class.getResourceAsStream("/BotMessages.txt");
+        if (in == null)
+            throw new FileNotFoundException("BotMessages.txt is not found in classpath");
+
+        List<String> messages = new ArrayList<String>();
+        try (BufferedReader reader = new BufferedReader(new InputStreamReader(in, StandardCharsets.UTF_8))) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                line = line.trim();
+                if (!line.equals(""))
+                    messages.add(line);
+            }
+        }
+        return messages;
+    }
+}
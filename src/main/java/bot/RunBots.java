@@ -1,119 +1,189 @@
 package bot;
 
-import client.Client;
-import client.ConnectionToServer;
-import client.ServerListenThread;
+import client.AsyncChatClient;
+import client.AsyncConnection;
 import settings.Message;
 import settings.ServerSettings;
 
 import java.io.*;
-import java.net.Socket;
-import java.nio.charset.StandardCharsets;
 import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.BiConsumer;
 
+/*
+* Нагрузочный запуск ботов. Число ботов, скорость подключения, частота и размер сообщений,
+* режим нагрузки и длительность задаются в LoadSettings. Каждое сообщение бота несет время отправки,
+* получатели складывают задержку доставки в общую гистограмму, по окончании печатаются перцентили и пропускная способность.
+* Боты не занимают потоков: соединения обслуживает AsyncChatClient с LoadSettings.EVENT_LOOPS циклами,
+* а отправку по расписанию - общий планировщик, поэтому одна JVM держит сотни тысяч ботов.
+* */
 public class RunBots {
-    private final Random random;
-    private final int BOT_COUNT = 500;
     private final KeyBoardListener keyBoardListener;
-    private List<String> messages;
-    private Object obj;
+    private final MessageGenerator generator;
+    private final AsyncChatClient chatClient;
+    private final ScheduledExecutorService scheduler;
+    private final LatencyHistogram latency;
+    private final List<Bot> bots;
+    private final AtomicInteger loginCounter;
+    private final AtomicInteger loggedBots;
 
-    public RunBots() {
+    public RunBots() throws IOException {
         this.keyBoardListener = new KeyBoardListener();
-        random = new Random();
-        messages = createBotMessages();
-        obj = new Object();
+        generator = new MessageGenerator(MessageGenerator.loadMessages(LoadSettings.MESSAGES_FILE), LoadSettings.SIZE);
+        chatClient = new AsyncChatClient(LoadSettings.EVENT_LOOPS, LoadSettings.READ_BUFFER);
+        scheduler = Executors.newScheduledThreadPool(LoadSettings.EVENT_LOOPS, new ThreadFactory() {
+            private final AtomicInteger count = new AtomicInteger();
+
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "bot-sender-" + count.getAndIncrement());
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        latency = new LatencyHistogram();
+        bots = Collections.synchronizedList(new ArrayList<Bot>());
+        loginCounter = new AtomicInteger();
+        loggedBots = new AtomicInteger();
     }
 
-    public static void main(String[] args) throws FileNotFoundException {
+    public static void main(String[] args) throws Exception {
         RunBots runBots = new RunBots();
 
         KeyBoardListener k = runBots.getKeyBoardListener();
+        long startTime = System.nanoTime();
         runBots.run();
 
-        Scanner sc = new Scanner(System.in);
-        while (sc.hasNext()) {
-            if (sc.next().equals(ServerSettings.QUIT)) {
-                System.out.println("Bots stopping began. Please wait");
-                k.setAlive(false);
-                break;
+        if (LoadSettings.DURATION_SEC > 0) {
+            long deadline = startTime + TimeUnit.SECONDS.toNanos(LoadSettings.DURATION_SEC);
+            long left;
+            while ((left = deadline - System.nanoTime()) > 0) {
+                TimeUnit.NANOSECONDS.sleep(left);
+            }
+        } else {
+            Scanner sc = new Scanner(System.in);
+            while (sc.hasNext()) {
+                if (sc.next().equals(ServerSettings.QUIT))
+                    break;
             }
         }
+        System.out.println("Bots stopping began. Please wait");
+        k.setAlive(false);
+        long elapsed = System.nanoTime() - startTime;
+        runBots.stop();
+        runBots.printReport(elapsed);
     }
 
-    private void run(){
+    private void run() throws InterruptedException {
 
         System.out.println("Bots creating is in process.");
+        System.out.println("Bots: " + LoadSettings.BOT_COUNT + ", ramp: " + LoadSettings.RAMP_PER_SEC
+                + " bots/sec, rate: " + LoadSettings.MESSAGES_PER_SEC + " msg/sec per bot, mode: " + LoadSettings.MODE
+                + ", size: " + LoadSettings.SIZE + ", event loops: " + LoadSettings.EVENT_LOOPS);
 
-//        final List<Thread> botList = new ArrayList<Thread>(BOT_COUNT);
+        long rampInterval = TimeUnit.SECONDS.toNanos(1) / Math.max(1, LoadSettings.RAMP_PER_SEC);
+        long start = System.nanoTime();
         int i = 0;
-        Thread thread = null;
-        while (i < BOT_COUNT){
+        while (i < LoadSettings.BOT_COUNT && keyBoardListener.isAlive()) {
+            Bot bot = new Bot(generator, keyBoardListener, scheduler, latency);
+            bots.add(bot);
+            startBot(bot);
+            i++;
+            if (i % 1000 == 0)
+                System.out.println("Bots are running: " + i);
 
-            try {
-                thread = new Thread(new Runnable() {
-                    @Override
-                    public void run() {
-                        Bot b = createBot();
-                    }
-                });
-                thread.start();
-//                botList.add(thread);
-                Thread.sleep(100);
-                System.out.println("Bots are running: " + (++i));
+            long left = start + i * rampInterval - System.nanoTime();
+            if (left > 0)
+                TimeUnit.NANOSECONDS.sleep(left);
+        }
 
-            } catch (InterruptedException e) {
-                System.out.println("Bot creating error: " + e);
+        System.out.println("All bots are running");
+        if (LoadSettings.DURATION_SEC > 0)
+            System.out.println("Bots will stop in " + LoadSettings.DURATION_SEC + " sec");
+        else
+            System.out.println("To stop running bots type command: " + ServerSettings.QUIT);
+    }
+
+    /*соединения закрываются все сразу, затем ждем их закрытия не дольше 5 секунд*/
+    private void stop() throws Exception {
+        List<CompletableFuture<Void>> closing = new ArrayList<CompletableFuture<Void>>();
+        synchronized (bots) {
+            for (Bot bot : bots) {
+                closing.add(bot.close());
             }
         }
+        try {
+            CompletableFuture.allOf(closing.toArray(new CompletableFuture<?>[closing.size()])).get(5, TimeUnit.SECONDS);
+        } catch (Exception e) {
+            System.out.println("Not all bots are stopped: " + e);
+        }
+        scheduler.shutdownNow();
+        chatClient.close();
+    }
 
-        System.out.println("All bots are running");
-        System.out.println("To stop running bots type command: " + ServerSettings.QUIT);
-    }
-
-    private List<String> createBotMessages(){
-        List<String> messages = new ArrayList<String>();
-        try (BufferedReader reader = new BufferedReader(
-                new InputStreamReader(
-                        new FileInputStream("src\\main\\resources\\BotMessages.txt"),StandardCharsets.UTF_8))){
-            String line;
-            while ((line = reader.readLine()) != null) {
-                if (!line.equals(""))
-                    messages.add(line);
+    private void printReport(long elapsedNanos) {
+        long sent = 0;
+        synchronized (bots) {
+            for (Bot bot : bots) {
+                sent += bot.getSent();
             }
-        } catch (IOException e) {
-            e.printStackTrace();
         }
-        return messages;
+        double seconds = elapsedNanos / 1e9;
+        System.out.println("Bots logged in: " + loggedBots.get() + " of " + bots.size());
+        System.out.printf("Duration: %.1f sec%n", seconds);
+        System.out.printf("Sent: %d messages, %.1f msg/sec%n", sent, sent / seconds);
+        System.out.printf("Delivered: %d messages, %.1f msg/sec%n", latency.getCount(), latency.getCount() / seconds);
+        System.out.printf("Latency, ms: p50=%.3f p99=%.3f p99.9=%.3f max=%.3f%n",
+                toMillis(latency.getValueAtPercentile(50)),
+                toMillis(latency.getValueAtPercentile(99)),
+                toMillis(latency.getValueAtPercentile(99.9)),
+                toMillis(latency.getMax()));
     }
 
-    private Bot createBot(){
+    private static double toMillis(long nanos) {
+        return nanos / 1e6;
+    }
 
-        Bot bot = new Bot(messages, this.keyBoardListener);
-        try {
-            Socket socket = new Socket(ServerSettings.INET_ADDRESS, ServerSettings.PORT);
-            ConnectionToServer connection = new ConnectionToServer(socket);
-            bot.connectToServer(connection);
-            try {
-                boolean isLogged = false;
-                while (!isLogged) {
-                    isLogged = bot.login(generateLogin());
-                }
-                bot.startChat();
+    private void startBot(final Bot bot){
+        chatClient.connect(ServerSettings.INET_ADDRESS, ServerSettings.PORT).whenComplete(
+                new BiConsumer<AsyncConnection, Throwable>() {
+                    @Override
+                    public void accept(AsyncConnection connection, Throwable error) {
+                        if (error != null)
+                            System.out.println("Bot socket creation error: " + error);
+                        else
+                            login(bot, connection);
+                    }
+                });
+    }
 
-            } catch (Exception e) {
-                System.out.println("Bot connection error: " + e);
+    /*занятый логин - повод попробовать следующий*/
+    private void login(final Bot bot, final AsyncConnection connection) {
+        final String login = generateLogin();
+        connection.login(login).whenComplete(new BiConsumer<Boolean, Throwable>() {
+            @Override
+            public void accept(Boolean isLogged, Throwable error) {
+                if (error != null) {
+                    System.out.println("Bot connection error: " + error);
+                } else if (!isLogged) {
+                    login(bot, connection);
+                } else {
+                    loggedBots.incrementAndGet();
+                    bot.startChat(connection, login);
+                }
             }
-        } catch (IOException e) {
-            System.out.println("Bot socket creation error: " + e);
-        }
-        return bot;
+        });
     }
 
-    private synchronized String generateLogin(){
-        StringBuilder sb = new StringBuilder();
-        sb.append("user").append(random.nextInt(1500));
-        return sb.toString();
+    private String generateLogin(){
+        return "user" + loginCounter.incrementAndGet();
     }
 
     public KeyBoardListener getKeyBoardListener() {
@@ -121,51 +191,133 @@ public class RunBots {
     }
 }
 
-class Bot extends Client {
-    private Random random;
-    private List<String> messages;
-    private KeyBoardListener keyBoardListener;
-    private boolean isAlive;
+/*
+* Бот без собственного потока: сообщения сервера приходят слушателю в потоке цикла соединения,
+* а очередное сообщение отправляет задача планировщика.
+* */
+class Bot implements AsyncConnection.Listener {
+    private final Random random;
+    private final MessageGenerator generator;
+    private final KeyBoardListener keyBoardListener;
+    private final ScheduledExecutorService scheduler;
+    private final LatencyHistogram latency;
+    private final AtomicLong sent;
+    private final boolean openLoop;
+    private final long interval;
+    private volatile AsyncConnection connection;
+    private volatile String userName;
+    //время очередной отправки по расписанию в режиме OPEN
+    private long scheduled;
 
-    Bot(List<String> messages, KeyBoardListener keyBoardListener) {
-        super();
+    Bot(MessageGenerator generator, KeyBoardListener keyBoardListener, ScheduledExecutorService scheduler,
+        LatencyHistogram latency) {
         random = new Random();
-        this.messages = messages;
+        this.generator = generator;
         this.keyBoardListener = keyBoardListener;
-        isAlive = true;
+        this.scheduler = scheduler;
+        this.latency = latency;
+        sent = new AtomicLong();
+        openLoop = LoadSettings.MODE_OPEN.equals(LoadSettings.MODE);
+        interval = (long) (TimeUnit.SECONDS.toNanos(1) / LoadSettings.MESSAGES_PER_SEC);
     }
 
-    @Override
-    public void startChat() {
-        ConnectionToServer connection = getConnection();
-        if (connection.isConnected()) {
-            try {
-                ServerListenThread serverListenThread = new ServerListenThread(connection, true);
-                while (isAlive &&
-                        (!serverListenThread.isInterrupted() && serverListenThread.isAlive())) {
-                    try {
-                        Thread.sleep(random.nextInt(5000));
-                        int idx = random.nextInt(messages.size());
-                        Message message = new Message(messages.get(idx), getUserName());
-                        connection.sendToServer(message);
-                        if (!keyBoardListener.isAlive()) {
-                            isAlive = false;
-                        }
-
-                    } catch (Exception e) {
-                        System.out.println("Bot socket error: " + e);
-                        return;
-                    }
+    /*
+    * В режиме OPEN время отправки берется из расписания, а не с часов: если бот не успевает,
+    * задержка отставания попадает в замер, а не теряется.
+    * В режиме CLOSED пауза перед следующим сообщением отсчитывается от завершения отправки предыдущего.
+    * */
+    void startChat(AsyncConnection connection, String userName) {
+        this.userName = userName;
+        this.connection = connection;
+        connection.setListener(this);
+        if (openLoop) {
+            scheduled = System.nanoTime() + (long) (random.nextDouble() * interval);
+            scheduleAt(scheduled);
+        } else {
+            scheduleAt(System.nanoTime() + (long) (random.nextDouble() * 2 * interval));
+        }
+    }
+
+    private void scheduleAt(long time) {
+        if (!keyBoardListener.isAlive())
+            return;
+        try {
+            scheduler.schedule(new Runnable() {
+                @Override
+                public void run() {
+                    sendNext();
                 }
-            } finally {
-                closeConnection();
-            }
+            }, Math.max(0, time - System.nanoTime()), TimeUnit.NANOSECONDS);
+        } catch (RejectedExecutionException e) {
+            //планировщик остановлен вместе с ботами
+        }
+    }
+
+    private void sendNext() {
+        AsyncConnection connection = this.connection;
+        if (!keyBoardListener.isAlive() || !connection.isOpen())
+            return;
+        long sendTime = openLoop ? scheduled : System.nanoTime();
+        Message message = new Message(LoadSettings.STAMP + sendTime + " " + generator.next(random), userName);
+        CompletableFuture<Void> sending = connection.send(message);
+        sent.incrementAndGet();
+        if (openLoop) {
+            scheduled += interval;
+            scheduleAt(scheduled);
+        } else {
+            sending.whenComplete(new BiConsumer<Void, Throwable>() {
+                @Override
+                public void accept(Void result, Throwable error) {
+                    if (error == null)
+                        scheduleAt(System.nanoTime() + (long) (random.nextDouble() * 2 * interval));
+                }
+            });
+        }
+    }
+
+    @Override
+    public void onMessage(AsyncConnection connection, Message message) {
+        recordDelivery(message);
+    }
+
+    @Override
+    public void onClosed(AsyncConnection connection, Throwable cause) {
+        if (cause != null && keyBoardListener.isAlive())
+            System.out.println("Bot socket error: " + cause);
+    }
+
+    /*сообщение другого бота имеет вид "user: ~t<время> текст"; история без автора не учитывается*/
+    private void recordDelivery(Message message) {
+        String text = message.getMessage();
+        if (message.getUser() == null || text == null)
+            return;
+        int start = text.indexOf(": " + LoadSettings.STAMP);
+        if (start < 0)
+            return;
+        start += 2 + LoadSettings.STAMP.length();
+        int end = text.indexOf(' ', start);
+        if (end < 0)
+            return;
+        try {
+            long sendTime = Long.parseLong(text.substring(start, end));
+            latency.record(System.nanoTime() - sendTime);
+        } catch (NumberFormatException e) {
         }
     }
+
+    /*бот, который еще не вошел, закрывать нечего*/
+    CompletableFuture<Void> close() {
+        AsyncConnection connection = this.connection;
+        return connection != null ? connection.close() : CompletableFuture.completedFuture((Void) null);
+    }
+
+    long getSent() {
+        return sent.get();
+    }
 }
 
 class KeyBoardListener {
-    private boolean isAlive;
+    private volatile boolean isAlive;
 
     public KeyBoardListener() {
         isAlive = true;
@@ -0,0 +1,65 @@
+package client;
+
+
+import settings.FrameDecoder;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/*
+* Группа циклов ClientEventLoop для неблокирующих соединений с сервером. Соединения распределяются
+* по циклам по очереди, так что несколько потоков обслуживают сколько угодно соединений:
+* нагрузочный запуск ботов держит сотни тысяч сеансов в одной JVM.
+* */
+public class AsyncChatClient {
+    private final ClientEventLoop[] loops;
+    private final AtomicInteger next;
+    private final int readBufferSize;
+
+    public AsyncChatClient(int eventLoops) throws IOException {
+        this(eventLoops, FrameDecoder.INITIAL_SIZE);
+    }
+
+    /*
+    * readBufferSize - буфер чтения каждого соединения, пока не пришел кадр больше него. При сотнях тысяч
+    * соединений память решает: небольшой буфер экономит ее ценой большего числа чтений из сокета
+    * */
+    public AsyncChatClient(int eventLoops, int readBufferSize) throws IOException {
+        this.readBufferSize = readBufferSize;
+        loops = new ClientEventLoop[Math.max(1, eventLoops)];
+        next = new AtomicInteger();
+        for (int i = 0; i < loops.length; i++) {
+            loops[i] = new ClientEventLoop("client-loop-" + i);
+            loops[i].start();
+        }
+    }
+
+    /*будущее завершается соединением, когда оно установлено, или ошибкой подключения*/
+    public CompletableFuture<AsyncConnection> connect(String host, int port) {
+        ClientEventLoop loop = loops[(next.getAndIncrement() & Integer.MAX_VALUE) % loops.length];
+        SocketChannel channel;
+        try {
+            channel = SocketChannel.open();
+            channel.configureBlocking(false);
+            channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+        } catch (IOException e) {
+            CompletableFuture<AsyncConnection> failed = new CompletableFuture<AsyncConnection>();
+            failed.completeExceptionally(e);
+            return failed;
+        }
+        AsyncConnection connection = new AsyncConnection(channel, loop, readBufferSize);
+        loop.connect(connection, new InetSocketAddress(host, port));
+        return connection.connectFuture();
+    }
+
+    /*останавливает циклы, все соединения закрываются*/
+    public void close() {
+        for (ClientEventLoop loop : loops) {
+            loop.stop();
+        }
+    }
+}
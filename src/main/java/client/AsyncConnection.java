@@ -0,0 +1,343 @@
+package client;
+
+
+import settings.BufferPool;
+import settings.Message;
+import settings.MessageCodec;
+import settings.MessageCodecs;
+import settings.ServerSettings;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.util.Queue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.BiConsumer;
+
+/*
+* Неблокирующее соединение с сервером по тому же протоколу, что и ConnectionToServer, но без собственного потока:
+* чтение и запись выполняет общий цикл ClientEventLoop. Вход и отправка возвращают CompletableFuture,
+* а сообщения сервера передаются слушателю. Слушатель и продолжения будущих вызываются в потоке цикла,
+* поэтому они не должны блокироваться - иначе ждут все соединения этого цикла.
+* Отправлять можно из любого потока: кадр кодируется в вызывающем потоке и ставится в очередь,
+* цикл пишет накопившиеся кадры одной записью в сокет.
+* */
+public class AsyncConnection {
+    public interface Listener {
+        void onMessage(AsyncConnection connection, Message message);
+
+        /*cause - причина обрыва, null при обычном закрытии*/
+        void onClosed(AsyncConnection connection, Throwable cause);
+    }
+
+    private final SocketChannel channel;
+    private final ClientEventLoop loop;
+    private final MessageCodec codec;
+    private final ServerFrameReader reader;
+    private final SessionState state;
+    private final Queue<PendingWrite> writes;
+    //задача записи уже поставлена в цикл
+    private final AtomicBoolean flushScheduled;
+    private final Runnable flushTask;
+    private final CompletableFuture<AsyncConnection> connected;
+    private final CompletableFuture<Void> closed;
+    //ответ на вход, которого ждет клиент; одновременно возможен только один вход
+    private final AtomicReference<CompletableFuture<Boolean>> pendingLogin;
+    private volatile Listener listener;
+    private volatile boolean isClosed;
+    //дальше - только поток цикла
+    private SelectionKey key;
+    //кадры, взятые из очереди и еще не записанные полностью
+    private final PendingWrite[] inFlight;
+    private final ByteBuffer[] inFlightBuffers;
+    private int inFlightStart;
+    private int inFlightEnd;
+
+    AsyncConnection(SocketChannel channel, ClientEventLoop loop, int readBufferSize) {
+        this.channel = channel;
+        this.loop = loop;
+        codec = MessageCodecs.newCodec();
+        reader = new ServerFrameReader(codec, readBufferSize, loop.getInflater());
+        state = new SessionState();
+        writes = new ConcurrentLinkedQueue<PendingWrite>();
+        flushScheduled = new AtomicBoolean();
+        flushTask = new Runnable() {
+            @Override
+            public void run() {
+                flushScheduled.set(false);
+                writeOut();
+            }
+        };
+        connected = new CompletableFuture<AsyncConnection>();
+        closed = new CompletableFuture<Void>();
+        pendingLogin = new AtomicReference<CompletableFuture<Boolean>>();
+        inFlight = new PendingWrite[ServerSettings.MAX_GATHERED_FRAMES];
+        inFlightBuffers = new ByteBuffer[ServerSettings.MAX_GATHERED_FRAMES];
+    }
+
+    public void setListener(Listener listener) {
+        this.listener = listener;
+    }
+
+    /*
+    * вход под логином: true - логин свободен и клиент в чате, false - занят, можно пробовать другой.
+    * После переподключения (resumeFrom) сервер пришлет только пропущенные сообщения
+    * */
+    public CompletableFuture<Boolean> login(String login) {
+        final CompletableFuture<Boolean> answer = new CompletableFuture<Boolean>();
+        if (!pendingLogin.compareAndSet(null, answer)) {
+            answer.completeExceptionally(new IllegalStateException("Login is already in progress"));
+            return answer;
+        }
+        send(state.loginMessage(login)).whenComplete(new BiConsumer<Void, Throwable>() {
+            @Override
+            public void accept(Void result, Throwable error) {
+                if (error != null && pendingLogin.compareAndSet(answer, null))
+                    answer.completeExceptionally(error);
+            }
+        });
+        return answer;
+    }
+
+    /*будущее завершается, когда кадр целиком записан в сокет*/
+    public CompletableFuture<Void> send(Message message) {
+        CompletableFuture<Void> result = new CompletableFuture<Void>();
+        if (isClosed) {
+            result.completeExceptionally(new IOException("Connection is closed"));
+            return result;
+        }
+        state.onSend(message.getMessage());
+        byte[] frame;
+        try {
+            frame = codec.encodeFrame(message, BufferPool.SHARED);
+        } catch (IOException e) {
+            result.completeExceptionally(e);
+            return result;
+        }
+        writes.add(new PendingWrite(frame, result));
+        if (flushScheduled.compareAndSet(false, true))
+            loop.execute(flushTask);
+        return result;
+    }
+
+    /*закрытие выполняется в потоке цикла; ожидающие операции завершаются ошибкой*/
+    public CompletableFuture<Void> close() {
+        loop.execute(new Runnable() {
+            @Override
+            public void run() {
+                close(null);
+            }
+        });
+        return closed;
+    }
+
+    /*новое соединение после обрыва продолжает с того места, на котором остановилось предыдущее*/
+    public void resumeFrom(AsyncConnection previous) {
+        state.resumeFrom(previous.state);
+    }
+
+    public long getLastSequence() {
+        return state.getLastSequence();
+    }
+
+    public String getRoom() {
+        return state.getRoom();
+    }
+
+    public PresenceRoster getPresence() {
+        return state.getPresence();
+    }
+
+    /*сервер подтвердил при входе, что будет сжимать большие кадры*/
+    public boolean isCompressed() {
+        return state.isCompression();
+    }
+
+    public boolean isOpen() {
+        return !isClosed;
+    }
+
+    /*завершается при закрытии соединения по любой причине*/
+    public CompletableFuture<Void> closeFuture() {
+        return closed;
+    }
+
+    SocketChannel getChannel() {
+        return channel;
+    }
+
+    ClientEventLoop getLoop() {
+        return loop;
+    }
+
+    CompletableFuture<AsyncConnection> connectFuture() {
+        return connected;
+    }
+
+    void onRegistered(SelectionKey key) {
+        this.key = key;
+    }
+
+    void onConnectable() {
+        try {
+            if (!channel.finishConnect())
+                return;
+        } catch (IOException e) {
+            close(e);
+            return;
+        }
+        key.interestOps(SelectionKey.OP_READ);
+        connected.complete(this);
+        //кадры, отправленные до подключения
+        writeOut();
+    }
+
+    void onReadable() {
+        try {
+            int read = reader.readFrom(channel);
+            Message message;
+            while ((message = reader.next()) != null) {
+                deliver(message);
+            }
+            if (read < 0)
+                close(null);
+        } catch (IOException e) {
+            close(e);
+        }
+    }
+
+    void onWritable() {
+        writeOut();
+    }
+
+    private void deliver(Message message) {
+        state.onReceive(message);
+        //ответ на вход получает будущее login, а не слушатель
+        String command = message.getCommand();
+        if (ServerSettings.LOGIN_IS_FREE.equals(command) || ServerSettings.LOGIN_IS_NOT_FREE.equals(command)) {
+            CompletableFuture<Boolean> answer = pendingLogin.getAndSet(null);
+            if (answer != null) {
+                answer.complete(ServerSettings.LOGIN_IS_FREE.equals(command));
+                return;
+            }
+        }
+        Listener listener = this.listener;
+        if (listener == null)
+            return;
+        try {
+            listener.onMessage(this, message);
+        } catch (RuntimeException e) {
+            //ошибка слушателя одного соединения не должна останавливать цикл
+            System.out.println("Message listener error: " + e);
+        }
+    }
+
+    /*пишет кадры очереди пачками; если сокет не принял все, дописывает по готовности к записи*/
+    private void writeOut() {
+        if (isClosed) {
+            failWrites(new IOException("Connection is closed"));
+            return;
+        }
+        if (key == null || !channel.isConnected())
+            return;
+        try {
+            while (true) {
+                if (inFlightStart == inFlightEnd && !takeWrites())
+                    break;
+                channel.write(inFlightBuffers, inFlightStart, inFlightEnd - inFlightStart);
+                while (inFlightStart < inFlightEnd && !inFlightBuffers[inFlightStart].hasRemaining()) {
+                    PendingWrite written = inFlight[inFlightStart];
+                    inFlight[inFlightStart] = null;
+                    inFlightBuffers[inFlightStart] = null;
+                    inFlightStart++;
+                    written.release();
+                    written.future.complete(null);
+                }
+                if (inFlightStart < inFlightEnd) {
+                    key.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+                    return;
+                }
+            }
+            key.interestOps(SelectionKey.OP_READ);
+        } catch (IOException e) {
+            close(e);
+        }
+    }
+
+    private boolean takeWrites() {
+        inFlightStart = inFlightEnd = 0;
+        PendingWrite write;
+        while (inFlightEnd < inFlight.length && (write = writes.poll()) != null) {
+            inFlight[inFlightEnd] = write;
+            inFlightBuffers[inFlightEnd] = write.buffer;
+            inFlightEnd++;
+        }
+        return inFlightEnd > 0;
+    }
+
+    /*только поток цикла*/
+    void close(Throwable cause) {
+        if (isClosed)
+            return;
+        isClosed = true;
+        if (key != null)
+            key.cancel();
+        try {
+            channel.close();
+        } catch (IOException e) {
+            //соединение все равно закрывается
+        }
+        reader.release();
+        IOException error = new IOException("Connection is closed", cause);
+        failWrites(error);
+        connected.completeExceptionally(error);
+        CompletableFuture<Boolean> answer = pendingLogin.getAndSet(null);
+        if (answer != null)
+            answer.completeExceptionally(error);
+        closed.complete(null);
+        Listener listener = this.listener;
+        if (listener != null) {
+            try {
+                listener.onClosed(this, cause);
+            } catch (RuntimeException e) {
+                System.out.println("Message listener error: " + e);
+            }
+        }
+    }
+
+    private void failWrites(IOException error) {
+        for (int i = inFlightStart; i < inFlightEnd; i++) {
+            inFlight[i].release();
+            inFlight[i].future.completeExceptionally(error);
+            inFlight[i] = null;
+            inFlightBuffers[i] = null;
+        }
+        inFlightStart = inFlightEnd = 0;
+        PendingWrite write;
+        while ((write = writes.poll()) != null) {
+            write.release();
+            write.future.completeExceptionally(error);
+        }
+    }
+
+    /*кадр в буфере из пула: 4 байта длины и сообщение*/
+    private static class PendingWrite {
+        final byte[] frame;
+        final ByteBuffer buffer;
+        final CompletableFuture<Void> future;
+
+        PendingWrite(byte[] frame, CompletableFuture<Void> future) {
+            this.frame = frame;
+            buffer = ByteBuffer.wrap(frame, 0, ByteBuffer.wrap(frame).getInt() + 4);
+            this.future = future;
+        }
+
+        void release() {
+            BufferPool.SHARED.release(frame);
+        }
+    }
+}
@@ -2,15 +2,18 @@ package client;
 
 
 
+import settings.FrameCompression;
 import settings.Message;
 import settings.ServerSettings;
 
 import java.io.*;
-import java.net.Socket;
+import java.util.concurrent.ExecutionException;
 
 public class Client {
     private String userName;
     private ConnectionToServer connection;
+    //неблокирующее соединение; если задано, клиент работает через него, а не через connection
+    private AsyncConnection asyncConnection;
     private BufferedReader keyBoard;
 
     public Client(){}
@@ -23,6 +26,10 @@ public class Client {
         this.connection = connection;
     }
 
+    public void connectToServer(AsyncConnection connection){
+        this.asyncConnection = connection;
+    }
+
     public boolean login(String login) throws Exception{
 
         if (checkLogin(login)) {
@@ -34,13 +41,25 @@ public class Client {
 
 /*Для проверки успешного логина к серверу отсылаем на сервер наш ник и
  * префикс, по которому сервер поймет, что происходит попытка логина.
+ * После переподключения (ConnectionToServer.resumeFrom) к ним добавляются комната и номер последнего
+ * полученного сообщения, тогда сервер пришлет только пропущенные сообщения.
  * Метод возвращает true, если получает положительный ответ от сервера*/
     private boolean checkLogin(String login) throws Exception {
+        if (asyncConnection != null) {
+            try {
+                return asyncConnection.login(login).get();
+            } catch (ExecutionException e) {
+                closeConnection();
+                throw e.getCause() instanceof Exception ? (Exception) e.getCause() : e;
+            }
+        }
         if (connection.isConnected()) {
             try {
                 Message message = new Message();
                 message.setUser(login);
                 message.setCommand(ServerSettings.LOGIN_CHECK);
+                message.setMessage(loginText(connection.getRoom()));
+                message.setSequence(connection.getLastSequence());
                 connection.sendToServer(message);
 
                 message = connection.readFromServer();
@@ -55,6 +74,14 @@ public class Client {
         return false;
     }
 
+    /*к комнате добавляется признак поддержки сжатия больших кадров*/
+    static String loginText(String room) {
+        String text = room == null ? "" : room;
+        if (ServerSettings.COMPRESSION && FrameCompression.isAvailable())
+            text = text + " " + FrameCompression.CAPABILITY;
+        return text.trim();
+    }
+
     /*
     * Для получения команд от сервера, клиентский сокет должен постоянно сканировать
     * через in.read не пришло ли новое сообщение. Для обработки собственных сообщений
@@ -64,6 +91,10 @@ public class Client {
     * пользователя из массовой рассылки.
     * */
     public void startChat(){
+        if (asyncConnection != null) {
+            startAsyncChat();
+            return;
+        }
         if (connection.isConnected()) {
             ServerListenThread serverListener = null;
             try {
@@ -86,6 +117,40 @@ public class Client {
         }
     }
 
+    /*
+    * то же для неблокирующего соединения: сообщения сервера печатает поток цикла соединения,
+    * поэтому отдельный поток чтения не нужен
+    * */
+    private void startAsyncChat(){
+        asyncConnection.setListener(new AsyncConnection.Listener() {
+            @Override
+            public void onMessage(AsyncConnection connection, Message message) {
+                System.out.println(message.getMessage());
+            }
+
+            @Override
+            public void onClosed(AsyncConnection connection, Throwable cause) {
+                if (cause != null)
+                    System.out.println("Server listening error: " + cause);
+            }
+        });
+        try {
+            boolean isAlive = true;
+            while (isAlive && asyncConnection.isOpen()) {
+                String msg = keyBoard.readLine();
+                if (msg == null)
+                    break;
+                asyncConnection.send(new Message(msg, userName)).get();
+                if (msg.equals(ServerSettings.QUIT))
+                    isAlive = false;
+            }
+        } catch (Exception e) {
+            System.out.println("Connection to the sever lost: " + e);
+        } finally {
+            closeConnection();
+        }
+    }
+
     public void closeConnection(){
         if (keyBoard != null){
             try {
@@ -94,7 +159,10 @@ public class Client {
                 e.printStackTrace();
             }
         }
-        connection.closeConnection();
+        if (asyncConnection != null)
+            asyncConnection.close();
+        else
+            connection.closeConnection();
     }
 
     public String getUserName() {
@@ -112,38 +180,34 @@ public class Client {
     public static void main(String[] args) {
 
         Client client = new Client(new BufferedReader(new InputStreamReader(System.in)));
+        AsyncChatClient chatClient = null;
         try {
-            Socket socket = new Socket(ServerSettings.INET_ADDRESS, ServerSettings.PORT);
-            ConnectionToServer connection = new ConnectionToServer(socket);
-            client.connectToServer(connection);
-            if (client.getConnection().isConnected()) {
-                try {
-                    BufferedReader keyBoard = client.getKeyBoard();
-                    boolean isLogged = false;
-                    String name = "";
-                    while (!isLogged) {
-                        System.out.print("Enter your login: ");
-                        name = keyBoard.readLine();
-                        isLogged = client.login(name);
-                        if (!isLogged)
-                            System.out.println("Login '" + name + "' is busy. Please, try again.");
-                    }
-                    System.out.println("Hello, " + name + "! You have logged successfully! Now you can type your messages.");
-                    System.out.println("To get help type: " + ServerSettings.HELP);
-                    client.startChat();
-
-                } catch (IOException e) {
-                    e.printStackTrace();
-                } catch (Exception e) {
-                    e.printStackTrace();
+            chatClient = new AsyncChatClient(1);
+            client.connectToServer(chatClient.connect(ServerSettings.INET_ADDRESS, ServerSettings.PORT).get());
+            try {
+                BufferedReader keyBoard = client.getKeyBoard();
+                boolean isLogged = false;
+                String name = "";
+                while (!isLogged) {
+                    System.out.print("Enter your login: ");
+                    name = keyBoard.readLine();
+                    isLogged = client.login(name);
+                    if (!isLogged)
+                        System.out.println("Login '" + name + "' is busy. Please, try again.");
                 }
+                System.out.println("Hello, " + name + "! You have logged successfully! Now you can type your messages.");
+                System.out.println("To get help type: " + ServerSettings.HELP);
+                client.startChat();
 
-            } else {
-                System.out.println("No connection to server");
+            } catch (Exception e) {
+                e.printStackTrace();
             }
         }
-        catch (IOException e){
-            System.out.println("Socket creation error: " + e);
+        catch (Exception e){
+            System.out.println("No connection to server: " + e);
+        } finally {
+            if (chatClient != null)
+                chatClient.close();
         }
 
     }
@@ -0,0 +1,136 @@
+package client;
+
+
+import java.io.IOException;
+import java.net.SocketAddress;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.zip.Inflater;
+
+/*
+* Поток с собственным селектором, обслуживающий множество соединений с сервером (AsyncConnection).
+* Все операции с каналами и ключами выполняются только в этом потоке, остальные потоки
+* передают ему работу через execute(). Устроен так же, как серверный NioEventLoop
+* */
+class ClientEventLoop implements Runnable, Executor {
+    private final Selector selector;
+    private final Queue<Runnable> tasks;
+    private final Thread thread;
+    //сообщения всех соединений цикла разбираются в его потоке, поэтому распаковщик сжатых кадров у них один
+    private final Inflater inflater;
+    private volatile boolean isStopped;
+
+    ClientEventLoop(String name) throws IOException {
+        selector = Selector.open();
+        tasks = new ConcurrentLinkedQueue<Runnable>();
+        thread = new Thread(this, name);
+        thread.setDaemon(true);
+        inflater = new Inflater();
+    }
+
+    void start() {
+        thread.start();
+    }
+
+    /*регистрация канала и начало подключения происходят в потоке цикла*/
+    void connect(final AsyncConnection connection, final SocketAddress address) {
+        execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    SelectionKey key = connection.getChannel().register(selector, SelectionKey.OP_CONNECT, connection);
+                    connection.onRegistered(key);
+                    //к локальному адресу канал может подключиться сразу
+                    if (connection.getChannel().connect(address))
+                        connection.onConnectable();
+                } catch (Exception e) {
+                    connection.close(e);
+                }
+            }
+        });
+    }
+
+    boolean inLoop() {
+        return Thread.currentThread() == thread;
+    }
+
+    @Override
+    public void execute(Runnable task) {
+        tasks.add(task);
+        if (!inLoop())
+            selector.wakeup();
+    }
+
+    @Override
+    public void run() {
+        try {
+            while (!isStopped) {
+                if (tasks.isEmpty())
+                    selector.select();
+                else
+                    selector.selectNow();
+                runTasks();
+                Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                while (keys.hasNext()) {
+                    SelectionKey key = keys.next();
+                    keys.remove();
+                    AsyncConnection connection = (AsyncConnection) key.attachment();
+                    if (!key.isValid()) {
+                        connection.close(null);
+                        continue;
+                    }
+                    if (key.isConnectable())
+                        connection.onConnectable();
+                    if (key.isValid() && key.isReadable())
+                        connection.onReadable();
+                    if (key.isValid() && key.isWritable())
+                        connection.onWritable();
+                }
+            }
+        } catch (ClosedSelectorException e) {
+            //цикл остановлен
+        } catch (IOException e) {
+            if (!isStopped)
+                System.out.println("Client event loop " + thread.getName() + " error: " + e);
+        } finally {
+            closeAll();
+        }
+    }
+
+    private void runTasks() {
+        Runnable task;
+        while ((task = tasks.poll()) != null) {
+            task.run();
+        }
+    }
+
+    private void closeAll() {
+        try {
+            for (SelectionKey key : selector.keys()) {
+                ((AsyncConnection) key.attachment()).close(null);
+            }
+            //задачи, поставленные до остановки, завершают ожидающие операции ошибкой закрытого соединения
+            runTasks();
+            selector.close();
+        } catch (Exception e) {
+            //при остановке ошибки закрытия не интересны
+        } finally {
+            inflater.end();
+        }
+    }
+
+    /*пользоваться им можно только в потоке цикла*/
+    Inflater getInflater() {
+        return inflater;
+    }
+
+    void stop() {
+        isStopped = true;
+        selector.wakeup();
+    }
+}
@@ -1,24 +1,31 @@
 package client;
 
 
+import settings.BufferPool;
 import settings.Message;
-import settings.ObjectSerialization;
+import settings.MessageCodec;
+import settings.MessageCodecs;
 
 import java.io.*;
 import java.net.Socket;
+import java.nio.ByteBuffer;
 
 public class ConnectionToServer{
     private DataOutputStream out;
-    private DataInputStream in;
+    private InputStream in;
+    private ServerFrameReader reader;
     private Socket socket;
-    private ObjectSerialization serialization;
+    private MessageCodec codec;
+    //комната, номер последнего полученного сообщения и присутствие, нужны для продолжения после переподключения
+    private final SessionState state = new SessionState();
 
     public ConnectionToServer(Socket socket) {
         try {
             this.socket = socket;
-            in = new DataInputStream(this.socket.getInputStream());
+            in = this.socket.getInputStream();
             out = new DataOutputStream(this.socket.getOutputStream());
-            serialization = new ObjectSerialization();
+            codec = MessageCodecs.newCodec();
+            reader = new ServerFrameReader(codec);
         } catch (IOException e) {
             System.out.println("Socket streams initialization error:" + e);
             closeConnection();
@@ -27,24 +34,51 @@ public class ConnectionToServer{
     }
 
     public void sendToServer(Message message) throws IOException {
-        byte[] bytes = serialization.toBytes(message);
-        out.writeInt(bytes.length);
-        out.write(bytes);
-        out.flush();
+        state.onSend(message.getMessage());
+        //длина и сообщение собираются в один буфер из пула и уходят в сокет одной записью
+        byte[] frame = codec.encodeFrame(message, BufferPool.SHARED);
+        try {
+            out.write(frame, 0, ByteBuffer.wrap(frame).getInt() + 4);
+            out.flush();
+        } finally {
+            BufferPool.SHARED.release(frame);
+        }
     }
 
+    /*кадр собирается из порций, которые есть в сокете*/
     public Message readFromServer() throws Exception {
         try {
-            int size = in.readInt();
-            byte[] bytes = new byte[size];
-            in.readFully(bytes);
-            return (Message)serialization.toObject(bytes);
-        }catch (EOFException e){
-        }catch (IOException e){
+            Message message;
+            while ((message = reader.next()) == null) {
+                if (reader.readFrom(in) < 0) {
+                    reader.release();
+                    return null;
+                }
+            }
+            state.onReceive(message);
+            return message;
+        } catch (IOException e) {
+            //декодером пользуется только читающий поток, поэтому буфер возвращается здесь, а не при закрытии
+            reader.release();
             throw e;
         }
+    }
+
+    /*новое соединение после обрыва продолжает с того места, на котором остановилось предыдущее*/
+    public void resumeFrom(ConnectionToServer previous) {
+        state.resumeFrom(previous.state);
+    }
+
+    public long getLastSequence() {
+        return state.getLastSequence();
+    }
+
+    public String getRoom() {
+        return state.getRoom();
+    }
 
-        return null;
+    public PresenceRoster getPresence() {
+        return state.getPresence();
     }
 
     public boolean isConnected(){
@@ -54,7 +88,7 @@ public class ConnectionToServer{
     public void closeConnection(){
         if (in != null) {
             try {
-                ((DataInputStream)in).close();
+                in.close();
             } catch (IOException e) {
                 e.printStackTrace();
             }
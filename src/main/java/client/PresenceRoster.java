@@ -0,0 +1,91 @@
+package client;
+
+
+import settings.Message;
+import settings.ServerSettings;
+
+import java.util.Set;
+import java.util.TreeSet;
+
+/*
+* Список пользователей онлайн на стороне клиента, который поддерживается подпиской /PRESENCE:
+* полный список от сервера заменяет текущий, изменения применяются по порядку версий.
+* Если версия изменения больше ожидаемой, значит часть изменений потеряна: список помечается несогласованным
+* и изменения не применяются, пока клиент не отправит resyncRequest и не получит недостающие по порядку.
+* */
+public class PresenceRoster {
+    private final Set<String> users = new TreeSet<String>();
+    private long version;
+    //полный список уже получен
+    private boolean started;
+    private boolean synced;
+
+    /*false, если сообщение не относится к присутствию*/
+    public synchronized boolean apply(Message message) {
+        String text = message.getMessage() == null ? "" : message.getMessage();
+        if (ServerSettings.PRESENCE_SNAPSHOT.equals(message.getCommand())) {
+            String[] lines = text.split("\n");
+            users.clear();
+            for (int i = 1; i < lines.length; i++) {
+                users.add(lines[i]);
+            }
+            version = Long.parseLong(lines[0]);
+            started = true;
+            synced = true;
+            return true;
+        }
+        if (!ServerSettings.PRESENCE_DELTA.equals(message.getCommand()))
+            return false;
+        for (String line : text.split("\n")) {
+            if (!line.isEmpty() && started)
+                applyEvent(line);
+        }
+        return true;
+    }
+
+    private void applyEvent(String line) {
+        int space = line.indexOf(' ');
+        long eventVersion = Long.parseLong(line.substring(0, space));
+        if (eventVersion <= version)
+            return;
+        if (eventVersion > version + 1) {
+            synced = false;
+            return;
+        }
+        String event = line.substring(space + 1);
+        String login = event.substring(1);
+        switch (event.charAt(0)) {
+            case '+':
+                users.add(login);
+                break;
+            case '-':
+                users.remove(login);
+                break;
+            case '>':
+                int separator = login.indexOf('\t');
+                users.remove(login.substring(0, separator));
+                users.add(login.substring(separator + 1));
+                break;
+        }
+        version = eventVersion;
+        synced = true;
+    }
+
+    /*команда серверу, которая догоняет пропущенные изменения или запрашивает полный список*/
+    public synchronized String resyncRequest() {
+        return version > 0 ? ServerSettings.PRESENCE + " " + version : ServerSettings.PRESENCE;
+    }
+
+    public synchronized Set<String> getUsers() {
+        return new TreeSet<String>(users);
+    }
+
+    public synchronized long getVersion() {
+        return version;
+    }
+
+    /*список получен и с тех пор ни одно изменение не потеряно*/
+    public synchronized boolean isSynced() {
+        return synced;
+    }
+}
@@ -0,0 +1,88 @@
+package client;
+
+
+import settings.BufferPool;
+import settings.FrameCompression;
+import settings.FrameDecoder;
+import settings.Message;
+import settings.MessageCodec;
+import settings.ServerSettings;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.channels.ReadableByteChannel;
+import java.util.zip.Inflater;
+
+/*
+* Разбор сообщений сервера для блокирующего и неблокирующего клиента: кадры собираются декодером,
+* сжатые распаковываются. Размер сжатого кадра после распаковки ограничен так же, как и размер обычного.
+* Пользуется им только поток, читающий соединение
+* */
+class ServerFrameReader {
+    private final MessageCodec codec;
+    private final FrameDecoder decoder;
+    //распаковка сжатых кадров, собственная создается при первом таком кадре
+    private Inflater inflater;
+    //распаковщик общий для всех соединений потока, который их читает; закрывает его владелец
+    private final boolean sharedInflater;
+
+    ServerFrameReader(MessageCodec codec) {
+        this(codec, FrameDecoder.INITIAL_SIZE, null);
+    }
+
+    /*
+    * inflater - общий распаковщик, если все соединения читает один поток (цикл ClientEventLoop),
+    * null - соединение создаст собственный. Каждый кадр распаковывается независимо от предыдущих,
+    * поэтому распаковщик можно использовать для кадров разных соединений
+    * */
+    ServerFrameReader(MessageCodec codec, int bufferSize, Inflater inflater) {
+        this.codec = codec;
+        this.inflater = inflater;
+        sharedInflater = inflater != null;
+        decoder = new FrameDecoder(ServerSettings.MAX_SERVER_FRAME_SIZE, true, BufferPool.SHARED, bufferSize);
+    }
+
+    int readFrom(InputStream in) throws IOException {
+        return decoder.readFrom(in);
+    }
+
+    int readFrom(ReadableByteChannel channel) throws IOException {
+        return decoder.readFrom(channel);
+    }
+
+    /*очередное сообщение из уже прочитанных байт; null - полного кадра пока нет*/
+    Message next() throws IOException {
+        if (!decoder.next())
+            return null;
+        byte[] bytes = decoder.array();
+        int offset = decoder.frameOffset();
+        int size = decoder.frameLength();
+        byte[] plain = null;
+        try {
+            if (decoder.isFrameCompressed()) {
+                if (inflater == null)
+                    inflater = new Inflater();
+                int plainSize = FrameCompression.uncompressedSize(bytes, offset, size);
+                if (plainSize > ServerSettings.MAX_SERVER_FRAME_SIZE)
+                    throw new IOException("Uncompressed frame size " + plainSize + " exceeds limit");
+                plain = BufferPool.SHARED.acquire(plainSize);
+                size = FrameCompression.decompress(inflater, bytes, offset, size, plain);
+                bytes = plain;
+                offset = 0;
+            }
+            return codec.decode(bytes, offset, size);
+        } finally {
+            if (plain != null)
+                BufferPool.SHARED.release(plain);
+        }
+    }
+
+    /*буфер возвращается в пул, после этого чтение ведет себя как закрытый поток*/
+    void release() {
+        decoder.release();
+        if (inflater != null && !sharedInflater) {
+            inflater.end();
+            inflater = null;
+        }
+    }
+}
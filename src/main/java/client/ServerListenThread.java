@@ -1,7 +1,6 @@
 package client;
 
 import settings.Message;
-import settings.ObjectSerialization;
 
 import java.io.*;
 
@@ -21,8 +20,8 @@ public class ServerListenThread extends Thread {
         while (true) {
             try {
                 Message message = connection.readFromServer();
-                if (!isBot && message != null) {
-                    System.out.println(message.getMessage());
+                if (message != null) {
+                    onMessage(message);
                 }
             } catch (Exception e) {
                 System.out.println("Server listening error: " + e);
@@ -32,4 +31,10 @@ public class ServerListenThread extends Thread {
         }
     }
 
+    /*боты не выводят сообщения на экран, но могут переопределить обработку полученного сообщения*/
+    protected void onMessage(Message message) {
+        if (!isBot) {
+            System.out.println(message.getMessage());
+        }
+    }
 }
@@ -0,0 +1,88 @@
+package client;
+
+
+import settings.FrameCompression;
+import settings.Message;
+import settings.ServerSettings;
+
+import java.util.Arrays;
+
+/*
+* Состояние сеанса клиента, которое переживает переподключение: комната, номер последнего полученного
+* сообщения комнаты и список пользователей онлайн. Общее для блокирующего и неблокирующего соединения
+* */
+class SessionState {
+    private volatile long lastSequence;
+    private volatile String room;
+    private volatile String pendingRoom;
+    //сервер подтвердил сжатие больших кадров в ответе на логин
+    private volatile boolean compression;
+    //список пользователей онлайн, если клиент подписан на присутствие (ServerSettings.PRESENCE)
+    private volatile PresenceRoster presence = new PresenceRoster();
+
+    /*комната, в которую просится клиент; станет текущей, когда сервер подтвердит переход командой JOIN*/
+    void onSend(String text) {
+        if (text == null)
+            return;
+        if (text.startsWith(ServerSettings.JOIN + " "))
+            pendingRoom = text.substring(ServerSettings.JOIN.length() + 1).trim();
+        else if (text.equals(ServerSettings.LEAVE))
+            pendingRoom = ServerSettings.DEFAULT_ROOM;
+    }
+
+    void onReceive(Message message) {
+        if (presence.apply(message))
+            return;
+        if (ServerSettings.JOIN.equals(message.getCommand())) {
+            //сообщения новой комнаты нумеруются заново
+            room = pendingRoom;
+            lastSequence = 0;
+        } else if (ServerSettings.LOGIN_IS_FREE.equals(message.getCommand())) {
+            //в ответе на логин после комнаты могут идти подтвержденные сервером возможности
+            String confirmedRoom = message.getMessage() == null ? null : message.getMessage().split(" ")[0];
+            if (confirmedRoom != null && !confirmedRoom.equals(room))
+                lastSequence = 0;
+            room = confirmedRoom;
+            compression = message.getMessage() != null
+                    && Arrays.asList(message.getMessage().split(" ")).contains(FrameCompression.CAPABILITY);
+        } else if (message.getSequence() > 0) {
+            lastSequence = message.getSequence();
+        }
+    }
+
+    /*подписку на присутствие клиент возобновляет запросом presence.resyncRequest()*/
+    void resumeFrom(SessionState previous) {
+        lastSequence = previous.lastSequence;
+        room = previous.room;
+        presence = previous.presence;
+    }
+
+    /*
+    * сообщение логина: текст - комната, в которой клиент был до переподключения, и признак поддержки сжатия
+    * больших кадров, номер - последнее полученное сообщение, тогда сервер пришлет только пропущенные
+    * */
+    Message loginMessage(String login) {
+        Message message = new Message();
+        message.setUser(login);
+        message.setCommand(ServerSettings.LOGIN_CHECK);
+        message.setMessage(Client.loginText(room));
+        message.setSequence(lastSequence);
+        return message;
+    }
+
+    long getLastSequence() {
+        return lastSequence;
+    }
+
+    String getRoom() {
+        return room;
+    }
+
+    boolean isCompression() {
+        return compression;
+    }
+
+    PresenceRoster getPresence() {
+        return presence;
+    }
+}
@@ -0,0 +1,236 @@
+package server;
+
+
+import settings.ClientListener;
+import settings.Message;
+import settings.MessageCodec;
+import settings.MessageCodecs;
+import settings.ServerSettings;
+
+import java.io.IOException;
+import java.net.Socket;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/*
+* Соединение сервера с клиентом независимо от транспорта: состояние пользователя, очередь исходящих
+* кадров и политика медленного клиента. Как читать сокет и писать в него, решают наследники:
+* ServerToClientThread - отдельными потоками чтения и записи, NioServerToClient - циклом селектора.
+* */
+public abstract class ClientConnection {
+    private static final AtomicInteger counter = new AtomicInteger();
+
+    private final String name;
+    private final Socket socket;
+    private final ClientListener clientListener;
+    private String user_name;
+    private boolean isLogged;
+    private Message receivedMessage;
+    private volatile Room room;
+    //клиент договорился о сжатии больших кадров при логине
+    private volatile boolean compression;
+    private String slowConsumerPolicy = ServerSettings.SLOW_CONSUMER_POLICY;
+    protected MessageCodec codec;
+    protected final OutboundQueue outbound;
+
+    protected ClientConnection(Socket socket, ClientListener clientListener) {
+        this.socket = socket;
+        this.clientListener = clientListener;
+        name = "client-" + counter.incrementAndGet();
+        isLogged = false;
+        codec = MessageCodecs.newCodec();
+        outbound = new OutboundQueue(ServerSettings.OUTBOUND_QUEUE_SIZE, ServerSettings.SLOW_CONSUMER_BYTES,
+                ServerSettings.SLOW_CONSUMER_MILLIS, ServerSettings.CONTROL_QUEUE_BYTES);
+    }
+
+    /*
+    * обработка очередного сообщения клиента: пока клиент не залогинился, все сообщения
+    * считаются попыткой логина, после - передаются серверу как обычные
+    * */
+    protected void onMessage(Message message) throws IOException {
+        receivedMessage = message;
+        if (!isLogged)
+            isLogged = clientListener.onLoggedClient(this, socket, receivedMessage);
+        else
+            clientListener.onReceiveMessage(this, socket, receivedMessage);
+    }
+
+    /*
+    * сообщение кодируется в кадр и ставится в очередь клиента, сам вызов не ждет записи в сокет.
+    * При переполнении очереди кадр отбрасывается. Ответы клиенту по умолчанию идут в полосе CONTROL,
+    * раньше уже ждущих в очереди рассылок
+    * */
+    public void sendMessage(Message message) throws IOException {
+        sendMessage(message, OutboundQueue.CONTROL);
+    }
+
+    /*
+    * lane - OutboundQueue.CONTROL или OutboundQueue.BULK. Сообщение одному клиенту (ответ, подтверждение JOIN,
+    * история, личное сообщение) нельзя восстановить по номерам, поэтому его кадр не отбрасывается как рассылка
+    * */
+    public void sendMessage(Message message, int lane) throws IOException {
+        Frame frame = Frame.encode(codec, message, false);
+        try {
+            sendFrame(frame, lane);
+        } finally {
+            frame.release();
+        }
+    }
+
+    /*
+    * постановка в очередь уже закодированного кадра, который может быть общим для многих получателей.
+    * Возвращает false, если кадр отброшен из-за переполнения очереди. Переполнение означает, что клиент
+    * не успевает читать, и с ним поступают по политике ServerSettings.SLOW_CONSUMER_POLICY; сам вызов
+    * при этом никогда не ждет клиента
+    * */
+    public boolean sendFrame(Frame frame) throws IOException {
+        return sendFrame(frame, OutboundQueue.BULK);
+    }
+
+    /*
+    * переполнение полосы CONTROL политикой медленного клиента не лечится: ответ отбрасывается,
+    * клиент его не получит, а в лог сервера попадает сообщение об этом
+    * */
+    public boolean sendFrame(Frame frame, int lane) throws IOException {
+        if (outbound.isClosed())
+            throw new IOException("Connection is closed");
+        if (compression && frame.payloadLength() >= ServerSettings.COMPRESSION_THRESHOLD)
+            frame = frame.compressed();
+        if (outbound.offer(frame, lane) || (lane == OutboundQueue.BULK && onSlowConsumer(frame))) {
+            onFrameQueued();
+            return true;
+        }
+        if (lane == OutboundQueue.CONTROL) {
+            TrafficStats.onDropped(1);
+            clientListener.onException(this, socket, new IOException("Reply dropped: "
+                    + outbound.size(OutboundQueue.CONTROL) + " replies are waiting for the client"));
+        }
+        return false;
+    }
+
+    /*
+    * возвращает true, если после применения политики кадр все-таки поставлен в очередь.
+    * Отбрасываются только нумерованные рассылки (Frame.isDroppable); кадр, который отбросить нельзя,
+    * при любой политике ставится в очередь, вытеснив рассылки, а если и это не помогло - клиент отключается
+    * */
+    private boolean onSlowConsumer(Frame frame) throws IOException {
+        switch (slowConsumerPolicy) {
+            case ServerSettings.SLOW_CONSUMER_DROP_OLDEST: {
+                int dropped = outbound.dropOldest(frame.length());
+                boolean queued = outbound.offer(frame);
+                TrafficStats.onDropped(queued ? dropped : dropped + 1);
+                if (!queued && !frame.isDroppable())
+                    evict("Slow consumer disconnected, required frame does not fit");
+                return queued;
+            }
+            case ServerSettings.SLOW_CONSUMER_SUMMARY: {
+                //вместо пропущенных сообщений комнаты клиент получит одно уведомление о пропуске
+                int skipped = outbound.dropAll();
+                boolean queued = !frame.isDroppable() && outbound.offer(frame);
+                if (!queued)
+                    skipped++;
+                TrafficStats.onDropped(skipped);
+                if (!queued && !frame.isDroppable()) {
+                    evict("Slow consumer disconnected, required frame does not fit");
+                    return false;
+                }
+                clientListener.onException(this, socket,
+                        new IOException("Slow consumer: " + skipped + " messages replaced by a notice"));
+                Frame notice = Frame.encode(codec, new Message(skipped + " MESSAGES SKIPPED: YOUR CONNECTION IS TOO SLOW.", null));
+                try {
+                    if (outbound.offer(notice))
+                        onFrameQueued();
+                } finally {
+                    notice.release();
+                }
+                return queued;
+            }
+            case ServerSettings.SLOW_CONSUMER_DISCONNECT: {
+                TrafficStats.onDropped(1);
+                evict("Slow consumer disconnected");
+                return false;
+            }
+            default: {
+                //отбрасывается новый кадр, но только если это рассылка; иначе место освобождается от старых рассылок
+                if (frame.isDroppable()) {
+                    TrafficStats.onDropped(1);
+                    return false;
+                }
+                int dropped = outbound.dropOldest(frame.length());
+                boolean queued = outbound.offer(frame);
+                TrafficStats.onDropped(queued ? dropped : dropped + 1);
+                if (!queued)
+                    evict("Slow consumer disconnected, required frame does not fit");
+                return queued;
+            }
+        }
+    }
+
+    private void evict(String reason) {
+        TrafficStats.onEvicted();
+        clientListener.onException(this, socket, new IOException(reason + ": "
+                + outbound.size() + " frames, " + outbound.getQueuedBytes() + " bytes queued"));
+        disconnect();
+    }
+
+    /*закрывает соединение; поток чтения (или цикл селектора) затем завершит его обычным образом*/
+    protected abstract void disconnect();
+
+    /*наследники, которые пишут в сокет сами, получают уведомление о новом кадре в очереди*/
+    protected void onFrameQueued() {
+    }
+
+    /*имя соединения для журнала сервера*/
+    public String getName() {
+        return name;
+    }
+
+    /*число кадров, ожидающих отправки клиенту*/
+    public int getOutboundQueueSize() {
+        return outbound.size();
+    }
+
+    public long getDroppedFrames() {
+        return outbound.getDroppedFrames();
+    }
+
+    void setSlowConsumerPolicy(String slowConsumerPolicy) {
+        this.slowConsumerPolicy = slowConsumerPolicy;
+    }
+
+    public Message getReceivedMessage() {
+        return receivedMessage;
+    }
+
+    public String getUser_name() {
+        return user_name;
+    }
+
+    public void setUser_name(String user_name) {
+        this.user_name = user_name;
+    }
+
+    public boolean isCompression() {
+        return compression;
+    }
+
+    public void setCompression(boolean compression) {
+        this.compression = compression;
+    }
+
+    /*комната, в которой сейчас находится пользователь*/
+    public Room getRoom() {
+        return room;
+    }
+
+    public void setRoom(Room room) {
+        this.room = room;
+    }
+
+    protected Socket getSocket() {
+        return socket;
+    }
+
+    protected ClientListener getClientListener() {
+        return clientListener;
+    }
+}
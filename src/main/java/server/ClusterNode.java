@@ -0,0 +1,393 @@
+package server;
+
+
+import settings.Message;
+import settings.MessageCodec;
+import settings.MessageCodecs;
+import settings.ServerSettings;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+/*
+* Узел кластера серверов чата. Узлы связаны попарно соединениями PeerLink и обмениваются событиями:
+* вход и выход пользователей (поэтому проверка логина и /USERS учитывают весь кластер), рассылки в комнаты
+* (каждый узел рассылает их своим участникам комнаты и пишет в свою историю) и личные сообщения, которые
+* передаются только узлу, на котором находится получатель.
+* Между двумя узлами остается одно соединение: если оба подключились друг к другу, сохраняется соединение,
+* установленное узлом с меньшим именем. Если один логин одновременно заняли на двух узлах, пользователь
+* остается на узле с меньшим именем, а на другом узле отключается.
+* Узлы знакомятся сообщением ServerSettings.CLUSTER_HELLO и доказывают друг другу знание общего секрета
+* кластера (см. hello); соединение с неверным секретом закрывается, и ни одно его сообщение не применяется.
+* Порядок сообщений одной комнаты одинаков для всех участников одного узла; сообщения, отправленные
+* одновременно с разных узлов, участники разных узлов могут увидеть в разном порядке.
+* */
+public class ClusterNode {
+    private final Server server;
+    private final String nodeId;
+    private final byte[] secret;
+    private final ServerSocket serverSocket;
+    private final List<String> peers;
+    private final MessageCodec codec;
+    //соединения с узлами по имени узла
+    private final Map<String, PeerLink> links;
+    //соединения, установленные этим узлом, по адресу узла, и имена узлов по адресу
+    private final Map<String, PeerLink> dialed;
+    private final Map<String, String> peerNodes;
+    //пользователи других узлов: логин - имя узла
+    private final Map<String, String> remoteUsers;
+    //события о пользователях и начальный список пользователей ставятся в очереди узлов под этим замком,
+    //чтобы на другом узле они применялись в том же порядке, в каком происходили здесь
+    private final Object membershipLock;
+    private final LongAdder relayed;
+    private final LongAdder batches;
+    private final LongAdder dropped;
+    private volatile boolean stopped;
+
+    /*secret - общий для всех узлов кластера; peers - адреса других узлов в виде "host:port"*/
+    public ClusterNode(Server server, String nodeId, String secret, ServerSocket serverSocket, List<String> peers) {
+        this.server = server;
+        this.nodeId = nodeId;
+        this.secret = secret.getBytes(StandardCharsets.UTF_8);
+        this.serverSocket = serverSocket;
+        this.peers = peers;
+        codec = MessageCodecs.newCodec();
+        links = new ConcurrentHashMap<String, PeerLink>();
+        dialed = new ConcurrentHashMap<String, PeerLink>();
+        peerNodes = new ConcurrentHashMap<String, String>();
+        remoteUsers = new ConcurrentHashMap<String, String>();
+        membershipLock = new Object();
+        relayed = new LongAdder();
+        batches = new LongAdder();
+        dropped = new LongAdder();
+    }
+
+    /*разбор списка адресов узлов из ServerSettings.CLUSTER_PEERS*/
+    public static List<String> parsePeers(String peers) {
+        List<String> result = new ArrayList<String>();
+        for (String peer : peers.split(",")) {
+            if (!peer.trim().isEmpty())
+                result.add(peer.trim());
+        }
+        return result;
+    }
+
+    public void start() {
+        Thread acceptor = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                acceptPeers();
+            }
+        }, "cluster-acceptor");
+        Thread dialer = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                dialPeers();
+            }
+        }, "cluster-dialer");
+        acceptor.setDaemon(true);
+        dialer.setDaemon(true);
+        acceptor.start();
+        dialer.start();
+        System.out.println("Cluster: node " + nodeId + " listens on " + serverSocket.getLocalSocketAddress() + ", peers " + peers);
+    }
+
+    public void stop() {
+        stopped = true;
+        try {
+            serverSocket.close();
+        } catch (IOException ignored) {
+        }
+        for (PeerLink link : new ArrayList<PeerLink>(links.values())) {
+            link.close();
+        }
+        for (PeerLink link : new ArrayList<PeerLink>(dialed.values())) {
+            link.close();
+        }
+    }
+
+    private void acceptPeers() {
+        while (!stopped) {
+            try {
+                Socket socket = serverSocket.accept();
+                new PeerLink(this, socket, false, socket.getRemoteSocketAddress().toString()).start();
+            } catch (IOException e) {
+                if (!stopped)
+                    System.out.println("Cluster accept error: " + e);
+            }
+        }
+    }
+
+    /*к узлам из списка подключаемся сами и переподключаемся после разрыва*/
+    private void dialPeers() {
+        while (!stopped) {
+            for (String peer : peers) {
+                String peerNode = peerNodes.get(peer);
+                PeerLink link = dialed.get(peer);
+                if ((peerNode != null && links.containsKey(peerNode)) || (link != null && !link.isClosed()))
+                    continue;
+                try {
+                    int colon = peer.lastIndexOf(':');
+                    Socket socket = new Socket();
+                    socket.connect(new InetSocketAddress(peer.substring(0, colon),
+                            Integer.parseInt(peer.substring(colon + 1))), ServerSettings.CLUSTER_RECONNECT_MS);
+                    link = new PeerLink(this, socket, true, peer);
+                    dialed.put(peer, link);
+                    link.start();
+                } catch (IOException e) {
+                    //узел еще не запущен, попробуем позже
+                }
+            }
+            try {
+                Thread.sleep(ServerSettings.CLUSTER_RECONNECT_MS);
+            } catch (InterruptedException e) {
+                return;
+            }
+        }
+    }
+
+    /*========================================================================================================*/
+    /*события этого узла для остальных*/
+
+    public void userAdded(String login) {
+        synchronized (membershipLock) {
+            sendAll(new Message(null, login, ServerSettings.CLUSTER_USER_ADD));
+        }
+    }
+
+    public void userRemoved(String login) {
+        synchronized (membershipLock) {
+            sendAll(new Message(null, login, ServerSettings.CLUSTER_USER_REMOVE));
+        }
+    }
+
+    /*рассылка в комнату; имя комнаты передается в поле user*/
+    public void broadcast(String room, Message message) {
+        sendAll(new Message(message.getMessage(), room, ServerSettings.CLUSTER_BROADCAST));
+    }
+
+    /*личное сообщение пользователю другого узла; false, если такого пользователя в кластере нет*/
+    public boolean sendDirect(String login, String text) {
+        String node = remoteUsers.get(login);
+        PeerLink link = node == null ? null : links.get(node);
+        if (link == null)
+            return false;
+        try {
+            if (link.send(new Message(text, login, ServerSettings.CLUSTER_DIRECT))) {
+                relayed.increment();
+                return true;
+            }
+        } catch (IOException e) {
+            System.out.println("Cluster direct message error: " + e);
+        }
+        dropped.increment();
+        return false;
+    }
+
+    /*сообщение кодируется один раз и ставится в очереди всех узлов*/
+    private void sendAll(Message message) {
+        if (links.isEmpty())
+            return;
+        byte[] frame;
+        try {
+            byte[] payload = codec.encode(message);
+            frame = new byte[payload.length + 4];
+            ByteBuffer.wrap(frame).putInt(payload.length).put(payload);
+        } catch (IOException e) {
+            System.out.println("Cluster message encoding error: " + e);
+            return;
+        }
+        for (PeerLink link : links.values()) {
+            if (link.send(frame))
+                relayed.increment();
+            else
+                dropped.increment();
+        }
+    }
+
+    /*========================================================================================================*/
+    /*события других узлов*/
+
+    void onPeerMessage(PeerLink link, Message message) throws IOException {
+        String command = message.getCommand();
+        if (ServerSettings.CLUSTER_HELLO.equals(command)) {
+            onHello(link, message);
+            return;
+        }
+        if (ServerSettings.CLUSTER_AUTH.equals(command)) {
+            onAuth(link, message.getMessage());
+            return;
+        }
+        String node = link.getNodeId();
+        //до проверки секрета и после замены соединения другим сообщения не принимаются
+        if (node == null || links.get(node) != link)
+            return;
+        if (ServerSettings.CLUSTER_USER_ADD.equals(command)) {
+            boolean isNew = remoteUsers.put(message.getUser(), node) == null;
+            server.onClusterLogin(message.getUser(), node, isNew);
+        } else if (ServerSettings.CLUSTER_USER_REMOVE.equals(command)) {
+            if (remoteUsers.remove(message.getUser(), node))
+                server.onClusterLogout(message.getUser());
+        } else if (ServerSettings.CLUSTER_BROADCAST.equals(command)) {
+            server.onClusterBroadcast(message.getUser(), message.getMessage());
+        } else if (ServerSettings.CLUSTER_DIRECT.equals(command)) {
+            server.onClusterDirect(message.getUser(), message.getMessage());
+        }
+    }
+
+    /*
+    * знакомство: каждая сторона сообщает имя узла и случайный вызов (nonce, поле user). Затем каждая сторона
+    * доказывает знание секрета ответом ServerSettings.CLUSTER_AUTH - HMAC секрета от вызова другой стороны
+    * и имен обоих узлов, поэтому сам секрет по сети не передается. Первым доказывает подключившийся узел,
+    * принявший соединение отвечает только после проверки, так что постороннему не достается ни одного ответа
+    * */
+    Message hello(PeerLink link) {
+        return new Message(nodeId, link.getNonce(), ServerSettings.CLUSTER_HELLO);
+    }
+
+    private void onHello(PeerLink link, Message hello) throws IOException {
+        String node = hello.getMessage();
+        if (node == null || node.equals(nodeId) || hello.getUser() == null || link.getPeerNodeId() != null) {
+            //подключились сами к себе, к узлу без имени или узел повторно представляется
+            link.close();
+            return;
+        }
+        link.setPeer(node, hello.getUser());
+        if (link.isInitiator())
+            link.send(new Message(proof(link.getPeerNonce(), nodeId, node), null, ServerSettings.CLUSTER_AUTH));
+    }
+
+    private void onAuth(PeerLink link, String proof) throws IOException {
+        String node = link.getPeerNodeId();
+        if (node == null || link.getNodeId() != null || proof == null
+                || !MessageDigest.isEqual(proof(link.getNonce(), node, nodeId).getBytes(StandardCharsets.UTF_8),
+                proof.getBytes(StandardCharsets.UTF_8))) {
+            System.out.println("Cluster: connection " + link.getAddress() + " rejected, wrong cluster secret.");
+            link.close();
+            return;
+        }
+        if (!link.isInitiator())
+            link.send(new Message(proof(link.getPeerNonce(), nodeId, node), null, ServerSettings.CLUSTER_AUTH));
+        onAuthenticated(link, node);
+    }
+
+    /*HMAC-SHA256 секрета кластера от вызова проверяющего узла, имени доказывающего и имени проверяющего*/
+    private String proof(String nonce, String prover, String verifier) {
+        try {
+            Mac mac = Mac.getInstance("HmacSHA256");
+            mac.init(new SecretKeySpec(secret, "HmacSHA256"));
+            byte[] digest = mac.doFinal((nonce + "\n" + prover + "\n" + verifier).getBytes(StandardCharsets.UTF_8));
+            return Base64.getEncoder().encodeToString(digest);
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException("HmacSHA256 is not available", e);
+        }
+    }
+
+    private void onAuthenticated(PeerLink link, String node) throws IOException {
+        link.setNodeId(node);
+        if (link.isInitiator())
+            peerNodes.put(link.getAddress(), node);
+        synchronized (membershipLock) {
+            PeerLink existing = links.get(node);
+            if (existing != null && existing != link && !existing.isClosed()) {
+                if (!isPreferred(link, existing)) {
+                    link.close();
+                    return;
+                }
+                links.put(node, link);
+                existing.close();
+            } else {
+                links.put(node, link);
+            }
+            //новому узлу сообщаем обо всех своих пользователях
+            for (String login : server.getLocalLogins()) {
+                link.send(new Message(null, login, ServerSettings.CLUSTER_USER_ADD));
+            }
+        }
+        System.out.println("Cluster: node " + node + " connected (" + link.getAddress() + ").");
+    }
+
+    /*из двух соединений с одним узлом оба узла выбирают одно и то же: установленное узлом с меньшим именем*/
+    private boolean isPreferred(PeerLink link, PeerLink existing) {
+        String preferredInitiator = nodeId.compareTo(link.getNodeId()) < 0 ? nodeId : link.getNodeId();
+        boolean linkPreferred = initiatorOf(link).equals(preferredInitiator);
+        boolean existingPreferred = initiatorOf(existing).equals(preferredInitiator);
+        return linkPreferred || !existingPreferred;
+    }
+
+    private String initiatorOf(PeerLink link) {
+        return link.isInitiator() ? nodeId : link.getNodeId();
+    }
+
+    void onLinkClosed(PeerLink link) {
+        dialed.remove(link.getAddress(), link);
+        String node = link.getNodeId();
+        if (node == null || !links.remove(node, link))
+            return;
+        //пользователи отключившегося узла больше не занимают логины
+        for (Map.Entry<String, String> entry : remoteUsers.entrySet()) {
+            if (entry.getValue().equals(node) && remoteUsers.remove(entry.getKey(), node))
+                server.onClusterLogout(entry.getKey());
+        }
+        System.out.println("Cluster: node " + node + " disconnected.");
+    }
+
+    void onBatchWritten() {
+        batches.increment();
+    }
+
+    /*========================================================================================================*/
+
+    public boolean isRemoteUser(String login) {
+        return remoteUsers.containsKey(login);
+    }
+
+    /*узел, на котором находится пользователь, или null*/
+    public String getUserNode(String login) {
+        return remoteUsers.get(login);
+    }
+
+    public Set<String> getRemoteUsers() {
+        return new TreeSet<String>(remoteUsers.keySet());
+    }
+
+    public Set<String> getPeers() {
+        return new TreeSet<String>(links.keySet());
+    }
+
+    public String getNodeId() {
+        return nodeId;
+    }
+
+    public int getPort() {
+        return serverSocket.getLocalPort();
+    }
+
+    public long getRelayed() {
+        return relayed.sum();
+    }
+
+    public long getBatches() {
+        return batches.sum();
+    }
+
+    public long getDropped() {
+        return dropped.sum();
+    }
+}
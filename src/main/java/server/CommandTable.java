@@ -0,0 +1,86 @@
+package server;
+
+
+import settings.UserCommand;
+
+import java.lang.invoke.CallSite;
+import java.lang.invoke.LambdaMetafactory;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.List;
+
+/*
+* Таблица команд пользователя. Строится один раз при старте сервера по методам с аннотацией @UserCommand:
+* для каждого метода через LambdaMetafactory создается UserCommandHandler, который вызывает метод
+* напрямую (с учетом переопределения в наследниках), поэтому при обработке сообщения Method.invoke не нужен.
+* Определение команды смотрит только на первое слово сообщения и не выделяет память: обычная строка
+* чата, которая не начинается с '/', отсекается по первому символу.
+* */
+public class CommandTable {
+    private static final MethodType HANDLER_TYPE =
+            MethodType.methodType(void.class, Server.class, ClientConnection.class);
+
+    private final String[] names;
+    private final Method[] methods;
+    private final UserCommandHandler[] handlers;
+
+    public CommandTable(Class<? extends Server> serverClass, MethodHandles.Lookup lookup) {
+        List<Method> commands = new ArrayList<Method>();
+        for (Method m : serverClass.getMethods()) {
+            if (m.isAnnotationPresent(UserCommand.class))
+                commands.add(m);
+        }
+        names = new String[commands.size()];
+        methods = new Method[commands.size()];
+        handlers = new UserCommandHandler[commands.size()];
+        for (int i = 0; i < commands.size(); i++) {
+            Method m = commands.get(i);
+            names[i] = m.getAnnotation(UserCommand.class).commandName();
+            methods[i] = m;
+            handlers[i] = createHandler(lookup, m);
+        }
+    }
+
+    private static UserCommandHandler createHandler(MethodHandles.Lookup lookup, Method method) {
+        try {
+            MethodHandle target = lookup.unreflect(method);
+            CallSite site = LambdaMetafactory.metafactory(lookup, "execute",
+                    MethodType.methodType(UserCommandHandler.class), HANDLER_TYPE, target, HANDLER_TYPE);
+            return (UserCommandHandler) site.getTarget().invoke();
+        } catch (Throwable e) {
+            throw new IllegalStateException("Cannot create handler for user command " + method, e);
+        }
+    }
+
+    /*индекс команды, с которой начинается сообщение, или -1 если это обычное сообщение*/
+    public int match(String message) {
+        if (message == null || message.isEmpty() || message.charAt(0) != '/')
+            return -1;
+        int end = message.indexOf(' ');
+        int length = end < 0 ? message.length() : end;
+        for (int i = 0; i < names.length; i++) {
+            if (names[i].length() == length && message.startsWith(names[i]))
+                return i;
+        }
+        return -1;
+    }
+
+    public int size() {
+        return names.length;
+    }
+
+    public String getName(int index) {
+        return names[index];
+    }
+
+    public Method getMethod(int index) {
+        return methods[index];
+    }
+
+    public UserCommandHandler getHandler(int index) {
+        return handlers[index];
+    }
+}
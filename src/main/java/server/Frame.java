@@ -0,0 +1,148 @@
+package server;
+
+
+import settings.BufferPool;
+import settings.FrameCompression;
+import settings.Message;
+import settings.MessageCodec;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.ReentrantLock;
+
+/*
+* Готовый к отправке кадр: 4 байта длины и закодированное сообщение. Кадр неизменяем, поэтому при
+* массовой рассылке сообщение кодируется один раз, а один и тот же кадр ставится в очереди всех
+* получателей. Каждая очередь удерживает кадр (retain) до окончания записи и затем освобождает (release).
+* Буфер кадра берется из пула BufferPool и возвращается в него, когда кадр освобождает последний владелец,
+* поэтому буфер обычно длиннее кадра.
+* */
+public final class Frame {
+    private final byte[] bytes;
+    private final int length;
+    //пул, в который возвращается буфер, или null для буфера не из пула
+    private final BufferPool pool;
+    private final AtomicInteger references;
+    //время создания кадра (System.nanoTime), по нему определяется, как долго кадр ждет в очереди клиента
+    private final long createdAt;
+    //нумерованное сообщение комнаты можно отбросить для медленного клиента: пропуск виден ему по номерам
+    private final boolean droppable;
+    //сжатый вариант кадра создается один раз для всех получателей, которые договорились о сжатии.
+    //Сжатие идет под ReentrantLock, а не synchronized: ожидающий его виртуальный поток не занимает поток-носитель
+    private final ReentrantLock compressionLock;
+    private volatile Frame compressed;
+    private boolean compressionTried;
+
+    private Frame(byte[] bytes, int length, BufferPool pool, long createdAt, boolean droppable) {
+        this.bytes = bytes;
+        this.length = length;
+        this.pool = pool;
+        this.createdAt = createdAt;
+        this.droppable = droppable;
+        references = new AtomicInteger(1);
+        compressionLock = new ReentrantLock();
+    }
+
+    /*созданный кадр принадлежит вызывающему, который должен вызвать release после рассылки*/
+    public static Frame encode(MessageCodec codec, Message message) throws IOException {
+        return encode(codec, message, message.getSequence() > 0);
+    }
+
+    /*droppable = false - кадр, адресованный одному клиенту, который политика медленного клиента не отбрасывает*/
+    public static Frame encode(MessageCodec codec, Message message, boolean droppable) throws IOException {
+        byte[] bytes = codec.encodeFrame(message, BufferPool.SHARED);
+        int length = ByteBuffer.wrap(bytes).getInt() + 4;
+        return new Frame(bytes, length, BufferPool.SHARED, System.nanoTime(), droppable);
+    }
+
+    public Frame retain() {
+        int count;
+        do {
+            count = references.get();
+            if (count <= 0)
+                throw new IllegalStateException("Frame is already released");
+        } while (!references.compareAndSet(count, count + 1));
+        return this;
+    }
+
+    /*возвращает true, если это была последняя ссылка на кадр*/
+    public boolean release() {
+        int count = references.decrementAndGet();
+        if (count < 0)
+            throw new IllegalStateException("Frame is released too many times");
+        if (count == 0) {
+            if (compressed != null && compressed != this)
+                compressed.release();
+            if (pool != null)
+                pool.release(bytes);
+        }
+        return count == 0;
+    }
+
+    /*
+    * сжатый вариант кадра или сам кадр, если сжатие не дает выигрыша. Сжатый кадр принадлежит исходному
+    * и освобождается вместе с ним, получатель удерживает его так же, как обычный (retain/release)
+    * */
+    public Frame compressed() {
+        Frame result = compressed;
+        if (result != null)
+            return result;
+        compressionLock.lock();
+        try {
+            if (!compressionTried) {
+                compressionTried = true;
+                byte[] data = FrameCompression.compress(bytes, 4, length - 4);
+                if (data != null) {
+                    byte[] frame = new byte[data.length + 4];
+                    ByteBuffer.wrap(frame).putInt(data.length | FrameCompression.COMPRESSED_FLAG).put(data);
+                    compressed = new Frame(frame, frame.length, null, createdAt, droppable);
+                } else {
+                    compressed = this;
+                }
+            }
+            return compressed;
+        } finally {
+            compressionLock.unlock();
+        }
+    }
+
+    /*размер закодированного сообщения без заголовка*/
+    public int payloadLength() {
+        return length - 4;
+    }
+
+    /*отдельное представление кадра для записи в канал, позиция у каждого получателя своя*/
+    public ByteBuffer buffer() {
+        return ByteBuffer.wrap(bytes, 0, length).asReadOnlyBuffer();
+    }
+
+    /*запись кадра в поток целиком*/
+    public void writeTo(OutputStream out) throws IOException {
+        out.write(bytes, 0, length);
+    }
+
+    /*копирует кадр в буфер с указанной позиции и возвращает позицию за кадром*/
+    public int copyTo(byte[] buffer, int offset) {
+        System.arraycopy(bytes, 0, buffer, offset, length);
+        return offset + length;
+    }
+
+    /*размер кадра вместе с заголовком*/
+    public int length() {
+        return length;
+    }
+
+    public long getCreatedAt() {
+        return createdAt;
+    }
+
+    public boolean isDroppable() {
+        return droppable;
+    }
+
+    public int referenceCount() {
+        return references.get();
+    }
+}
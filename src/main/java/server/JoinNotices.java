@@ -0,0 +1,214 @@
+package server;
+
+
+import settings.Message;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+
+/*
+* Уведомления о входе и выходе пользователей. Когда одновременно подключаются сотни клиентов, отдельное
+* уведомление о каждом означает рассылку каждому участнику комнаты по кадру на каждого вошедшего.
+* Поэтому события собираются в течение окна windowMs и рассылаются одним сообщением на комнату
+* ("37 USERS JOINED THE CHAT: ..."), а уведомления в одну комнату отправляются не чаще noticesPerSecond раз в секунду.
+* Вход и выход одного логина в пределах окна (переподключение) взаимно сокращаются.
+* Рассылка идет из отдельного потока, поэтому обычные сообщения уведомлений не ждут.
+* При windowMs = 0 каждое уведомление отправляется сразу, в потоке вызвавшего.
+* */
+class JoinNotices {
+    /*сколько логинов перечисляется в одном уведомлении, об остальных сообщается только число*/
+    static final int MAX_LISTED_LOGINS = 20;
+
+    interface Sender {
+        /*exceptLogin - кому уведомление не отправлять, может быть null*/
+        void sendNotice(Room room, Message message, String exceptLogin) throws IOException;
+    }
+
+    private final Sender sender;
+    private final long windowMs;
+    private final long minIntervalMs;
+    private final Lock lock;
+    //события, ожидающие рассылки, по комнатам в порядке появления
+    private final Map<Room, Pending> pending;
+    private final AtomicLong events;
+    private final AtomicLong notices;
+    private ScheduledExecutorService scheduler;
+    private boolean scheduled;
+    private long lastFlushMs;
+    private boolean stopped;
+
+    JoinNotices(Sender sender, long windowMs, int noticesPerSecond) {
+        this.sender = sender;
+        this.windowMs = windowMs;
+        minIntervalMs = noticesPerSecond > 0 ? 1000 / noticesPerSecond : 0;
+        lock = new ReentrantLock();
+        pending = new LinkedHashMap<Room, Pending>();
+        events = new AtomicLong();
+        notices = new AtomicLong();
+    }
+
+    void joined(Room room, String login) {
+        events.incrementAndGet();
+        if (windowMs <= 0) {
+            send(room, "USER '" + login + "' JOIN THE CHAT.", login);
+            return;
+        }
+        lock.lock();
+        try {
+            Pending p = pendingFor(room);
+            //вышел и снова вошел в пределах окна - сообщать не о чем
+            if (!p.quit.remove(login))
+                p.joined.add(login);
+            schedule();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    void left(Room room, String login) {
+        events.incrementAndGet();
+        if (windowMs <= 0) {
+            send(room, "USER '" + login + "' QUIT THE CHAT.", login);
+            return;
+        }
+        lock.lock();
+        try {
+            Pending p = pendingFor(room);
+            if (!p.joined.remove(login))
+                p.quit.add(login);
+            schedule();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /*рассылает все накопленные уведомления; вызывается по расписанию, а также при остановке сервера*/
+    void flush() {
+        List<Map.Entry<Room, Pending>> batch;
+        lock.lock();
+        try {
+            scheduled = false;
+            lastFlushMs = System.currentTimeMillis();
+            batch = new ArrayList<Map.Entry<Room, Pending>>(pending.entrySet());
+            pending.clear();
+        } finally {
+            lock.unlock();
+        }
+        for (Map.Entry<Room, Pending> e : batch) {
+            Pending p = e.getValue();
+            if (p.joined.isEmpty() && p.quit.isEmpty())
+                continue;
+            StringBuilder text = new StringBuilder();
+            describe(text, p.joined, "JOIN", "JOINED");
+            describe(text, p.quit, "QUIT", "QUIT");
+            //единственный вошедший, как и раньше, уведомление о себе не получает
+            String except = p.quit.isEmpty() && p.joined.size() == 1 ? p.joined.iterator().next() : null;
+            send(e.getKey(), text.toString(), except);
+        }
+    }
+
+    void stop() {
+        lock.lock();
+        try {
+            stopped = true;
+            if (scheduler != null)
+                scheduler.shutdownNow();
+        } finally {
+            lock.unlock();
+        }
+        flush();
+    }
+
+    /*вызывается под замком: рассылка не раньше конца окна и не раньше, чем через minIntervalMs после предыдущей*/
+    private void schedule() {
+        if (scheduled || stopped)
+            return;
+        if (scheduler == null) {
+            scheduler = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable r) {
+                    Thread thread = new Thread(r, "join-notices");
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+        }
+        long delay = Math.max(windowMs, lastFlushMs + minIntervalMs - System.currentTimeMillis());
+        scheduler.schedule(new Runnable() {
+            @Override
+            public void run() {
+                flush();
+            }
+        }, delay, TimeUnit.MILLISECONDS);
+        scheduled = true;
+    }
+
+    private Pending pendingFor(Room room) {
+        Pending p = pending.get(room);
+        if (p == null) {
+            p = new Pending();
+            pending.put(room, p);
+        }
+        return p;
+    }
+
+    private static void describe(StringBuilder text, Set<String> logins, String single, String plural) {
+        if (logins.isEmpty())
+            return;
+        if (text.length() > 0)
+            text.append("\n");
+        if (logins.size() == 1) {
+            text.append("USER '").append(logins.iterator().next()).append("' ").append(single).append(" THE CHAT.");
+            return;
+        }
+        text.append(logins.size()).append(" USERS ").append(plural).append(" THE CHAT: ");
+        int listed = 0;
+        for (String login : logins) {
+            if (listed == MAX_LISTED_LOGINS)
+                break;
+            if (listed++ > 0)
+                text.append(", ");
+            text.append(login);
+        }
+        if (logins.size() > MAX_LISTED_LOGINS)
+            text.append(" AND ").append(logins.size() - MAX_LISTED_LOGINS).append(" MORE");
+        text.append(".");
+    }
+
+    private void send(Room room, String text, String exceptLogin) {
+        Message message = new Message();
+        message.setMessage(text);
+        try {
+            sender.sendNotice(room, message, exceptLogin);
+            notices.incrementAndGet();
+        } catch (Exception e) {
+            System.out.println("Notice error: " + e);
+        }
+    }
+
+    /*число событий входа и выхода и число разосланных уведомлений*/
+    long getEvents() {
+        return events.get();
+    }
+
+    long getNotices() {
+        return notices.get();
+    }
+
+    private static class Pending {
+        final Set<String> joined = new LinkedHashSet<String>();
+        final Set<String> quit = new LinkedHashSet<String>();
+    }
+}
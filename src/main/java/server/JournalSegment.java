@@ -0,0 +1,253 @@
+package server;
+
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.util.zip.CRC32;
+
+/*
+* Сегмент журнала: файл записей <baseOffset>.log и файл индекса <baseOffset>.index, оба отображены в память.
+* Файл записей начинается с заголовка: 4 байта MAGIC и 4 байта версии формата записей. Сегменты, записанные
+* до появления заголовка, начинаются сразу с записей и читаются как версия 0 (формат записей тот же).
+* Запись - 4 байта длины, 4 байта CRC32 и данные. Индекс хранит позицию каждой записи в файле, поэтому
+* запись с нужным номером читается без просмотра сегмента. Файлы создаются сразу полного размера,
+* конец записанной части определяется по первой записи с нулевой длиной или неверной контрольной суммой.
+* Файлы следующего сегмента можно создать заранее (prepare) и затем только переименовать (claimPrepared).
+* */
+class JournalSegment {
+    static final int HEADER_SIZE = 8;
+    static final int FILE_HEADER_SIZE = 8;
+    //"JRNL"
+    static final int MAGIC = 0x4A524E4C;
+    static final int VERSION = 1;
+    private static final int INDEX_ENTRY_SIZE = 4;
+    //минимальный размер записи, по нему рассчитывается емкость индекса
+    private static final int MIN_RECORD_SIZE = 16;
+    private static final String PREPARED_LOG = "prepared.log.tmp";
+    private static final String PREPARED_INDEX = "prepared.index.tmp";
+
+    private final long baseOffset;
+    private final File logFile;
+    private final File indexFile;
+    private final MappedByteBuffer log;
+    private final MappedByteBuffer index;
+    private final int maxRecords;
+    private int position;
+    private int count;
+    private int version;
+    //отображение снято, обращаться к буферам больше нельзя
+    private boolean closed;
+
+    JournalSegment(File dir, long baseOffset, int segmentSize) throws IOException {
+        this.baseOffset = baseOffset;
+        logFile = new File(dir, String.format("%020d.log", baseOffset));
+        indexFile = new File(dir, String.format("%020d.index", baseOffset));
+        //сегмент, созданный с другим размером, открывается с тем размером, который у него уже есть
+        int size = logFile.length() > 0 ? (int) Math.min(logFile.length(), Integer.MAX_VALUE) : segmentSize;
+        maxRecords = maxRecords(size);
+        log = map(logFile, size);
+        index = map(indexFile, maxRecords * INDEX_ENTRY_SIZE);
+        try {
+            position = readHeader();
+        } catch (IOException e) {
+            close();
+            throw e;
+        }
+        recover();
+    }
+
+    private static int maxRecords(int size) {
+        return Math.max(1, size / MIN_RECORD_SIZE);
+    }
+
+    /*создает файлы следующего сегмента полного размера, чтобы при переходе на него осталось только переименование*/
+    static void prepare(File dir, int segmentSize) throws IOException {
+        allocate(new File(dir, PREPARED_LOG), segmentSize);
+        allocate(new File(dir, PREPARED_INDEX), maxRecords(segmentSize) * INDEX_ENTRY_SIZE);
+    }
+
+    private static void allocate(File file, int size) throws IOException {
+        try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+            raf.setLength(size);
+        }
+    }
+
+    /*
+    * отдает заранее созданные файлы сегменту baseOffset; если переименовать не удалось,
+    * конструктор сегмента просто создаст файлы заново
+    * */
+    static void claimPrepared(File dir, long baseOffset) {
+        new File(dir, PREPARED_LOG).renameTo(new File(dir, String.format("%020d.log", baseOffset)));
+        new File(dir, PREPARED_INDEX).renameTo(new File(dir, String.format("%020d.index", baseOffset)));
+    }
+
+    /*заготовка, оставшаяся от прошлого запуска, могла быть создана с другим размером сегмента*/
+    static void deletePrepared(File dir) {
+        new File(dir, PREPARED_LOG).delete();
+        new File(dir, PREPARED_INDEX).delete();
+    }
+
+    private static MappedByteBuffer map(File file, int size) throws IOException {
+        try (RandomAccessFile raf = new RandomAccessFile(file, "rw");
+             FileChannel channel = raf.getChannel()) {
+            return channel.map(FileChannel.MapMode.READ_WRITE, 0, size);
+        }
+    }
+
+    /*
+    * возвращает позицию первой записи. Пустому файлу записывается заголовок текущей версии;
+    * сегмент более новой версии не открывается, чтобы не дописать в него записи старого формата
+    * */
+    private int readHeader() throws IOException {
+        if (log.capacity() < FILE_HEADER_SIZE + HEADER_SIZE)
+            throw new IOException("Journal segment " + logFile + " is too small: " + log.capacity());
+        int first = log.getInt(0);
+        if (first == MAGIC) {
+            version = log.getInt(4);
+            if (version > VERSION)
+                throw new IOException("Journal segment " + logFile + " has unsupported version " + version);
+            return FILE_HEADER_SIZE;
+        }
+        if (first == 0) {
+            log.putInt(4, VERSION);
+            log.putInt(0, MAGIC);
+            version = VERSION;
+            return FILE_HEADER_SIZE;
+        }
+        //сегмент без заголовка: первое слово - длина первой записи
+        version = 0;
+        return 0;
+    }
+
+    /*находит конец записанной части и заново строит индекс; оборванная последняя запись отбрасывается*/
+    private void recover() {
+        CRC32 crc = new CRC32();
+        count = 0;
+        while (count < maxRecords && position + HEADER_SIZE <= log.capacity()) {
+            int length = log.getInt(position);
+            if (length <= 0 || position + HEADER_SIZE + length > log.capacity())
+                break;
+            if (checksum(crc, position + HEADER_SIZE, length) != log.getInt(position + 4))
+                break;
+            index.putInt(count * INDEX_ENTRY_SIZE, position);
+            count++;
+            position += HEADER_SIZE + length;
+        }
+        //хвост после последней целой записи обнуляем, чтобы новая запись не склеилась со старыми данными
+        if (position + 4 <= log.capacity())
+            log.putInt(position, 0);
+    }
+
+    /*сумма считается по отображению файла целиком, без побайтового чтения*/
+    private int checksum(CRC32 crc, int offset, int length) {
+        crc.reset();
+        ByteBuffer data = log.duplicate();
+        data.limit(offset + length);
+        data.position(offset);
+        crc.update(data);
+        return (int) crc.getValue();
+    }
+
+    boolean hasRoomFor(int length) {
+        return count < maxRecords && position + HEADER_SIZE + length + 4 <= log.capacity();
+    }
+
+    /*возвращает номер записи; вызывающий гарантирует, что запись помещается (hasRoomFor)*/
+    long append(byte[] data, int checksum) {
+        int start = position;
+        ByteBuffer target = log.duplicate();
+        target.position(start + HEADER_SIZE);
+        target.put(data);
+        //признак конца записанной части после новой записи
+        log.putInt(start + HEADER_SIZE + data.length, 0);
+        log.putInt(start + 4, checksum);
+        //длина пишется последней: запись без длины при восстановлении считается незаписанной
+        log.putInt(start, data.length);
+        index.putInt(count * INDEX_ENTRY_SIZE, start);
+        position = start + HEADER_SIZE + data.length;
+        return baseOffset + count++;
+    }
+
+    /*данные записи с номером offset, номер должен принадлежать сегменту*/
+    byte[] read(long offset) {
+        int start = index.getInt((int) (offset - baseOffset) * INDEX_ENTRY_SIZE);
+        int length = log.getInt(start);
+        byte[] data = new byte[length];
+        ByteBuffer source = log.duplicate();
+        source.position(start + HEADER_SIZE);
+        source.get(data);
+        return data;
+    }
+
+    /*сброс в фоне может прийти уже после закрытия сегмента, тогда он ничего не делает*/
+    synchronized void force() {
+        if (closed)
+            return;
+        log.force();
+        index.force();
+    }
+
+    /*снимает отображение файлов; после этого сегмент нельзя ни читать, ни дописывать*/
+    synchronized void close() {
+        if (closed)
+            return;
+        closed = true;
+        unmap(log);
+        unmap(index);
+    }
+
+    /*
+    * отображение снимается сразу, не дожидаясь сборщика мусора. Начиная с Java 9 для этого есть
+    * Unsafe.invokeCleaner, в Java 8 - внутренний Cleaner буфера; обе возможности ищутся через рефлексию
+    * */
+    private static void unmap(MappedByteBuffer buffer) {
+        try {
+            Class<?> unsafeClass = Class.forName("sun.misc.Unsafe");
+            Method invokeCleaner;
+            try {
+                invokeCleaner = unsafeClass.getMethod("invokeCleaner", ByteBuffer.class);
+            } catch (NoSuchMethodException e) {
+                Method cleanerMethod = buffer.getClass().getMethod("cleaner");
+                cleanerMethod.setAccessible(true);
+                Object cleaner = cleanerMethod.invoke(buffer);
+                if (cleaner != null)
+                    cleaner.getClass().getMethod("clean").invoke(cleaner);
+                return;
+            }
+            Field theUnsafe = unsafeClass.getDeclaredField("theUnsafe");
+            theUnsafe.setAccessible(true);
+            invokeCleaner.invoke(theUnsafe.get(null), buffer);
+        } catch (Exception e) {
+            //отображение освободит сборщик мусора, но на Windows файл до этого не удалится
+            System.out.println("Journal segment unmap error: " + e);
+        }
+    }
+
+    boolean delete() {
+        return logFile.delete() & indexFile.delete();
+    }
+
+    long getBaseOffset() {
+        return baseOffset;
+    }
+
+    /*номер, который получит следующая запись сегмента*/
+    long getNextOffset() {
+        return baseOffset + count;
+    }
+
+    int getSize() {
+        return position;
+    }
+
+    /*версия формата записей сегмента, 0 - сегмент записан до появления заголовка*/
+    int getVersion() {
+        return version;
+    }
+}
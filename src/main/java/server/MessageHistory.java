@@ -0,0 +1,115 @@
+package server;
+
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/*
+* История последних сообщений фиксированного размера на кольцевом буфере. Каждое сообщение получает
+* порядковый номер, добавление не требует замков и не копирует массив: новый элемент просто занимает
+* ячейку самого старого. Снимок для вновь подключившегося собирается по номерам и содержит только
+* полностью записанные сообщения без пропусков.
+* */
+public class MessageHistory {
+    private final int capacity;
+    private final AtomicReferenceArray<Entry> slots;
+    private final AtomicLong nextSequence;
+    private final long firstSequence;
+
+    public MessageHistory(int capacity) {
+        this(capacity, 1);
+    }
+
+    /*история, продолжающая нумерацию с firstSequence, например восстановленная из журнала*/
+    public MessageHistory(int capacity, long firstSequence) {
+        if (capacity <= 0)
+            throw new IllegalArgumentException("History capacity must be positive: " + capacity);
+        if (firstSequence <= 0)
+            throw new IllegalArgumentException("History sequence must be positive: " + firstSequence);
+        this.capacity = capacity;
+        this.firstSequence = firstSequence;
+        slots = new AtomicReferenceArray<Entry>(capacity);
+        nextSequence = new AtomicLong(firstSequence);
+    }
+
+    /*
+    * возвращает порядковый номер добавленного сообщения, номера начинаются с 1.
+    * Писатель, задержавшийся между получением номера и записью, мог быть обогнан на целый круг:
+    * тогда в его ячейке уже лежит более новое сообщение, и старое не должно его затирать
+    * */
+    public long append(String message) {
+        long sequence = nextSequence.getAndIncrement();
+        Entry entry = new Entry(sequence, message);
+        int index = index(sequence);
+        while (true) {
+            Entry current = slots.get(index);
+            if (current != null && current.sequence > sequence)
+                break;
+            if (slots.compareAndSet(index, current, entry))
+                break;
+        }
+        return sequence;
+    }
+
+    public List<Entry> snapshot() {
+        return snapshotAfter(0);
+    }
+
+    /*сообщения с номерами больше указанного, в порядке номеров*/
+    public List<Entry> snapshotAfter(long sequence) {
+        long end = nextSequence.get();
+        long start = Math.max(Math.max(firstSequence, end - capacity), sequence + 1);
+        List<Entry> entries = new ArrayList<Entry>((int) Math.max(0, end - start));
+        for (long s = start; s < end; s++) {
+            Entry entry = slots.get(index(s));
+            if (entry == null || entry.sequence < s)
+                break; //номер уже выдан, но сообщение еще не записано - дальше снимок был бы с пропуском
+            if (entry.sequence == s)
+                entries.add(entry);
+            //если номер в ячейке больше, сообщение уже вытеснено более новым
+        }
+        return entries;
+    }
+
+    /*номер последнего добавленного сообщения; если сообщений не было - номер, предшествующий первому*/
+    public long lastSequence() {
+        return nextSequence.get() - 1;
+    }
+
+    public int size() {
+        return (int) Math.min(capacity, nextSequence.get() - firstSequence);
+    }
+
+    /*номер самого старого сообщения, которое еще хранится в истории; для пустой истории - номер следующего*/
+    public long firstRetainedSequence() {
+        return nextSequence.get() - size();
+    }
+
+    public int getCapacity() {
+        return capacity;
+    }
+
+    private int index(long sequence) {
+        return (int) (sequence % capacity);
+    }
+
+    public static class Entry {
+        private final long sequence;
+        private final String message;
+
+        Entry(long sequence, String message) {
+            this.sequence = sequence;
+            this.message = message;
+        }
+
+        public long getSequence() {
+            return sequence;
+        }
+
+        public String getMessage() {
+            return message;
+        }
+    }
+}
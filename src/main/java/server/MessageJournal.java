@@ -0,0 +1,419 @@
+package server;
+
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.CRC32;
+
+/*
+* Журнал сообщений чата только на добавление. Записи пишутся в сегменты, отображенные в память,
+* и получают сквозные номера (offset). Когда сегмент заполняется, открывается следующий, а самые старые
+* сегменты сверх заданного числа удаляются.
+* Рассылка в комнате только ставит запись в очередь журнала: кодирует, считает контрольную сумму
+* и копирует в сегмент единственный поток записи, поэтому комнаты не ждут друг друга на общем журнале.
+* Записи одной комнаты ставятся в очередь под замком комнаты и попадают в журнал в ее порядке.
+* Файлы следующего сегмента создаются заранее в фоне, сброс на диск (force) выполняется раз в flushIntervalMs.
+* При сбое процесса могут потеряться записи последнего интервала и еще не записанные из очереди.
+* */
+public class MessageJournal {
+    //номер сообщения в комнате и длина названия комнаты
+    private static final int RECORD_HEADER_SIZE = 8 + 2;
+    private static final int QUEUE_SIZE = 64 * 1024;
+    private static final int MAX_BATCH = 256;
+
+    private final File dir;
+    private final int segmentSize;
+    private final int maxSegments;
+    private final TreeMap<Long, JournalSegment> segments;
+    private final BlockingQueue<Pending> queue;
+    private final Thread writer;
+    private final ScheduledExecutorService flusher;
+    private final CRC32 crc;
+    private final AtomicLong dropped;
+    private JournalSegment active;
+    //заготовка файлов следующего сегмента уже поставлена в фоновый поток; при ошибке заготовки поток сбрасывает признак
+    private volatile boolean prepareScheduled;
+    //файлы следующего сегмента созданы и ждут переименования
+    private volatile boolean prepared;
+    private volatile boolean dirty;
+    private volatile boolean closed;
+
+    public MessageJournal(File dir, int segmentSize, int maxSegments, long flushIntervalMs) throws IOException {
+        if (!dir.isDirectory() && !dir.mkdirs())
+            throw new IOException("Cannot create journal directory " + dir);
+        if (segmentSize <= JournalSegment.FILE_HEADER_SIZE + JournalSegment.HEADER_SIZE * 2)
+            throw new IllegalArgumentException("Journal segment is too small: " + segmentSize);
+        this.dir = dir;
+        this.segmentSize = segmentSize;
+        this.maxSegments = Math.max(1, maxSegments);
+        segments = new TreeMap<Long, JournalSegment>();
+        queue = new LinkedBlockingQueue<Pending>(QUEUE_SIZE);
+        crc = new CRC32();
+        dropped = new AtomicLong();
+        open();
+
+        flusher = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "journal-flush");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        flusher.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                flush();
+            }
+        }, flushIntervalMs, flushIntervalMs, TimeUnit.MILLISECONDS);
+        schedulePrepare();
+
+        writer = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                writeLoop();
+            }
+        }, "journal-writer");
+        writer.setDaemon(true);
+        writer.start();
+    }
+
+    private void open() throws IOException {
+        JournalSegment.deletePrepared(dir);
+        File[] files = dir.listFiles();
+        long[] offsets = new long[files == null ? 0 : files.length];
+        int n = 0;
+        if (files != null) {
+            for (File file : files) {
+                String fileName = file.getName();
+                if (fileName.endsWith(".log")) {
+                    try {
+                        long offset = Long.parseLong(fileName.substring(0, fileName.length() - 4));
+                        offsets[n++] = offset;
+                    } catch (NumberFormatException e) {
+                        //посторонний файл в каталоге журнала пропускаем
+                    }
+                }
+            }
+        }
+        Arrays.sort(offsets, 0, n);
+        try {
+            for (int i = 0; i < n; i++) {
+                JournalSegment segment = new JournalSegment(dir, offsets[i], segmentSize);
+                segments.put(segment.getBaseOffset(), segment);
+            }
+        } catch (IOException e) {
+            //журнал не открылся, например сегмент более новой версии: уже открытые сегменты отпускаем
+            for (JournalSegment segment : segments.values()) {
+                segment.close();
+            }
+            segments.clear();
+            throw e;
+        }
+        if (segments.isEmpty()) {
+            active = new JournalSegment(dir, 0, segmentSize);
+            segments.put(0L, active);
+        } else {
+            active = segments.lastEntry().getValue();
+        }
+        applyRetention();
+    }
+
+    /*
+    * ставит запись в очередь потока записи и сразу возвращается. Возвращает false, если журнал закрыт
+    * или очередь переполнена (диск не успевает) - такая запись останется только в истории в памяти
+    * */
+    public boolean append(String room, long sequence, String message) {
+        if (closed)
+            return false;
+        if (!queue.offer(new Pending(room, sequence, message, null))) {
+            if (dropped.getAndIncrement() == 0)
+                System.out.println("Journal queue is full, records are dropped");
+            return false;
+        }
+        return true;
+    }
+
+    /*ожидает, пока поток записи обработает все записи, поставленные до вызова*/
+    public void sync() throws InterruptedException {
+        if (!writer.isAlive())
+            return;
+        CountDownLatch written = new CountDownLatch(1);
+        queue.put(new Pending(null, 0, null, written));
+        while (!written.await(100, TimeUnit.MILLISECONDS)) {
+            if (!writer.isAlive())
+                return;
+        }
+    }
+
+    private void writeLoop() {
+        List<Pending> batch = new ArrayList<Pending>(MAX_BATCH);
+        try {
+            while (true) {
+                batch.add(queue.take());
+                queue.drainTo(batch, MAX_BATCH - 1);
+                boolean stop = write(batch);
+                batch.clear();
+                if (stop)
+                    return;
+            }
+        } catch (InterruptedException e) {
+            //журнал закрывается
+        }
+    }
+
+    /*пишет пачку записей; возвращает true, если в пачке была команда остановки*/
+    private boolean write(List<Pending> batch) {
+        boolean stop = false;
+        synchronized (this) {
+            for (Pending pending : batch) {
+                if (pending == Pending.STOP) {
+                    stop = true;
+                } else if (pending.written == null) {
+                    try {
+                        if (writeRecord(pending) < 0)
+                            System.out.println("Journal record of room " + pending.room + " is larger than a segment");
+                    } catch (IOException e) {
+                        //ошибка диска не должна прерывать чат, сообщение остается в истории в памяти
+                        System.out.println("Journal error: " + e);
+                    }
+                }
+            }
+        }
+        dirty = true;
+        for (Pending pending : batch) {
+            if (pending.written != null)
+                pending.written.countDown();
+        }
+        return stop;
+    }
+
+    /*только поток записи под замком журнала; возвращает номер записи или -1, если запись больше сегмента*/
+    private long writeRecord(Pending pending) throws IOException {
+        byte[] roomBytes = pending.room.getBytes(StandardCharsets.UTF_8);
+        byte[] messageBytes = pending.message.getBytes(StandardCharsets.UTF_8);
+        byte[] data = new byte[RECORD_HEADER_SIZE + roomBytes.length + messageBytes.length];
+        ByteBuffer.wrap(data).putLong(pending.sequence).putShort((short) roomBytes.length).put(roomBytes).put(messageBytes);
+
+        if (!active.hasRoomFor(data.length)) {
+            if (active.getNextOffset() == active.getBaseOffset())
+                return -1;
+            roll();
+            if (!active.hasRoomFor(data.length))
+                return -1;
+        }
+        crc.reset();
+        crc.update(data, 0, data.length);
+        return active.append(data, (int) crc.getValue());
+    }
+
+    private void roll() throws IOException {
+        final JournalSegment full = active;
+        long baseOffset = full.getNextOffset();
+        //заранее созданные файлы только переименовываются; если заготовка не успела, файлы создаются здесь
+        if (prepared) {
+            prepared = false;
+            prepareScheduled = false;
+            JournalSegment.claimPrepared(dir, baseOffset);
+        }
+        active = new JournalSegment(dir, baseOffset, segmentSize);
+        segments.put(active.getBaseOffset(), active);
+        //заполненный сегмент сбрасывается на диск в фоне, а не в потоке записи
+        flusher.execute(new Runnable() {
+            @Override
+            public void run() {
+                full.force();
+            }
+        });
+        schedulePrepare();
+        applyRetention();
+    }
+
+    private void schedulePrepare() {
+        if (prepareScheduled)
+            return;
+        prepareScheduled = true;
+        flusher.execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    JournalSegment.prepare(dir, segmentSize);
+                    prepared = true;
+                } catch (IOException e) {
+                    System.out.println("Journal segment preparation error: " + e);
+                    //следующая смена сегмента попробует заготовить файлы еще раз
+                    prepareScheduled = false;
+                }
+            }
+        });
+    }
+
+    /*отображение сегмента снимается до удаления файлов, иначе файл нельзя удалить (Windows) и память не освобождается*/
+    private void applyRetention() {
+        while (segments.size() > maxSegments) {
+            JournalSegment oldest = segments.pollFirstEntry().getValue();
+            oldest.close();
+            if (!oldest.delete())
+                System.out.println("Journal segment " + oldest.getBaseOffset() + " was not deleted");
+        }
+    }
+
+    /*не больше maxCount записей, начиная с номера offset; номера старше удаленных сегментов пропускаются*/
+    public synchronized List<Record> read(long offset, int maxCount) {
+        List<Record> records = new ArrayList<Record>();
+        if (segments.isEmpty())
+            return records;
+        long first = getFirstOffset();
+        if (offset < first)
+            offset = first;
+        while (records.size() < maxCount) {
+            Map.Entry<Long, JournalSegment> entry = segments.floorEntry(offset);
+            if (entry == null)
+                break;
+            JournalSegment segment = entry.getValue();
+            if (offset >= segment.getNextOffset()) {
+                //сегмент прочитан до конца, переходим к следующему
+                Long next = segments.higherKey(entry.getKey());
+                if (next == null)
+                    break;
+                offset = next;
+                continue;
+            }
+            records.add(decode(offset, segment.read(offset)));
+            offset++;
+        }
+        return records;
+    }
+
+    private static Record decode(long offset, byte[] data) {
+        ByteBuffer buffer = ByteBuffer.wrap(data);
+        long sequence = buffer.getLong();
+        int roomLength = buffer.getShort() & 0xFFFF;
+        String room = new String(data, RECORD_HEADER_SIZE, roomLength, StandardCharsets.UTF_8);
+        int messageStart = RECORD_HEADER_SIZE + roomLength;
+        String message = new String(data, messageStart, data.length - messageStart, StandardCharsets.UTF_8);
+        return new Record(offset, room, sequence, message);
+    }
+
+    public synchronized long getFirstOffset() {
+        return segments.firstKey();
+    }
+
+    /*номер, который получит следующая запись, без учета записей, еще ждущих в очереди*/
+    public synchronized long getNextOffset() {
+        return active.getNextOffset();
+    }
+
+    public synchronized int getSegmentCount() {
+        return segments.size();
+    }
+
+    /*число записей, не попавших в журнал из-за переполнения очереди*/
+    public long getDroppedRecords() {
+        return dropped.get();
+    }
+
+    private void flush() {
+        if (!dirty)
+            return;
+        dirty = false;
+        JournalSegment segment;
+        synchronized (this) {
+            if (segments.isEmpty())
+                return;
+            segment = active;
+        }
+        segment.force();
+    }
+
+    /*дописывает записи из очереди, сбрасывает их на диск и снимает отображение всех сегментов*/
+    public void close() {
+        synchronized (this) {
+            if (closed)
+                return;
+            closed = true;
+        }
+        try {
+            queue.put(Pending.STOP);
+            writer.join(TimeUnit.SECONDS.toMillis(5));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        flusher.shutdown();
+        try {
+            flusher.awaitTermination(5, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        synchronized (this) {
+            active.force();
+            for (JournalSegment segment : segments.values()) {
+                segment.close();
+            }
+            segments.clear();
+        }
+    }
+
+    /*запись, ожидающая потока записи; written - отметка для sync, сама ничего не пишет*/
+    private static class Pending {
+        static final Pending STOP = new Pending(null, 0, null, null);
+
+        final String room;
+        final long sequence;
+        final String message;
+        final CountDownLatch written;
+
+        Pending(String room, long sequence, String message, CountDownLatch written) {
+            this.room = room;
+            this.sequence = sequence;
+            this.message = message;
+            this.written = written;
+        }
+    }
+
+    public static class Record {
+        private final long offset;
+        private final String room;
+        private final long sequence;
+        private final String message;
+
+        public Record(long offset, String room, long sequence, String message) {
+            this.offset = offset;
+            this.room = room;
+            this.sequence = sequence;
+            this.message = message;
+        }
+
+        public long getOffset() {
+            return offset;
+        }
+
+        public String getRoom() {
+            return room;
+        }
+
+        /*номер сообщения в истории комнаты*/
+        public long getSequence() {
+            return sequence;
+        }
+
+        public String getMessage() {
+            return message;
+        }
+    }
+}
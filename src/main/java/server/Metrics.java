@@ -0,0 +1,242 @@
+package server;
+
+
+import javax.management.Attribute;
+import javax.management.AttributeList;
+import javax.management.AttributeNotFoundException;
+import javax.management.DynamicMBean;
+import javax.management.MBeanAttributeInfo;
+import javax.management.MBeanInfo;
+import javax.management.MBeanOperationInfo;
+import javax.management.ReflectionException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.ConcurrentSkipListSet;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongBinaryOperator;
+
+/*
+* Реестр метрик сервера: счетчики, таймеры и показатели (gauge), значение которых вычисляется при чтении.
+* Метрики доступны по JMX (каждая метрика - атрибут MBean, у таймера три атрибута: .count, .meanMicros,
+* .maxMicros) и выводятся командой консоли /STATS. Запись метрик не блокирует: счетчики построены на LongAdder.
+* Метрики, зарегистрированные через jvmGauge/jvmTimer, считаются статическими счетчиками на весь процесс
+* (трафик сокетов, сжатие, пул буферов): если в JVM запущено несколько серверов, все они показывают одно
+* и то же общее значение. В отчете такие метрики помечены JVM_MARK, в JMX - описанием атрибута.
+* */
+public class Metrics implements DynamicMBean {
+    public static final String JVM_MARK = " (JVM)";
+    private static final LongBinaryOperator MAX = new LongBinaryOperator() {
+        @Override
+        public long applyAsLong(long left, long right) {
+            return Math.max(left, right);
+        }
+    };
+
+    private final ConcurrentMap<String, Counter> counters = new ConcurrentSkipListMap<String, Counter>();
+    private final ConcurrentMap<String, Timer> timers = new ConcurrentSkipListMap<String, Timer>();
+    private final ConcurrentMap<String, Gauge> gauges = new ConcurrentSkipListMap<String, Gauge>();
+    private final Set<String> jvmWide = new ConcurrentSkipListSet<String>();
+
+    /*показатель, значение которого вычисляется при каждом чтении*/
+    public interface Gauge {
+        long value();
+    }
+
+    public static class Counter {
+        private final LongAdder value = new LongAdder();
+
+        public void increment() {
+            value.increment();
+        }
+
+        public void add(long delta) {
+            value.add(delta);
+        }
+
+        public long get() {
+            return value.sum();
+        }
+    }
+
+    public static class Timer {
+        private final LongAdder count = new LongAdder();
+        private final LongAdder totalNanos = new LongAdder();
+        private final LongAccumulator maxNanos = new LongAccumulator(MAX, 0);
+
+        public void record(long nanos) {
+            count.increment();
+            totalNanos.add(nanos);
+            maxNanos.accumulate(nanos);
+        }
+
+        /*записывает время, прошедшее с момента start (System.nanoTime)*/
+        public void recordSince(long start) {
+            record(System.nanoTime() - start);
+        }
+
+        public long getCount() {
+            return count.sum();
+        }
+
+        public double getMeanMicros() {
+            long n = count.sum();
+            return n == 0 ? 0 : totalNanos.sum() / 1000.0 / n;
+        }
+
+        public double getMaxMicros() {
+            return maxNanos.get() / 1000.0;
+        }
+    }
+
+    /*метрика с таким именем создается один раз, повторный вызов возвращает существующую*/
+    public Counter counter(String name) {
+        Counter counter = counters.get(name);
+        if (counter == null) {
+            counter = new Counter();
+            Counter previous = counters.putIfAbsent(name, counter);
+            if (previous != null)
+                counter = previous;
+        }
+        return counter;
+    }
+
+    public Timer timer(String name) {
+        Timer timer = timers.get(name);
+        if (timer == null) {
+            timer = new Timer();
+            Timer previous = timers.putIfAbsent(name, timer);
+            if (previous != null)
+                timer = previous;
+        }
+        return timer;
+    }
+
+    /*регистрация таймера, который ведется вне реестра*/
+    public void timer(String name, Timer timer) {
+        timers.put(name, timer);
+    }
+
+    public void gauge(String name, Gauge gauge) {
+        gauges.put(name, gauge);
+    }
+
+    /*показатель общего на всю JVM счетчика, а не этого сервера*/
+    public void jvmGauge(String name, Gauge gauge) {
+        jvmWide.add(name);
+        gauge(name, gauge);
+    }
+
+    /*таймер, который ведется общим на всю JVM*/
+    public void jvmTimer(String name, Timer timer) {
+        jvmWide.add(name);
+        timer(name, timer);
+    }
+
+    /*строки отчета, отсортированные по имени метрики*/
+    public List<String> report() {
+        Map<String, String> lines = new TreeMap<String, String>();
+        for (Map.Entry<String, Counter> e : counters.entrySet()) {
+            lines.put(e.getKey(), e.getKey() + " = " + e.getValue().get());
+        }
+        for (Map.Entry<String, Gauge> e : gauges.entrySet()) {
+            lines.put(e.getKey(), e.getKey() + " = " + e.getValue().value() + mark(e.getKey()));
+        }
+        for (Map.Entry<String, Timer> e : timers.entrySet()) {
+            Timer t = e.getValue();
+            lines.put(e.getKey(), String.format("%s: count %d, mean %.1f us, max %.1f us%s",
+                    e.getKey(), t.getCount(), t.getMeanMicros(), t.getMaxMicros(), mark(e.getKey())));
+        }
+        return new ArrayList<String>(lines.values());
+    }
+
+    private String mark(String name) {
+        return jvmWide.contains(name) ? JVM_MARK : "";
+    }
+
+    private String describe(String name, String description) {
+        return jvmWide.contains(name) ? description + ", JVM-wide: shared by all servers in the process" : description;
+    }
+
+    /*значение метрики по имени атрибута JMX*/
+    Object value(String attribute) {
+        Counter counter = counters.get(attribute);
+        if (counter != null)
+            return counter.get();
+        Gauge gauge = gauges.get(attribute);
+        if (gauge != null)
+            return gauge.value();
+        int dot = attribute.lastIndexOf('.');
+        if (dot > 0) {
+            Timer timer = timers.get(attribute.substring(0, dot));
+            if (timer != null) {
+                String field = attribute.substring(dot + 1);
+                if (field.equals("count"))
+                    return timer.getCount();
+                if (field.equals("meanMicros"))
+                    return timer.getMeanMicros();
+                if (field.equals("maxMicros"))
+                    return timer.getMaxMicros();
+            }
+        }
+        return null;
+    }
+
+    @Override
+    public Object getAttribute(String attribute) throws AttributeNotFoundException {
+        Object value = value(attribute);
+        if (value == null)
+            throw new AttributeNotFoundException(attribute);
+        return value;
+    }
+
+    @Override
+    public void setAttribute(Attribute attribute) throws AttributeNotFoundException {
+        throw new AttributeNotFoundException("Metrics are read-only: " + attribute.getName());
+    }
+
+    @Override
+    public AttributeList getAttributes(String[] attributes) {
+        AttributeList list = new AttributeList();
+        for (String attribute : attributes) {
+            Object value = value(attribute);
+            if (value != null)
+                list.add(new Attribute(attribute, value));
+        }
+        return list;
+    }
+
+    @Override
+    public AttributeList setAttributes(AttributeList attributes) {
+        return new AttributeList();
+    }
+
+    @Override
+    public Object invoke(String actionName, Object[] params, String[] signature) throws ReflectionException {
+        throw new ReflectionException(new NoSuchMethodException(actionName), "Metrics have no operations");
+    }
+
+    /*набор атрибутов строится при каждом запросе, потому что метрики могут добавляться во время работы*/
+    @Override
+    public MBeanInfo getMBeanInfo() {
+        List<MBeanAttributeInfo> attributes = new ArrayList<MBeanAttributeInfo>();
+        for (String name : counters.keySet()) {
+            attributes.add(new MBeanAttributeInfo(name, "long", "counter", true, false, false));
+        }
+        for (String name : gauges.keySet()) {
+            attributes.add(new MBeanAttributeInfo(name, "long", describe(name, "gauge"), true, false, false));
+        }
+        for (String name : timers.keySet()) {
+            attributes.add(new MBeanAttributeInfo(name + ".count", "long", describe(name, "timer count"), true, false, false));
+            attributes.add(new MBeanAttributeInfo(name + ".meanMicros", "double", describe(name, "timer mean, us"), true, false, false));
+            attributes.add(new MBeanAttributeInfo(name + ".maxMicros", "double", describe(name, "timer max, us"), true, false, false));
+        }
+        return new MBeanInfo(Metrics.class.getName(), "Chat server metrics",
+                attributes.toArray(new MBeanAttributeInfo[attributes.size()]), null, new MBeanOperationInfo[0], null);
+    }
+}
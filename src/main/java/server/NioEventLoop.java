@@ -0,0 +1,128 @@
+package server;
+
+
+import settings.ClientListener;
+
+import java.io.IOException;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+
+/*
+* Поток с собственным селектором, обслуживающий множество клиентских каналов.
+* Все операции с каналами и ключами выполняются только в этом потоке, остальные потоки
+* передают ему работу через execute().
+* */
+public class NioEventLoop implements Runnable, Executor {
+    private final Selector selector;
+    private final ClientListener clientListener;
+    private final Executor dispatchPool;
+    private final Queue<Runnable> tasks;
+    private final Thread thread;
+    private volatile boolean isStopped;
+
+    /*если пул обработки не задан, сообщения обрабатываются в потоке цикла*/
+    public NioEventLoop(String name, ClientListener clientListener, Executor dispatchPool) throws IOException {
+        this.clientListener = clientListener;
+        this.dispatchPool = dispatchPool != null ? dispatchPool : this;
+        selector = Selector.open();
+        tasks = new ConcurrentLinkedQueue<Runnable>();
+        thread = new Thread(this, name);
+    }
+
+    public void start() {
+        thread.start();
+    }
+
+    /*передаем принятый сокет в цикл, регистрация в селекторе произойдет в потоке цикла*/
+    public void register(final SocketChannel channel) throws IOException {
+        channel.configureBlocking(false);
+        final NioServerToClient connection = new NioServerToClient(channel, this, dispatchPool, clientListener);
+        execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    SelectionKey key = channel.register(selector, SelectionKey.OP_READ, connection);
+                    connection.onRegistered(key);
+                } catch (IOException e) {
+                    connection.close();
+                }
+            }
+        });
+    }
+
+    @Override
+    public void execute(Runnable task) {
+        tasks.add(task);
+        if (Thread.currentThread() != thread)
+            selector.wakeup();
+    }
+
+    @Override
+    public void run() {
+        try {
+            while (!isStopped) {
+                //задачи, поставленные из самого цикла, не должны ждать следующего события селектора
+                if (tasks.isEmpty())
+                    selector.select();
+                else
+                    selector.selectNow();
+                runTasks();
+                Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                while (keys.hasNext()) {
+                    SelectionKey key = keys.next();
+                    keys.remove();
+                    NioServerToClient connection = (NioServerToClient) key.attachment();
+                    if (!key.isValid()) {
+                        connection.close();
+                        continue;
+                    }
+                    if (key.isReadable())
+                        connection.onReadable();
+                    if (key.isValid() && key.isWritable())
+                        connection.onWritable();
+                    //прочитанные сообщения могли поставить кадры в очереди, отправляем их не дожидаясь
+                    //разбора остальных ключей, чтобы очереди не переполнялись
+                    runTasks();
+                }
+            }
+        } catch (ClosedSelectorException e) {
+            //цикл остановлен
+        } catch (IOException e) {
+            if (!isStopped)
+                System.out.println("Event loop " + thread.getName() + " error: " + e);
+        } finally {
+            closeAll();
+        }
+    }
+
+    private void runTasks() {
+        Runnable task;
+        while ((task = tasks.poll()) != null) {
+            task.run();
+        }
+    }
+
+    private void closeAll() {
+        try {
+            for (SelectionKey key : selector.keys()) {
+                ((NioServerToClient) key.attachment()).close();
+            }
+            //уведомления о закрытии соединений, поставленные в очередь цикла
+            runTasks();
+            selector.close();
+        } catch (Exception e) {
+            //при остановке ошибки закрытия не интересны
+        }
+    }
+
+    public void stop() {
+        isStopped = true;
+        selector.wakeup();
+    }
+}
@@ -0,0 +1,253 @@
+package server;
+
+
+import settings.BufferPool;
+import settings.ClientListener;
+import settings.FrameDecoder;
+import settings.Message;
+import settings.ServerSettings;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.util.Arrays;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/*
+* Соединение с клиентом в неблокирующем режиме. Собственного потока у соединения нет:
+* чтение и запись выполняет NioEventLoop, к селектору которого привязан канал.
+* Формат кадра тот же, что и в блокирующем режиме: 4 байта длины и сериализованное сообщение.
+* Разобранные сообщения передаются через SerialExecutor, который сохраняет порядок сообщений клиента.
+* По умолчанию (ServerSettings.DISPATCH_THREADS = 0) они обрабатываются в потоке цикла, прочитавшего их,
+* и чтение само ограничено скоростью обработки. Если задан chat.dispatchThreads, сообщения обрабатываются
+* на общем пуле из стольких потоков, чтобы долгие команды не задерживали остальные каналы цикла; тогда при
+* слишком большом числе необработанных сообщений клиента чтение его канала приостанавливается.
+* */
+public class NioServerToClient extends ClientConnection {
+    private static final int MAX_PENDING_MESSAGES = 64;
+    private static final int RESUME_PENDING_MESSAGES = MAX_PENDING_MESSAGES / 2;
+
+    private final SocketChannel channel;
+    private final NioEventLoop eventLoop;
+    private final SerialExecutor dispatcher;
+    private final AtomicBoolean flushScheduled;
+    private final AtomicBoolean closed;
+    private final AtomicInteger pendingMessages;
+    private final Runnable flushTask;
+    private final Runnable resumeReadTask;
+    private final FrameDecoder decoder;
+    //кадры, забранные из очереди и еще не записанные полностью; пишутся одной записью writev
+    private final Frame[] inFlight;
+    private final ByteBuffer[] inFlightBuffers;
+    private int inFlightStart;
+    private int inFlightEnd;
+    private SelectionKey key;
+    private boolean readPaused;
+    private boolean writePending;
+
+    public NioServerToClient(SocketChannel channel, NioEventLoop eventLoop, Executor dispatchPool,
+                             ClientListener clientListener) {
+        super(channel.socket(), clientListener);
+        this.channel = channel;
+        this.eventLoop = eventLoop;
+        dispatcher = new SerialExecutor(dispatchPool);
+        flushScheduled = new AtomicBoolean();
+        closed = new AtomicBoolean();
+        pendingMessages = new AtomicInteger();
+        decoder = new FrameDecoder(ServerSettings.MAX_FRAME_SIZE, false, BufferPool.SHARED);
+        inFlight = new Frame[ServerSettings.MAX_GATHERED_FRAMES];
+        inFlightBuffers = new ByteBuffer[ServerSettings.MAX_GATHERED_FRAMES];
+        flushTask = new Runnable() {
+            @Override
+            public void run() {
+                flushScheduled.set(false);
+                onWritable();
+            }
+        };
+        resumeReadTask = new Runnable() {
+            @Override
+            public void run() {
+                if (readPaused && pendingMessages.get() < MAX_PENDING_MESSAGES) {
+                    readPaused = false;
+                    updateInterest();
+                }
+            }
+        };
+    }
+
+    /*вызывается в потоке селектора после регистрации канала*/
+    void onRegistered(SelectionKey key) {
+        this.key = key;
+        getClientListener().onStartSocket(this, getSocket());
+    }
+
+    /*
+    * вычитываем все доступные байты и разбираем все полностью пришедшие кадры,
+    * неполный кадр остается в декодере до следующего чтения
+    * */
+    void onReadable() {
+        if (closed.get())
+            return;
+        try {
+            int read = decoder.readFrom(channel);
+            if (read < 0) {
+                close();
+                return;
+            }
+            while (decoder.next()) {
+                TrafficStats.onRead(decoder.frameLength() + 4);
+                dispatch(codec.decode(decoder.array(), decoder.frameOffset(), decoder.frameLength()));
+            }
+            if (pendingMessages.get() >= MAX_PENDING_MESSAGES) {
+                readPaused = true;
+                updateInterest();
+            }
+        } catch (Exception e) {
+            getClientListener().onException(this, getSocket(), e);
+            close();
+        }
+    }
+
+    private void dispatch(final Message message) {
+        pendingMessages.incrementAndGet();
+        dispatcher.execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    onMessage(message);
+                } catch (Exception e) {
+                    getClientListener().onException(NioServerToClient.this, getSocket(), e);
+                    eventLoop.execute(new Runnable() {
+                        @Override
+                        public void run() {
+                            close();
+                        }
+                    });
+                } finally {
+                    if (pendingMessages.decrementAndGet() == RESUME_PENDING_MESSAGES)
+                        eventLoop.execute(resumeReadTask);
+                }
+            }
+        });
+    }
+
+    /*
+    * накопившиеся кадры (до ServerSettings.MAX_GATHERED_FRAMES) записываются в канал одной
+    * записью со сбором из нескольких буферов, без копирования кадров
+    * */
+    void onWritable() {
+        if (closed.get())
+            return;
+        try {
+            while (true) {
+                fillInFlight();
+                if (inFlightStart == inFlightEnd)
+                    break;
+                long written = channel.write(inFlightBuffers, inFlightStart, inFlightEnd - inFlightStart);
+                int frames = releaseWritten();
+                TrafficStats.onWrite(frames, written);
+                if (inFlightStart < inFlightEnd) {
+                    //сокет переполнен, дописываем когда селектор сообщит о готовности
+                    writePending = true;
+                    updateInterest();
+                    return;
+                }
+            }
+            writePending = false;
+            updateInterest();
+        } catch (IOException e) {
+            getClientListener().onException(this, getSocket(), e);
+            close();
+        }
+    }
+
+    private void fillInFlight() {
+        if (inFlightStart > 0) {
+            //недописанные кадры переносим в начало массива
+            int count = inFlightEnd - inFlightStart;
+            System.arraycopy(inFlight, inFlightStart, inFlight, 0, count);
+            System.arraycopy(inFlightBuffers, inFlightStart, inFlightBuffers, 0, count);
+            Arrays.fill(inFlight, count, inFlightEnd, null);
+            Arrays.fill(inFlightBuffers, count, inFlightEnd, null);
+            inFlightStart = 0;
+            inFlightEnd = count;
+        }
+        Frame frame;
+        while (inFlightEnd < inFlight.length && (frame = outbound.poll()) != null) {
+            inFlight[inFlightEnd] = frame;
+            inFlightBuffers[inFlightEnd] = frame.buffer();
+            inFlightEnd++;
+        }
+    }
+
+    /*освобождает полностью записанные кадры и возвращает их число*/
+    private int releaseWritten() {
+        int released = 0;
+        while (inFlightStart < inFlightEnd && !inFlightBuffers[inFlightStart].hasRemaining()) {
+            inFlight[inFlightStart].release();
+            inFlight[inFlightStart] = null;
+            inFlightBuffers[inFlightStart] = null;
+            inFlightStart++;
+            released++;
+        }
+        if (inFlightStart == inFlightEnd)
+            inFlightStart = inFlightEnd = 0;
+        return released;
+    }
+
+    private void updateInterest() {
+        if (key == null || !key.isValid())
+            return;
+        key.interestOps((readPaused ? 0 : SelectionKey.OP_READ) | (writePending ? SelectionKey.OP_WRITE : 0));
+    }
+
+    /*очередь соединения разбирает поток селектора*/
+    @Override
+    protected void onFrameQueued() {
+        if (flushScheduled.compareAndSet(false, true))
+            eventLoop.execute(flushTask);
+    }
+
+    /*канал закрывается в потоке его селектора*/
+    @Override
+    protected void disconnect() {
+        outbound.close();
+        eventLoop.execute(new Runnable() {
+            @Override
+            public void run() {
+                close();
+            }
+        });
+    }
+
+    void close() {
+        if (!closed.compareAndSet(false, true))
+            return;
+        if (key != null)
+            key.cancel();
+        try {
+            channel.close();
+        } catch (IOException e) {
+            getClientListener().onException(this, getSocket(), e);
+        }
+        outbound.close();
+        //декодер используется только потоком цикла, в котором выполняется и закрытие
+        decoder.release();
+        while (inFlightStart < inFlightEnd) {
+            inFlight[inFlightStart].release();
+            inFlight[inFlightStart] = null;
+            inFlightBuffers[inFlightStart] = null;
+            inFlightStart++;
+        }
+        //уведомление о закрытии обрабатывается после всех уже принятых сообщений клиента
+        dispatcher.execute(new Runnable() {
+            @Override
+            public void run() {
+                getClientListener().onStopSocket(NioServerToClient.this, getSocket());
+            }
+        });
+    }
+}
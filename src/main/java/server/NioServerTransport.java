@@ -0,0 +1,54 @@
+package server;
+
+
+import settings.ClientListener;
+
+import java.io.IOException;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/*
+* Неблокирующий транспорт сервера: поток сервера принимает соединения, а обслуживают их
+* несколько циклов NioEventLoop. Каждое новое соединение отдается следующему циклу по кругу.
+* Принятые сообщения обрабатываются на общем пуле из dispatchThreads потоков, а если он не задан - в потоке
+* цикла, который их прочитал. Во втором случае чтение само ограничено скоростью обработки и рассылки.
+* */
+public class NioServerTransport {
+    private final NioEventLoop[] eventLoops;
+    private final ExecutorService dispatchPool;
+    private int next;
+
+    public NioServerTransport(ClientListener clientListener, int eventLoopCount, int dispatchThreads)
+            throws IOException {
+        dispatchPool = dispatchThreads > 0 ? Executors.newFixedThreadPool(dispatchThreads) : null;
+        eventLoops = new NioEventLoop[Math.max(1, eventLoopCount)];
+        for (int i = 0; i < eventLoops.length; i++) {
+            eventLoops[i] = new NioEventLoop("nio-event-loop-" + i, clientListener, dispatchPool);
+        }
+    }
+
+    public void start() {
+        for (NioEventLoop eventLoop : eventLoops) {
+            eventLoop.start();
+        }
+    }
+
+    /*прием соединений выполняется в вызывающем потоке до закрытия серверного канала*/
+    public void accept(ServerSocketChannel serverChannel) throws IOException {
+        while (true) {
+            SocketChannel channel = serverChannel.accept();
+            eventLoops[next].register(channel);
+            next = (next + 1) % eventLoops.length;
+        }
+    }
+
+    public void stop() {
+        for (NioEventLoop eventLoop : eventLoops) {
+            eventLoop.stop();
+        }
+        if (dispatchPool != null)
+            dispatchPool.shutdown();
+    }
+}
@@ -0,0 +1,264 @@
+package server;
+
+
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/*
+* Ограниченная очередь исходящих кадров одного клиента. Отправители только добавляют кадры
+* и сразу возвращаются, а в сокет их пишет поток записи этого клиента (или цикл селектора).
+* Очередь считается переполненной, если в ней capacity кадров, больше maxBytes байт или первый кадр
+* ждет отправки дольше maxDelayMillis. Тогда новый кадр не ставится, а что делать с медленным клиентом,
+* решает ClientConnection по ServerSettings.SLOW_CONSUMER_POLICY (в том числе может освободить место
+* методами dropOldest и dropAll).
+* Очередь удерживает поставленные в нее кадры, освобождать их должен тот, кто забрал кадр из очереди.
+* Кадры разделены на две полосы: ответы клиенту на его вход и команды (CONTROL) забираются раньше
+* рассылок и истории (BULK), поэтому подтверждение входа не ждет за мегабайтами чужих сообщений.
+* Порядок сохраняется только внутри полосы. Объем кадров учитывается для каждой полосы отдельно: ограничения
+* maxBytes и времени ожидания и политики медленного клиента относятся к полосе BULK, а полоса CONTROL ограничена
+* числом кадров и своим объемом maxControlBytes, поэтому большие ответы не переполняют рассылки и наоборот.
+* */
+public class OutboundQueue {
+    public static final int CONTROL = 0;
+    public static final int BULK = 1;
+    /*названия полос для метрик, по номеру полосы*/
+    public static final String[] LANE_NAMES = {"control", "bulk"};
+
+    private final int capacity;
+    private final long maxBytes;
+    private final long maxControlBytes;
+    private final long maxDelayNanos;
+    private final ArrayDeque<Frame> control;
+    private final ArrayDeque<Frame> frames;
+    private final ReentrantLock lock;
+    private final Condition notEmpty;
+    private long droppedFrames;
+    private long controlBytes;
+    private long bulkBytes;
+    private boolean closed;
+
+    public OutboundQueue(int capacity) {
+        this(capacity, Long.MAX_VALUE, 0);
+    }
+
+    /*maxDelayMillis = 0 - время ожидания не ограничено*/
+    public OutboundQueue(int capacity, long maxBytes, long maxDelayMillis) {
+        this(capacity, maxBytes, maxDelayMillis, Long.MAX_VALUE);
+    }
+
+    /*maxBytes и maxDelayMillis ограничивают полосу BULK, maxControlBytes - полосу CONTROL*/
+    public OutboundQueue(int capacity, long maxBytes, long maxDelayMillis, long maxControlBytes) {
+        this.capacity = capacity;
+        this.maxBytes = maxBytes;
+        this.maxControlBytes = maxControlBytes;
+        maxDelayNanos = TimeUnit.MILLISECONDS.toNanos(maxDelayMillis);
+        control = new ArrayDeque<Frame>();
+        frames = new ArrayDeque<Frame>();
+        lock = new ReentrantLock();
+        notEmpty = lock.newCondition();
+    }
+
+    /*кадр рассылки (полоса BULK)*/
+    public boolean offer(Frame frame) {
+        return offer(frame, BULK);
+    }
+
+    /*возвращает false, если кадр отброшен из-за переполнения или закрытия очереди*/
+    public boolean offer(Frame frame, int lane) {
+        lock.lock();
+        try {
+            if (closed)
+                return false;
+            if (lane == CONTROL ? isControlOverloaded(frame.length()) : isOverloaded(frame.length())) {
+                droppedFrames++;
+                return false;
+            }
+            if (lane == CONTROL) {
+                control.addLast(frame.retain());
+                controlBytes += frame.length();
+            } else {
+                frames.addLast(frame.retain());
+                bulkBytes += frame.length();
+            }
+            notEmpty.signal();
+            return true;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private boolean isControlOverloaded(int length) {
+        return control.size() >= capacity || controlBytes + length > maxControlBytes;
+    }
+
+    /*переполнение полосы BULK: кадры полосы CONTROL здесь не учитываются*/
+    private boolean isOverloaded(int length) {
+        if (frames.size() >= capacity || bulkBytes + length > maxBytes)
+            return true;
+        Frame first = frames.peekFirst();
+        return maxDelayNanos > 0 && first != null && System.nanoTime() - first.getCreatedAt() > maxDelayNanos;
+    }
+
+    /*
+    * отбрасывает самые старые кадры, которые можно отбросить (Frame.isDroppable), пока в очереди
+    * не освободится место для кадра длиной length. Возвращает число отброшенных кадров
+    * */
+    public int dropOldest(int length) {
+        return drop(length, false);
+    }
+
+    /*отбрасывает все кадры, которые можно отбросить, и возвращает их число*/
+    public int dropAll() {
+        return drop(0, true);
+    }
+
+    private int drop(int length, boolean all) {
+        lock.lock();
+        try {
+            int dropped = 0;
+            Iterator<Frame> it = frames.iterator();
+            while ((all || isOverloaded(length)) && it.hasNext()) {
+                Frame frame = it.next();
+                if (frame.isDroppable()) {
+                    it.remove();
+                    release(frame, BULK);
+                    dropped++;
+                }
+            }
+            droppedFrames += dropped;
+            return dropped;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void release(Frame frame, int lane) {
+        onRemoved(frame, lane);
+        frame.release();
+    }
+
+    private void onRemoved(Frame frame, int lane) {
+        if (lane == CONTROL) {
+            controlBytes -= frame.length();
+        } else {
+            bulkBytes -= frame.length();
+        }
+    }
+
+    /*ожидает очередной кадр, возвращает null после закрытия очереди*/
+    public Frame take() throws InterruptedException {
+        lock.lock();
+        try {
+            while (control.isEmpty() && frames.isEmpty() && !closed) {
+                notEmpty.await();
+            }
+            return closed ? null : removeFirst();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public Frame peek() {
+        lock.lock();
+        try {
+            return control.isEmpty() ? frames.peekFirst() : control.peekFirst();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public Frame poll() {
+        lock.lock();
+        try {
+            return removeFirst();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /*кадры полосы CONTROL идут первыми; время ожидания кадра учитывается в TrafficStats по полосам*/
+    private Frame removeFirst() {
+        int lane = control.isEmpty() ? BULK : CONTROL;
+        Frame frame = (lane == CONTROL ? control : frames).pollFirst();
+        if (frame != null) {
+            onRemoved(frame, lane);
+            TrafficStats.onDequeued(lane, frame.getCreatedAt());
+        }
+        return frame;
+    }
+
+    public void close() {
+        lock.lock();
+        try {
+            closed = true;
+            Frame frame;
+            while ((frame = control.pollFirst()) != null) {
+                release(frame, CONTROL);
+            }
+            while ((frame = frames.pollFirst()) != null) {
+                release(frame, BULK);
+            }
+            notEmpty.signalAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public int size() {
+        lock.lock();
+        try {
+            return control.size() + frames.size();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public int size(int lane) {
+        lock.lock();
+        try {
+            return lane == CONTROL ? control.size() : frames.size();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /*объем кадров, ожидающих отправки, в байтах*/
+    public long getQueuedBytes() {
+        lock.lock();
+        try {
+            return controlBytes + bulkBytes;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public long getQueuedBytes(int lane) {
+        lock.lock();
+        try {
+            return lane == CONTROL ? controlBytes : bulkBytes;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public long getDroppedFrames() {
+        lock.lock();
+        try {
+            return droppedFrames;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public boolean isClosed() {
+        lock.lock();
+        try {
+            return closed;
+        } finally {
+            lock.unlock();
+        }
+    }
+}
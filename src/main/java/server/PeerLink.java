@@ -0,0 +1,190 @@
+package server;
+
+
+import settings.BufferPool;
+import settings.FrameDecoder;
+import settings.Message;
+import settings.MessageCodec;
+import settings.MessageCodecs;
+import settings.ServerSettings;
+
+import java.io.*;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/*
+* Соединение с другим узлом кластера. Формат кадров тот же, что и у клиентов: 4 байта длины и сообщение.
+* Отправители только ставят закодированные кадры в очередь, поток записи забирает из нее все накопившиеся
+* кадры (до ServerSettings.CLUSTER_BATCH_SIZE) и пишет их в сокет одной записью, поэтому при большом потоке
+* рассылок сообщения между узлами идут пачками. Поток чтения передает принятые сообщения узлу ClusterNode.
+* Первым сообщением каждая сторона сообщает имя своего узла и случайный вызов для проверки секрета кластера
+* (ServerSettings.CLUSTER_HELLO), имя узла считается установленным только после проверки секрета.
+* */
+class PeerLink {
+    private static final SecureRandom random = new SecureRandom();
+
+    private final ClusterNode node;
+    private final Socket socket;
+    //соединение установлено этим узлом (а не принято от другого)
+    private final boolean initiator;
+    private final String address;
+    private final MessageCodec codec;
+    private final BlockingQueue<byte[]> outbound;
+    private final AtomicBoolean closed;
+    //вызов этого узла и имя и вызов, с которыми представился другой узел, еще не проверенные
+    private final String nonce;
+    private volatile String peerNodeId;
+    private volatile String peerNonce;
+    private volatile String nodeId;
+
+    PeerLink(ClusterNode node, Socket socket, boolean initiator, String address) {
+        this.node = node;
+        this.socket = socket;
+        this.initiator = initiator;
+        this.address = address;
+        codec = MessageCodecs.newCodec();
+        outbound = new ArrayBlockingQueue<byte[]>(ServerSettings.CLUSTER_QUEUE_SIZE);
+        closed = new AtomicBoolean();
+        byte[] bytes = new byte[16];
+        random.nextBytes(bytes);
+        nonce = Base64.getEncoder().encodeToString(bytes);
+    }
+
+    void start() throws IOException {
+        final InputStream in = socket.getInputStream();
+        final OutputStream out = socket.getOutputStream();
+        send(node.hello(this));
+        Thread writer = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                write(out);
+            }
+        }, "cluster-writer-" + address);
+        Thread reader = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                read(in);
+            }
+        }, "cluster-reader-" + address);
+        writer.setDaemon(true);
+        reader.setDaemon(true);
+        writer.start();
+        reader.start();
+    }
+
+    /*возвращает false, если соединение закрыто или узел не успевает принимать сообщения*/
+    boolean send(Message message) throws IOException {
+        byte[] payload = codec.encode(message);
+        byte[] frame = new byte[payload.length + 4];
+        ByteBuffer.wrap(frame).putInt(payload.length).put(payload);
+        return send(frame);
+    }
+
+    /*кадр уже закодирован и может быть общим для всех узлов*/
+    boolean send(byte[] frame) {
+        return !closed.get() && outbound.offer(frame);
+    }
+
+    private void write(OutputStream out) {
+        List<byte[]> batch = new ArrayList<byte[]>(ServerSettings.CLUSTER_BATCH_SIZE);
+        ByteArrayOutputStream buffer = new ByteArrayOutputStream(ServerSettings.WRITE_BUFFER_SIZE);
+        try {
+            while (true) {
+                batch.add(outbound.take());
+                if (closed.get())
+                    break;
+                outbound.drainTo(batch, ServerSettings.CLUSTER_BATCH_SIZE - 1);
+                for (byte[] frame : batch) {
+                    buffer.write(frame);
+                }
+                buffer.writeTo(out);
+                node.onBatchWritten();
+                batch.clear();
+                buffer.reset();
+            }
+        } catch (InterruptedException e) {
+            //поток записи прерывается при закрытии соединения
+        } catch (IOException e) {
+            if (!closed.get())
+                System.out.println("Cluster link " + address + " write error: " + e);
+        } finally {
+            close();
+        }
+    }
+
+    private void read(InputStream in) {
+        FrameDecoder decoder = new FrameDecoder(ServerSettings.MAX_SERVER_FRAME_SIZE, false, BufferPool.SHARED);
+        try {
+            while (!closed.get()) {
+                while (decoder.next()) {
+                    node.onPeerMessage(this, codec.decode(decoder.array(), decoder.frameOffset(), decoder.frameLength()));
+                }
+                if (decoder.readFrom(in) < 0)
+                    break;
+            }
+        } catch (Exception e) {
+            if (!closed.get())
+                System.out.println("Cluster link " + address + " read error: " + e);
+        } finally {
+            decoder.release();
+            close();
+        }
+    }
+
+    void close() {
+        if (!closed.compareAndSet(false, true))
+            return;
+        try {
+            socket.close();
+        } catch (IOException ignored) {
+        }
+        //поток записи может ждать кадр в очереди, пустой кадр нулевой длины его разбудит
+        outbound.offer(new byte[0]);
+        node.onLinkClosed(this);
+    }
+
+    boolean isClosed() {
+        return closed.get();
+    }
+
+    boolean isInitiator() {
+        return initiator;
+    }
+
+    String getAddress() {
+        return address;
+    }
+
+    String getNonce() {
+        return nonce;
+    }
+
+    String getPeerNodeId() {
+        return peerNodeId;
+    }
+
+    String getPeerNonce() {
+        return peerNonce;
+    }
+
+    void setPeer(String peerNodeId, String peerNonce) {
+        this.peerNonce = peerNonce;
+        this.peerNodeId = peerNodeId;
+    }
+
+    /*имя узла, подтвердившего знание секрета кластера, или null*/
+    String getNodeId() {
+        return nodeId;
+    }
+
+    void setNodeId(String nodeId) {
+        this.nodeId = nodeId;
+    }
+}
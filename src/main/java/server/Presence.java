@@ -0,0 +1,238 @@
+package server;
+
+
+import settings.Message;
+import settings.MessageCodec;
+import settings.ServerSettings;
+
+import java.io.IOException;
+import java.util.Map;
+import java.util.Queue;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+
+/*
+* Подписка на присутствие пользователей. Подписчик один раз получает полный список (ServerSettings.PRESENCE_SNAPSHOT),
+* а затем только изменения (ServerSettings.PRESENCE_DELTA) - по строке на событие:
+*   "<версия> +login" - вошел, "<версия> -login" - вышел, "<версия> >old<TAB>new" - переименовался
+* (логин может содержать пробелы, поэтому старый и новый логин разделяет табуляция).
+* Версия растет на единицу с каждым событием, поэтому по ней клиент замечает пропуск (например, если событие
+* отброшено из переполненной очереди) и запрашивает события после своей версии. Последние
+* ServerSettings.PRESENCE_LOG_SIZE событий хранятся, более старую версию догоняет полный список.
+* Список учитывает и пользователей других узлов кластера. Один логин может ненадолго оказаться сразу на двух
+* узлах, поэтому для каждого логина хранится число его владельцев, а события отражают только появление и исчезновение.
+* Под замком событие только получает версию и попадает в журнал и в очередь рассылки. Рассылает очередь
+* тот поток, который первым за нее взялся, по порядку версий, поэтому каждый подписчик получает события
+* в порядке версий, а остальные потоки не ждут ни замка, ни рассылки. Подписчик получает только события
+* новее версии, с которой он подписался: более старые уже вошли в полученный им список.
+* */
+class Presence {
+    private final MessageCodec codec;
+    private final Lock lock;
+    private final Map<String, Integer> roster;
+    private final String[] log;
+    //подписчик - версия, которую он уже получил при подписке
+    private final Map<ClientConnection, Long> subscribers;
+    //события, получившие версию, но еще не разосланные; добавляются под lock, поэтому идут по порядку версий
+    private final Queue<Event> pending;
+    private final Lock fanOut;
+    private volatile long version;
+
+    Presence(MessageCodec codec, int logSize) {
+        this.codec = codec;
+        lock = new ReentrantLock();
+        roster = new TreeMap<String, Integer>();
+        log = new String[logSize];
+        subscribers = new ConcurrentHashMap<ClientConnection, Long>();
+        pending = new ConcurrentLinkedQueue<Event>();
+        fanOut = new ReentrantLock();
+    }
+
+    void joined(String login) {
+        lock.lock();
+        try {
+            if (increment(login))
+                publish("+" + login);
+        } finally {
+            lock.unlock();
+        }
+        deliver();
+    }
+
+    void left(String login) {
+        lock.lock();
+        try {
+            if (decrement(login))
+                publish("-" + login);
+        } finally {
+            lock.unlock();
+        }
+        deliver();
+    }
+
+    void renamed(String previousLogin, String newLogin) {
+        lock.lock();
+        try {
+            boolean gone = decrement(previousLogin);
+            boolean appeared = increment(newLogin);
+            if (gone && appeared) {
+                publish(">" + previousLogin + "\t" + newLogin);
+            } else if (gone) {
+                publish("-" + previousLogin);
+            } else if (appeared) {
+                publish("+" + newLogin);
+            }
+        } finally {
+            lock.unlock();
+        }
+        deliver();
+    }
+
+    /*
+    * подписка: если события после версии since еще хранятся, приходят только они (возможно, ни одного),
+    * иначе - полный список. since = 0 - подписка с нуля
+    * */
+    void subscribe(ClientConnection user, long since) throws IOException {
+        lock.lock();
+        try {
+            subscribers.put(user, version);
+            Message message = new Message();
+            if (since > 0 && since <= version && version - since <= log.length) {
+                message.setCommand(ServerSettings.PRESENCE_DELTA);
+                message.setMessage(eventsAfter(since));
+            } else {
+                message.setCommand(ServerSettings.PRESENCE_SNAPSHOT);
+                message.setMessage(snapshot());
+            }
+            try {
+                user.sendMessage(message);
+            } catch (IOException e) {
+                subscribers.remove(user);
+                throw e;
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    void unsubscribe(ClientConnection user) {
+        subscribers.remove(user);
+    }
+
+    private boolean increment(String login) {
+        Integer count = roster.get(login);
+        roster.put(login, count == null ? 1 : count + 1);
+        return count == null;
+    }
+
+    private boolean decrement(String login) {
+        Integer count = roster.get(login);
+        if (count == null)
+            return false;
+        if (count > 1) {
+            roster.put(login, count - 1);
+            return false;
+        }
+        roster.remove(login);
+        return true;
+    }
+
+    /*вызывается под замком: событие получает версию и ставится в очередь рассылки*/
+    private void publish(String event) {
+        long next = version + 1;
+        String line = next + " " + event;
+        log[(int) (next % log.length)] = line;
+        version = next;
+        //подписчик, который появится позже, получит это событие в списке
+        if (!subscribers.isEmpty())
+            pending.add(new Event(next, line));
+    }
+
+    /*
+    * рассылка очереди событий без замка присутствия. Если рассылкой уже занят другой поток, он разошлет
+    * и наши события; после освобождения очередь проверяется еще раз, чтобы не оставить событие,
+    * добавленное, пока рассылавший поток заканчивал работу
+    * */
+    private void deliver() {
+        while (!pending.isEmpty()) {
+            if (!fanOut.tryLock())
+                return;
+            try {
+                Event event;
+                while ((event = pending.poll()) != null) {
+                    send(event);
+                }
+            } finally {
+                fanOut.unlock();
+            }
+        }
+    }
+
+    private void send(Event event) {
+        Message message = new Message();
+        message.setCommand(ServerSettings.PRESENCE_DELTA);
+        message.setMessage(event.line);
+        Frame frame;
+        try {
+            frame = Frame.encode(codec, message);
+        } catch (IOException e) {
+            System.out.println("Presence event encoding error: " + e);
+            return;
+        }
+        try {
+            for (Map.Entry<ClientConnection, Long> subscriber : subscribers.entrySet()) {
+                if (subscriber.getValue() >= event.version)
+                    continue;
+                try {
+                    //если кадр не поместился в очередь, подписчик заметит пропуск по версии
+                    subscriber.getKey().sendFrame(frame);
+                } catch (IOException e) {
+                    subscribers.remove(subscriber.getKey());
+                }
+            }
+        } finally {
+            frame.release();
+        }
+    }
+
+    private String eventsAfter(long since) {
+        StringBuilder sb = new StringBuilder();
+        for (long v = since + 1; v <= version; v++) {
+            if (sb.length() > 0)
+                sb.append("\n");
+            sb.append(log[(int) (v % log.length)]);
+        }
+        return sb.toString();
+    }
+
+    /*первая строка - версия, дальше логины по алфавиту*/
+    private String snapshot() {
+        StringBuilder sb = new StringBuilder(roster.size() * 8 + 20);
+        sb.append(version);
+        for (String login : roster.keySet()) {
+            sb.append("\n").append(login);
+        }
+        return sb.toString();
+    }
+
+    long getVersion() {
+        return version;
+    }
+
+    int getSubscribers() {
+        return subscribers.size();
+    }
+
+    private static class Event {
+        private final long version;
+        private final String line;
+
+        Event(long version, String line) {
+            this.version = version;
+            this.line = line;
+        }
+    }
+}
@@ -0,0 +1,213 @@
+package server;
+
+
+import settings.Message;
+import settings.MessageCodec;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/*
+* Комната чата: свои участники и своя история сообщений. Рассылка идет только участникам комнаты,
+* поэтому ее стоимость зависит от размера комнаты, а не от числа пользователей на сервере.
+* Номер сообщения и место в очереди рассылок выдаются под замком комнаты, сами рассылки идут без замка,
+* но по очереди, так что все участники получают сообщения комнаты в одном и том же порядке, и этот же
+* порядок сохраняется в истории и задает номера сообщений.
+* Разные комнаты друг друга не ждут.
+* */
+public class Room {
+    private final String name;
+    private final Map<String, ClientConnection> members;
+    private final MessageHistory history;
+    private final MessageJournal journal;
+    private final ReentrantLock lock;
+    //очередь рассылок: номер, выданный следующей рассылке, и номер той, что сейчас рассылает
+    private final Condition turnChanged;
+    private long nextTurn;
+    private long currentTurn;
+    //время ожидания замка при рассылке, может быть null
+    private final Metrics.Timer lockWait;
+    //пустая комната, удаленная из списка комнат; войти в нее уже нельзя
+    private boolean closed;
+
+    public Room(String name, int historySize) {
+        this(name, new MessageHistory(historySize), null);
+    }
+
+    /*history может содержать сообщения, восстановленные из журнала; journal может быть null*/
+    public Room(String name, MessageHistory history, MessageJournal journal) {
+        this(name, history, journal, null);
+    }
+
+    public Room(String name, MessageHistory history, MessageJournal journal, Metrics.Timer lockWait) {
+        this.name = name;
+        this.history = history;
+        this.journal = journal;
+        this.lockWait = lockWait;
+        members = new ConcurrentHashMap<String, ClientConnection>();
+        lock = new ReentrantLock();
+        turnChanged = lock.newCondition();
+    }
+
+    /*возвращает false, если комната уже закрыта и нужно взять из списка новую*/
+    public boolean join(String login, ClientConnection user) {
+        lock.lock();
+        try {
+            if (closed)
+                return false;
+            members.put(login, user);
+            return true;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public boolean leave(String login, ClientConnection user) {
+        lock.lock();
+        try {
+            return members.remove(login, user);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public boolean rename(String previousLogin, String newLogin, ClientConnection user) {
+        lock.lock();
+        try {
+            if (!members.remove(previousLogin, user))
+                return false;
+            members.put(newLogin, user);
+            return true;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /*закрывает комнату, если в ней никого не осталось*/
+    public boolean closeIfEmpty() {
+        lock.lock();
+        try {
+            if (members.isEmpty())
+                closed = true;
+            return closed;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /*
+    * добавляет сообщение в историю (если toHistory), кодирует его с присвоенным номером в кадр один раз
+    * и ставит кадр в очереди всех участников, кроме отправителя. Под замком комнаты выдаются только номер
+    * и очередь рассылки; кодирование идет без замка, а рассылки выполняются строго в порядке очереди,
+    * поэтому участники получают сообщения в порядке номеров. Переданное сообщение не изменяется.
+    * Возвращает число участников, в очереди которых кадр не поместился
+    * */
+    public int broadcast(MessageCodec codec, Message message, String fromLogin, boolean toHistory) throws IOException {
+        long turn;
+        long sequence = 0;
+        lockForBroadcast();
+        try {
+            turn = nextTurn++;
+            if (toHistory) {
+                sequence = history.append(message.getMessage());
+                //в очередь журнала ставим под тем же замком, чтобы порядок в журнале совпадал с порядком в комнате;
+                //сама запись на диск идет в потоке журнала и комнату не задерживает
+                if (journal != null)
+                    journal.append(name, sequence, message.getMessage());
+            }
+        } finally {
+            lock.unlock();
+        }
+
+        Message numbered = new Message(message.getMessage(), message.getUser(), message.getCommand());
+        numbered.setSequence(sequence);
+        Frame frame = null;
+        try {
+            frame = Frame.encode(codec, numbered);
+        } finally {
+            awaitTurn(turn);
+            //кадр не закодировался - очередь все равно передается дальше, иначе встанут все следующие рассылки
+            if (frame == null)
+                finishTurn();
+        }
+        int failed = 0;
+        try {
+            for (Map.Entry<String, ClientConnection> member : members.entrySet()) {
+                //самому себе не отсылаем свое же сообщение
+                if (!member.getKey().equals(fromLogin)) {
+                    //закрытое (например, отключенное как медленное) соединение не прерывает рассылку остальным
+                    try {
+                        if (!member.getValue().sendFrame(frame))
+                            failed++;
+                    } catch (IOException e) {
+                        failed++;
+                    }
+                }
+            }
+        } finally {
+            finishTurn();
+            frame.release();
+        }
+        return failed;
+    }
+
+    /*ждет, пока закончатся рассылки, получившие место в очереди раньше*/
+    private void awaitTurn(long turn) {
+        lock.lock();
+        try {
+            while (currentTurn != turn) {
+                turnChanged.awaitUninterruptibly();
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void finishTurn() {
+        lock.lock();
+        try {
+            currentTurn++;
+            turnChanged.signalAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /*ожидание замка замеряется, только если его пришлось ждать; свободный замок учитывается с нулевым временем*/
+    private void lockForBroadcast() {
+        if (lockWait == null) {
+            lock.lock();
+        } else if (lock.tryLock()) {
+            lockWait.record(0);
+        } else {
+            long start = System.nanoTime();
+            lock.lock();
+            lockWait.recordSince(start);
+        }
+    }
+
+    public List<MessageHistory.Entry> lastMessages() {
+        return history.snapshot();
+    }
+
+    public List<String> getMembers() {
+        return new ArrayList<String>(members.keySet());
+    }
+
+    public int size() {
+        return members.size();
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public MessageHistory getHistory() {
+        return history;
+    }
+}
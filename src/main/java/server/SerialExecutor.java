@@ -0,0 +1,62 @@
+package server;
+
+
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/*
+* Выполняет задачи одного клиента строго по очереди на общем пуле потоков. Сообщения разных клиентов
+* обрабатываются параллельно, а сообщения одного клиента - в порядке получения.
+* */
+public class SerialExecutor implements Executor {
+    private final Executor executor;
+    private final Queue<Runnable> tasks;
+    private final AtomicBoolean scheduled;
+    private final Runnable drainTask;
+
+    public SerialExecutor(Executor executor) {
+        this.executor = executor;
+        tasks = new ConcurrentLinkedQueue<Runnable>();
+        scheduled = new AtomicBoolean();
+        drainTask = new Runnable() {
+            @Override
+            public void run() {
+                drain();
+            }
+        };
+    }
+
+    @Override
+    public void execute(Runnable task) {
+        tasks.add(task);
+        schedule();
+    }
+
+    private void schedule() {
+        if (scheduled.compareAndSet(false, true)) {
+            try {
+                executor.execute(drainTask);
+            } catch (RejectedExecutionException e) {
+                //пул уже остановлен вместе с сервером, оставшиеся задачи выполняем в текущем потоке
+                drain();
+            }
+        }
+    }
+
+    private void drain() {
+        try {
+            Runnable task;
+            while ((task = tasks.poll()) != null) {
+                task.run();
+            }
+        } finally {
+            scheduled.set(false);
+            //задача могла быть добавлена после опустошения очереди, но до сброса флага
+            if (!tasks.isEmpty())
+                schedule();
+        }
+    }
+}
@@ -3,94 +3,334 @@ package server;
 
 import settings.*;
 
+import javax.management.ObjectName;
 import java.io.*;
+import java.lang.invoke.MethodHandles;
+import java.lang.management.ManagementFactory;
 import java.lang.reflect.Method;
 import java.net.ServerSocket;
 import java.net.Socket;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
 import java.net.SocketTimeoutException;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.ServerSocketChannel;
 import java.util.*;
 import java.util.concurrent.*;
 import java.util.concurrent.atomic.AtomicInteger;
-import java.util.concurrent.locks.Lock;
-import java.util.concurrent.locks.ReentrantLock;
 
 public class Server implements ClientListener {
 
     private final String name;
     private final ServerSocket serverSocket;
-    private final Map<String, ServerToClientThread> users;
-    private final List<String> messages;
+    private final UserRegistry users;
+    private final Presence presence;
+    private final JoinNotices notices;
+    private final Map<String, Room> rooms;
+    private final Room defaultRoom;
+    private final MessageJournal journal;
+    //транспорт: ServerSettings.TRANSPORT_BLOCKING, TRANSPORT_NIO или TRANSPORT_VIRTUAL
+    private final String transport;
+    //история комнат, восстановленная из журнала; забирается комнатой при ее создании
+    private final Map<String, MessageHistory> restoredHistory;
     private final Map<String, Method> user_methods;
     private final Map<String, String> user_commands;
+    private final Map<String, Method> server_methods;
+    private final CommandTable commandTable;
+    private final MessageCodec codec;
 
-    private final int WAIT_SEC = 10;
     private final AtomicInteger failSend;
+    private final AtomicInteger connections;
+    private final Metrics metrics;
+    private final Metrics.Timer broadcastTime;
+    private final Metrics.Timer roomLockWait;
+    private final Metrics.Counter messagesIn;
+    //время выполнения команд пользователя, по индексу команды в commandTable
+    private final Metrics.Timer[] commandTimes;
     private volatile boolean isStopped;
-
-    private final Lock broadcastLock;
-    private final Object lastMessagesMonitor;
-    private final Object loggedMonitor;
-    private final Object receiveMonitor;
-    private final Object stopMonitor;
-    private final Object directMonitor;
-    private final Object usersMonitor;
-    private final Object renameMonitor;
-    private final Object helpMonitor;
-    private final Object quitMonitor;
+    private volatile NioServerTransport nioTransport;
+    private volatile ExecutorService connectionExecutor;
+    //узел кластера; null, если сервер работает один
+    private volatile ClusterNode cluster;
 
     public Server(ServerSocket serverSocket, String name) throws IOException {
+        this(serverSocket, name, null);
+    }
+
+    /*journal может быть null, тогда история хранится только в памяти*/
+    public Server(ServerSocket serverSocket, String name, MessageJournal journal) throws IOException {
+        this(serverSocket, name, journal, ServerSettings.TRANSPORT);
+    }
+
+    /*транспорт TRANSPORT_NIO требует сокета, созданного через ServerSocketChannel*/
+    public Server(ServerSocket serverSocket, String name, MessageJournal journal, String transport) throws IOException {
         this.name = name;
         this.serverSocket = serverSocket;
-        messages = new CopyOnWriteArrayList<String>();
-        users = new ConcurrentHashMap<String, ServerToClientThread>();
+        this.journal = journal;
+        this.transport = transport;
+        metrics = new Metrics();
+        broadcastTime = metrics.timer("broadcast.fanout");
+        roomLockWait = metrics.timer("room.lockWait");
+        messagesIn = metrics.counter("messages.in");
+        users = new UserRegistry();
+        rooms = new ConcurrentHashMap<String, Room>();
+        restoredHistory = new ConcurrentHashMap<String, MessageHistory>();
+        if (journal != null)
+            restoreHistory();
+        defaultRoom = newRoom(ServerSettings.DEFAULT_ROOM);
+        restoredHistory.remove(ServerSettings.DEFAULT_ROOM);
+        rooms.put(defaultRoom.getName(), defaultRoom);
         user_methods = new HashMap<String, Method>();
         user_commands = new HashMap<String, String>();
+        server_methods = new HashMap<String, Method>();
+        codec = MessageCodecs.newCodec();
+        presence = new Presence(codec, ServerSettings.PRESENCE_LOG_SIZE);
+        notices = new JoinNotices(new JoinNotices.Sender() {
+            @Override
+            public void sendNotice(Room room, Message message, String exceptLogin) throws IOException {
+                sendRoomMessage(room, exceptLogin, message);
+            }
+        }, ServerSettings.NOTICE_WINDOW_MS, ServerSettings.NOTICES_PER_SECOND);
         fillUserCommands();
-
-        broadcastLock = new ReentrantLock();
-        lastMessagesMonitor = new Object();
-        loggedMonitor = new Object();
-        receiveMonitor = new Object();
-        stopMonitor = new Object();
-        directMonitor = new Object();
-        usersMonitor = new Object();
-        renameMonitor = new Object();
-        helpMonitor = new Object();
-        quitMonitor = new Object();
+        commandTable = new CommandTable(Server.class, MethodHandles.lookup());
+        commandTimes = new Metrics.Timer[commandTable.size()];
+        for (int i = 0; i < commandTimes.length; i++) {
+            commandTimes[i] = metrics.timer("command." + commandTable.getName(i));
+        }
 
         failSend = new AtomicInteger();
         failSend.set(0);
+        connections = new AtomicInteger();
+        registerGauges();
+    }
+
+    /*показатели, которые вычисляются при чтении из уже существующих счетчиков и коллекций*/
+    private void registerGauges() {
+        metrics.gauge("connections.active", new Metrics.Gauge() {
+            @Override
+            public long value() {
+                return connections.get();
+            }
+        });
+        metrics.gauge("users.online", new Metrics.Gauge() {
+            @Override
+            public long value() {
+                return users.size();
+            }
+        });
+        metrics.gauge("rooms", new Metrics.Gauge() {
+            @Override
+            public long value() {
+                return rooms.size();
+            }
+        });
+        metrics.gauge("history.size", new Metrics.Gauge() {
+            @Override
+            public long value() {
+                long size = 0;
+                for (Room room : rooms.values()) {
+                    size += room.getHistory().size();
+                }
+                return size;
+            }
+        });
+        metrics.gauge("broadcast.dropped", new Metrics.Gauge() {
+            @Override
+            public long value() {
+                return failSend.get();
+            }
+        });
+        metrics.jvmGauge("frames.in", new Metrics.Gauge() {
+            @Override
+            public long value() {
+                return TrafficStats.getFramesRead();
+            }
+        });
+        metrics.jvmGauge("bytes.in", new Metrics.Gauge() {
+            @Override
+            public long value() {
+                return TrafficStats.getBytesRead();
+            }
+        });
+        metrics.jvmGauge("frames.out", new Metrics.Gauge() {
+            @Override
+            public long value() {
+                return TrafficStats.getFrames();
+            }
+        });
+        metrics.jvmGauge("bytes.out", new Metrics.Gauge() {
+            @Override
+            public long value() {
+                return TrafficStats.getBytes();
+            }
+        });
+        metrics.jvmGauge("socket.writes", new Metrics.Gauge() {
+            @Override
+            public long value() {
+                return TrafficStats.getWriteCalls();
+            }
+        });
+        metrics.jvmGauge("slowConsumer.dropped", new Metrics.Gauge() {
+            @Override
+            public long value() {
+                return TrafficStats.getFramesDropped();
+            }
+        });
+        metrics.jvmGauge("slowConsumer.evicted", new Metrics.Gauge() {
+            @Override
+            public long value() {
+                return TrafficStats.getEvictions();
+            }
+        });
+        for (int lane = 0; lane < OutboundQueue.LANE_NAMES.length; lane++) {
+            metrics.jvmTimer("outbound.wait." + OutboundQueue.LANE_NAMES[lane], TrafficStats.getLaneWait(lane));
+        }
+        metrics.jvmGauge("compression.bytesIn", new Metrics.Gauge() {
+            @Override
+            public long value() {
+                return FrameCompression.getBytesIn();
+            }
+        });
+        metrics.jvmGauge("compression.bytesOut", new Metrics.Gauge() {
+            @Override
+            public long value() {
+                return FrameCompression.getBytesOut();
+            }
+        });
+        metrics.gauge("presence.version", new Metrics.Gauge() {
+            @Override
+            public long value() {
+                return presence.getVersion();
+            }
+        });
+        metrics.gauge("presence.subscribers", new Metrics.Gauge() {
+            @Override
+            public long value() {
+                return presence.getSubscribers();
+            }
+        });
+        metrics.gauge("notices.events", new Metrics.Gauge() {
+            @Override
+            public long value() {
+                return notices.getEvents();
+            }
+        });
+        metrics.gauge("notices.sent", new Metrics.Gauge() {
+            @Override
+            public long value() {
+                return notices.getNotices();
+            }
+        });
+        if (journal != null) {
+            metrics.gauge("journal.dropped", new Metrics.Gauge() {
+                @Override
+                public long value() {
+                    return journal.getDroppedRecords();
+                }
+            });
+        }
+        metrics.jvmGauge("bufferPool.hits", new Metrics.Gauge() {
+            @Override
+            public long value() {
+                return BufferPool.SHARED.getHits();
+            }
+        });
+        metrics.jvmGauge("bufferPool.misses", new Metrics.Gauge() {
+            @Override
+            public long value() {
+                return BufferPool.SHARED.getMisses();
+            }
+        });
+        metrics.jvmGauge("bufferPool.pooledBytes", new Metrics.Gauge() {
+            @Override
+            public long value() {
+                return BufferPool.SHARED.getPooledBytes();
+            }
+        });
     }
 
     public static void main(String[] args) {
         int port = ServerSettings.PORT;
 
         try {
-            ServerSocket serverSocket = new ServerSocket(port);
-            serverSocket.setSoTimeout(60000);
-            final Server server = new Server(serverSocket, "ChatServer");
+            ServerSocket serverSocket;
+            if (ServerSettings.TRANSPORT_NIO.equals(ServerSettings.TRANSPORT)) {
+                //в неблокирующем режиме сокет сервера создается через канал
+                serverSocket = ServerSocketChannel.open().bind(new InetSocketAddress(port)).socket();
+            } else {
+                serverSocket = new ServerSocket(port);
+                serverSocket.setSoTimeout(60000);
+            }
+            MessageJournal journal = null;
+            if (!ServerSettings.JOURNAL_DIR.isEmpty()) {
+                journal = new MessageJournal(new File(ServerSettings.JOURNAL_DIR), ServerSettings.JOURNAL_SEGMENT_SIZE,
+                        ServerSettings.JOURNAL_SEGMENTS, ServerSettings.JOURNAL_FLUSH_MS);
+            }
+            final Server server = new Server(serverSocket, "ChatServer", journal, ServerSettings.TRANSPORT);
+            server.registerMBean();
+            if (ServerSettings.CLUSTER_PORT > 0) {
+                if (ServerSettings.NODE_ID.isEmpty() || ServerSettings.CLUSTER_SECRET.isEmpty()) {
+                    System.out.println("Cluster mode requires -Dchat.nodeId (unique for each node) and -Dchat.clusterSecret.");
+                    serverSocket.close();
+                    return;
+                }
+                ClusterNode cluster = new ClusterNode(server, ServerSettings.NODE_ID, ServerSettings.CLUSTER_SECRET,
+                        new ServerSocket(ServerSettings.CLUSTER_PORT, 50, InetAddress.getByName(ServerSettings.CLUSTER_HOST)),
+                        ClusterNode.parsePeers(ServerSettings.CLUSTER_PEERS));
+                server.setCluster(cluster);
+                cluster.start();
+            }
             server.startServer();
         }catch (IOException e){
             System.out.println("Server socket creation error: " + e);
         }
     }
 
+    /*метрики сервера публикуются по JMX, их можно смотреть в jconsole или VisualVM*/
+    void registerMBean() {
+        try {
+            ManagementFactory.getPlatformMBeanServer().registerMBean(metrics, new ObjectName(ServerSettings.METRICS_MBEAN));
+        } catch (Exception e) {
+            System.out.println("Metrics MBean registration error: " + e);
+        }
+    }
+
     /*Для осуществления возможность общения сервера с множеством пользовалей, для каждого пользовательского
     * сокета необходимо ораганизовать свой канал сообщения. Он реализован в виде отдельного потока
     * ServerToClientThread
+    * Транспорт задается при создании сервера.
+    * В режиме ServerSettings.TRANSPORT_NIO отдельный поток на клиента не создается: соединения
+    * обслуживаются несколькими циклами NioEventLoop, число которых задает ServerSettings.EVENT_LOOPS
+    * В режиме ServerSettings.TRANSPORT_VIRTUAL ServerToClientThread не запускается как поток, а выполняется
+    * в виртуальном потоке исполнителя, поэтому число соединений не ограничено числом потоков ОС
     * */
     public void startServer(){
         startConsoleListener(new BufferedReader(new InputStreamReader(System.in)));
         startSocketListener();
     }
 
-    private void startSocketListener(){
+    /*прием соединений в вызывающем потоке без консоли сервера: для встраивания сервера в тесты и замеры*/
+    public void startSocketListener(){
+        ServerSocketChannel serverChannel = serverSocket.getChannel();
+        if (serverChannel != null && ServerSettings.TRANSPORT_NIO.equals(transport)) {
+            startChannelListener(serverChannel);
+            return;
+        }
+        boolean isVirtual = ServerSettings.TRANSPORT_VIRTUAL.equals(transport);
+        if (isVirtual)
+            connectionExecutor = newConnectionExecutor();
         try {
             System.out.println("Server " + name + " started.");
             while(true) {
                 try {
                     Socket clientSocket = serverSocket.accept();
-                    ServerToClientThread serverToClientThread = new ServerToClientThread(clientSocket, this);
+                    if (isVirtual) {
+                        ServerToClientThread serverToClientThread = new ServerToClientThread(clientSocket, this, false);
+                        serverToClientThread.setWriterExecutor(connectionExecutor);
+                        connectionExecutor.execute(serverToClientThread);
+                    } else {
+                        new ServerToClientThread(clientSocket, this);
+                    }
                 }
                 catch (SocketTimeoutException e){
                     continue;
@@ -106,6 +346,39 @@ public class Server implements ClientListener {
         }
     }
 
+    /*
+    * Виртуальные потоки доступны начиная с Java 21. Исполнитель создается через рефлексию, чтобы
+    * сервер собирался и на более ранних версиях, где вместо него используется пул обычных потоков
+    * */
+    private static ExecutorService newConnectionExecutor(){
+        try {
+            Method factory = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+            return (ExecutorService) factory.invoke(null);
+        } catch (Exception e) {
+            System.out.println("Virtual threads are not available, platform thread pool is used.");
+            return Executors.newCachedThreadPool();
+        }
+    }
+
+    private void startChannelListener(ServerSocketChannel serverChannel){
+        try {
+            nioTransport = new NioServerTransport(this, ServerSettings.EVENT_LOOPS,
+                    ServerSettings.DISPATCH_THREADS);
+            nioTransport.start();
+            System.out.println("Server " + name + " started in non-blocking mode.");
+            nioTransport.accept(serverChannel);
+        } catch (ClosedChannelException e) {
+            //канал закрыт при остановке сервера
+        } catch (IOException e) {
+            if (!isStopped)
+                System.out.println("Server error: " + e);
+        }
+        finally {
+            if (!isStopped)
+                stopServer();
+        }
+    }
+
     private void startConsoleListener(final BufferedReader keyBoard){
         new Thread(new Runnable() {
             @Override
@@ -120,7 +393,8 @@ public class Server implements ClientListener {
                             stopServer();
                             break;
                         }
-                        System.out.println(quitMessage);
+                        if (!runServerCommand(command))
+                            System.out.println(quitMessage);
                     }
                 } catch (IOException e) {
                     System.out.println("KeyBoard error: " + e);
@@ -136,6 +410,19 @@ public class Server implements ClientListener {
         }).start();
     }
 
+    /*команды сервера, введенные в консоль, выполняются методами с аннотацией @ServerCommand*/
+    private boolean runServerCommand(String command){
+        Method serverMethod = server_methods.get(command);
+        if (serverMethod == null)
+            return false;
+        try {
+            serverMethod.invoke(this);
+        } catch (Exception e) {
+            System.out.println("Server command " + command + " error: " + e);
+        }
+        return true;
+    }
+
     /*
     * При инициализации сервера, загружаются пользовательские команды управления, описанные в классе
     * ServerSettings. Для этого создана специальная аннотация @UserCommand с двумя свойствами(commandName-
@@ -156,207 +443,430 @@ public class Server implements ClientListener {
                 user_commands.put(m.getAnnotation(UserCommand.class).commandName(),
                         m.getAnnotation(UserCommand.class).commandDescription());
             }
+            if (m.isAnnotationPresent(ServerCommand.class)){
+                server_methods.put(m.getAnnotation(ServerCommand.class).commandName(), m);
+            }
         }
     }
 
     /*
-    * метод парсит строку сообщения для того, чтобы определить была ли введена
+    * метод проверяет первое слово сообщения для того, чтобы определить была ли введена
     * какая-либо команда
     * */
     public Method getUserMethod(Message message){
-        if (message!= null && message.getMessage() != null) {
-            String[] buffer = message.getMessage().split(" ");
-            if (buffer.length > 0) {
-                if (!user_methods.containsKey(buffer[0]))
-                    return null;
-                message.setCommand(buffer[0]);
-
-                return user_methods.get(buffer[0]);
+        if (message != null) {
+            int command = commandTable.match(message.getMessage());
+            if (command >= 0) {
+                message.setCommand(commandTable.getName(command));
+                return commandTable.getMethod(command);
             }
         }
         return null;
     }
 
-    /*массовая рассылка*/
-    public void sendBroadcastMessage(ServerToClientThread fromUser, Message message) throws IOException {
+    /*
+    * рассылка в комнату отправителя: сообщение кодируется в кадр один раз и этот же кадр ставится
+    * в очереди всех участников комнаты. Рассылки в разные комнаты выполняются параллельно.
+    * Кадры, которые не поместились в очереди получателей, учитываются в failSend
+    * */
+    public void sendBroadcastMessage(ClientConnection fromUser, Message message) throws IOException {
+        sendRoomMessage(roomOf(fromUser), fromUser, message);
+    }
 
-        String logMsg;
-        try {
-            if (broadcastLock.tryLock(WAIT_SEC, TimeUnit.SECONDS)) {
-                try {
-                    String user_name = fromUser.getUser_name();
-                    for (Map.Entry<String, ServerToClientThread> user : users.entrySet()) {
-                        //самому себе не отсылаем свое же сообщение
-                        if (!user.getKey().equals(user_name)) {
-                            ServerToClientThread userTo = user.getValue();
-                            userTo.sendMessage(message);
-                        }
-                    }
-                    String command = message.getCommand();
-                    //в лог сохраняем все сообщения, кроме тех что были направлены другому пользователя напрямую
-                    if (!ServerSettings.DIRECT_TO.equals(command)) {
-                        addMessage(message.getMessage());
-                    }
-                } catch (IOException e) {
-                    throw e;
-                } finally {
-                    broadcastLock.unlock();
-                }
-            } else {
-                incFailSend();
-            }
+    public void sendRoomMessage(Room room, ClientConnection fromUser, Message message) throws IOException {
+        sendRoomMessage(room, fromUser.getUser_name(), message);
+    }
 
-        } catch (IOException e) {
-            throw e;
-        } catch (Exception e) {
-            System.out.println("TryLock error from: " + fromUser.getUser_name() + ". " + e);
-        }
+    private void sendRoomMessage(Room room, String fromLogin, Message message) throws IOException {
+
+        //в историю сохраняем все сообщения, кроме тех что были направлены другому пользователя напрямую
+        boolean toHistory = !ServerSettings.DIRECT_TO.equals(message.getCommand());
+        long start = System.nanoTime();
+        int failed = room.broadcast(codec, message, fromLogin, toHistory);
+        broadcastTime.recordSince(start);
+        if (failed > 0)
+            incFailSend(failed);
+        //участникам комнаты на других узлах рассылают их узлы
+        ClusterNode cluster = this.cluster;
+        if (cluster != null && toHistory)
+            cluster.broadcast(room.getName(), message);
 
     }
 
-    private void addMessage(String message){
-        /*храним только последний N сообщений, чтобы не захламлять память*/
-        if (messages.size() > ServerSettings.MESSAGES_SIZE){
-            messages.remove(0);
-        }
-        messages.add(message);
+    /*
+    * собираем все  последние сообщения комнаты для вновь вошедшего в нее
+    * */
+    public void sendLastMessages(ClientConnection user) throws IOException {
+        sendLastMessages(user, 0);
     }
 
     /*
-    * собираем все  последние сообщения для вновь подключившегося
+    * При повторном подключении клиент сообщает номер последнего полученного сообщения, и ему отправляются
+    * только пропущенные. Если часть пропущенных уже вытеснена из истории или номер относится к другой
+    * нумерации (история короче, чем думает клиент), отправляется вся история. Сообщение с историей несет
+    * номер последнего вошедшего в него сообщения, от которого клиент продолжит отсчет
     * */
-    public void sendLastMessages(ServerToClientThread user) throws IOException {
+    public void sendLastMessages(ClientConnection user, long lastSeenSequence) throws IOException {
 
-        synchronized (lastMessagesMonitor) {
-            StringBuilder sb = new StringBuilder();
-            for (String m : messages) {
-                sb.append(m).append("\n");
-            }
+        MessageHistory history = roomOf(user).getHistory();
+        List<MessageHistory.Entry> entries;
+        if (lastSeenSequence > 0 && lastSeenSequence <= history.lastSequence()
+                && lastSeenSequence >= history.firstRetainedSequence() - 1) {
+            entries = history.snapshotAfter(lastSeenSequence);
+        } else {
+            entries = history.snapshot();
+        }
 
-            if (sb.length() > 0) {
-                Message message = new Message();
-                message.setMessage(sb.toString());
-                user.sendMessage(message);
-            }
+        StringBuilder sb = new StringBuilder();
+        for (MessageHistory.Entry m : entries) {
+            sb.append(m.getMessage()).append("\n");
+        }
+
+        if (sb.length() > 0) {
+            Message message = new Message();
+            message.setMessage(sb.toString());
+            message.setSequence(entries.get(entries.size() - 1).getSequence());
+            //история - объемная рассылка, она не должна задерживать ответы на команды
+            user.sendMessage(message, OutboundQueue.BULK);
         }
     }
 
     public boolean isFreeUserLogin(String login){
-        return users.containsKey(login);
+        return users.contains(login);
     }
 
-    public void addUser(ServerToClientThread user, String userName){
-        users.put(userName, user);
+    public void addUser(ClientConnection user, String userName){
+        users.claim(userName, user);
     }
 
-    public ServerToClientThread removeUser(ServerToClientThread user){
-        if (user != null) {
-            return users.remove(user.getUser_name());
+    public ClientConnection removeUser(ClientConnection user){
+        if (user != null && user.getUser_name() != null) {
+            //удаляем только если под этим логином зарегистрировано именно это соединение
+            return releaseLogin(user.getUser_name(), user) ? user : null;
         }
         return null;
     }
 
-    public void addLog(ServerToClientThread userThread, String logMessage){
+    private boolean releaseLogin(String login, ClientConnection user){
+        if (!users.release(login, user))
+            return false;
+        presence.left(login);
+        ClusterNode cluster = this.cluster;
+        if (cluster != null)
+            cluster.userRemoved(login);
+        return true;
+    }
+
+    /*новый логин занимается так же атомарно, как при входе, прежний освобождается уже после этого*/
+    private boolean renameLogin(ClientConnection user, String previousLogin, String newLogin){
+        ClusterNode cluster = this.cluster;
+        if (cluster != null && cluster.isRemoteUser(newLogin))
+            return false;
+        if (!users.rename(user, previousLogin, newLogin))
+            return false;
+        presence.renamed(previousLogin, newLogin);
+        if (cluster != null) {
+            cluster.userAdded(newLogin);
+            cluster.userRemoved(previousLogin);
+        }
+        return true;
+    }
+
+    /*
+    * при старте последние сообщения каждой комнаты восстанавливаются из журнала; журнал читается
+    * пачками, в памяти остается не больше ServerSettings.MESSAGES_SIZE сообщений на комнату
+    * */
+    private void restoreHistory(){
+        long offset = journal.getFirstOffset();
+        long restored = 0;
+        List<MessageJournal.Record> records;
+        while (!(records = journal.read(offset, 1024)).isEmpty()) {
+            for (MessageJournal.Record record : records) {
+                MessageHistory history = restoredHistory.get(record.getRoom());
+                //нумерация продолжается с номеров из журнала; при разрыве в номерах начинаем историю заново
+                if (history == null || history.lastSequence() + 1 != record.getSequence()) {
+                    history = new MessageHistory(ServerSettings.MESSAGES_SIZE, Math.max(1, record.getSequence()));
+                    restoredHistory.put(record.getRoom(), history);
+                }
+                history.append(record.getMessage());
+            }
+            restored += records.size();
+            offset = records.get(records.size() - 1).getOffset() + 1;
+        }
+        System.out.println("Journal: " + restored + " messages in " + restoredHistory.size() + " rooms restored.");
+    }
+
+    private Room newRoom(String roomName){
+        MessageHistory history = restoredHistory.get(roomName);
+        if (history == null)
+            history = new MessageHistory(ServerSettings.MESSAGES_SIZE);
+        return new Room(roomName, history, journal, roomLockWait);
+    }
+
+    /*комната пользователя; соединение, которое еще не вошло ни в одну комнату, относится к основной*/
+    private Room roomOf(ClientConnection user){
+        Room room = user.getRoom();
+        return room != null ? room : defaultRoom;
+    }
+
+    public Room getRoom(String roomName){
+        return rooms.get(roomName);
+    }
+
+    /*
+    * переводит пользователя в указанную комнату, при необходимости создавая ее.
+    * Возвращает комнату, из которой пользователь вышел, или null
+    * */
+    public Room moveToRoom(ClientConnection user, String roomName){
+        return moveToRoom(user, user.getUser_name(), roomName);
+    }
+
+    private Room moveToRoom(ClientConnection user, String login, String roomName){
+        Room previous = leaveRoom(user);
+        while (true) {
+            Room room = rooms.get(roomName);
+            if (room == null) {
+                Room newRoom = newRoom(roomName);
+                room = rooms.putIfAbsent(roomName, newRoom);
+                if (room == null) {
+                    room = newRoom;
+                    restoredHistory.remove(roomName);
+                }
+            }
+            //комната могла опустеть и закрыться, пока мы в нее входили, тогда берем новую
+            if (room.join(login, user)) {
+                user.setRoom(room);
+                return previous;
+            }
+            rooms.remove(roomName, room);
+        }
+    }
+
+    /*выводит пользователя из его комнаты; опустевшие комнаты, кроме основной, удаляются*/
+    public Room leaveRoom(ClientConnection user){
+        Room room = user.getRoom();
+        if (room == null)
+            return null;
+        user.setRoom(null);
+        if (room.leave(user.getUser_name(), user) && room != defaultRoom && room.closeIfEmpty())
+            rooms.remove(room.getName(), room);
+        return room;
+    }
+
+    public void addLog(ClientConnection userThread, String logMessage){
         System.out.println(userThread.getName() + ": " + logMessage);
     }
 
-    // проверяем доступность логина и в случае успеха, добаляем его в список рассылки
-    public boolean loginCheck(ServerToClientThread user, String login){
+    // проверяем доступность логина и в случае успеха, добаляем его в список рассылки.
+    // проверка и добавление выполняются одной атомарной операцией реестра, поэтому общий замок не нужен
+    public boolean loginCheck(ClientConnection user, String login){
 
-        if (!isFreeUserLogin(login)){
-            addUser(user, login);
-            return true;
+        if (!isValidLogin(login))
+            return false;
+        ClusterNode cluster = this.cluster;
+        //логин должен быть свободен во всем кластере
+        if (cluster != null && cluster.isRemoteUser(login))
+            return false;
+        if (!users.claim(login, user))
+            return false;
+        presence.joined(login);
+        if (cluster != null)
+            cluster.userAdded(login);
+        return true;
+    }
+
+    /*========================================================================================================*/
+    /*события других узлов кластера*/
+
+    /*
+    * пользователь вошел на другом узле. Если этот логин одновременно заняли и здесь, пользователь
+    * остается на узле с меньшим именем, на другом узле он отключается
+    * */
+    void onClusterLogin(String login, String node, boolean isNew){
+        if (isNew)
+            presence.joined(login);
+        ClientConnection user = users.get(login);
+        if (user != null && node.compareTo(cluster.getNodeId()) < 0) {
+            addLog(user, "LOGIN '" + login + "' IS TAKEN ON NODE " + node + ", USER IS DISCONNECTED.");
+            user.disconnect();
         }
-        return false;
+    }
+
+    /*пользователь другого узла вышел или узел отключился*/
+    void onClusterLogout(String login){
+        presence.left(login);
+    }
+
+    /*рассылка с другого узла идет участникам комнаты этого узла; если здесь такой комнаты нет, некому и рассылать*/
+    void onClusterBroadcast(String roomName, String text) throws IOException {
+        Room room = rooms.get(roomName);
+        if (room == null)
+            return;
+        Message message = new Message();
+        message.setMessage(text);
+        int failed = room.broadcast(codec, message, null, true);
+        if (failed > 0)
+            incFailSend(failed);
+    }
+
+    void onClusterDirect(String login, String text) throws IOException {
+        ClientConnection user = users.get(login);
+        if (user == null)
+            return;
+        Message message = new Message();
+        message.setMessage(text);
+        user.sendMessage(message, OutboundQueue.BULK);
+    }
+
+    /*логины пользователей этого узла*/
+    List<String> getLocalLogins(){
+        return users.logins();
+    }
+
+    public void setCluster(final ClusterNode cluster){
+        this.cluster = cluster;
+        metrics.gauge("cluster.peers", new Metrics.Gauge() {
+            @Override
+            public long value() {
+                return cluster.getPeers().size();
+            }
+        });
+        metrics.gauge("cluster.remoteUsers", new Metrics.Gauge() {
+            @Override
+            public long value() {
+                return cluster.getRemoteUsers().size();
+            }
+        });
+        metrics.gauge("cluster.relayed", new Metrics.Gauge() {
+            @Override
+            public long value() {
+                return cluster.getRelayed();
+            }
+        });
+        metrics.gauge("cluster.batches", new Metrics.Gauge() {
+            @Override
+            public long value() {
+                return cluster.getBatches();
+            }
+        });
+        metrics.gauge("cluster.dropped", new Metrics.Gauge() {
+            @Override
+            public long value() {
+                return cluster.getDropped();
+            }
+        });
+    }
+
+    public ClusterNode getCluster(){
+        return cluster;
     }
 
     /*========================================================================================================*/
     @Override
-    public void onStartSocket(ServerToClientThread userThread, Socket socket) {
+    public void onStartSocket(ClientConnection userThread, Socket socket) {
+        connections.incrementAndGet();
         addLog(userThread, "started.");
     }
 
     @Override
-    public boolean onLoggedClient(ServerToClientThread userThread, Socket socket, Message receivedMessage) throws IOException {
+    public boolean onLoggedClient(ClientConnection userThread, Socket socket, Message receivedMessage) throws IOException {
 
-        synchronized (loggedMonitor) {
-            String command = receivedMessage.getCommand();
-            String user_name = receivedMessage.getUser();
+        String command = receivedMessage.getCommand();
+        String user_name = receivedMessage.getUser();
 
-            Message answerMessage = new Message();
-            answerMessage.setUser(user_name);
-
-            boolean isLogged = false;
-            //если пользователь только присоединился, проверяем доступность выбранного логина
-            if (command.equals(ServerSettings.LOGIN_CHECK)) {
-                if (loginCheck(userThread, receivedMessage.getUser())) {
-                    // если проверка логина прошла успешно, отправляем клиенту команду с подтверждением
-                    answerMessage.setCommand(ServerSettings.LOGIN_IS_FREE);
-                    isLogged = true;
-                    userThread.setUser_name(user_name);
-                } else
-                    answerMessage.setCommand(ServerSettings.LOGIN_IS_NOT_FREE);
-
-                userThread.sendMessage(answerMessage);
-                //для нового клиента нужно отправить последние N сообщений и
-                //разослать всем уведомление о новом пользователе
-                if (isLogged) {
-                    sendLastMessages(userThread);
-                    String msg = "USER '" + user_name + "' JOIN THE CHAT.";
-                    answerMessage.setMessage(msg);
-                    addLog(userThread, msg);
-                    sendBroadcastMessage(userThread, answerMessage);
+        Message answerMessage = new Message();
+        answerMessage.setUser(user_name);
+
+        boolean isLogged = false;
+        boolean compression = false;
+        long lastSeenSequence = receivedMessage.getSequence();
+        //если пользователь только присоединился, проверяем доступность выбранного логина
+        if (command.equals(ServerSettings.LOGIN_CHECK)) {
+            if (loginCheck(userThread, receivedMessage.getUser())) {
+                // если проверка логина прошла успешно, отправляем клиенту команду с подтверждением
+                answerMessage.setCommand(ServerSettings.LOGIN_IS_FREE);
+                isLogged = true;
+                userThread.setUser_name(user_name);
+                //текст сообщения логина - комната, в которой клиент был до переподключения, и признаки
+                //возможностей клиента; номер последнего полученного сообщения имеет смысл только для той же комнаты
+                String roomName = null;
+                if (receivedMessage.getMessage() != null) {
+                    for (String token : receivedMessage.getMessage().split(" ")) {
+                        if (FrameCompression.CAPABILITY.equals(token))
+                            compression = ServerSettings.COMPRESSION && FrameCompression.isAvailable();
+                        else if (!token.isEmpty())
+                            roomName = token;
+                    }
                 }
+                if (!isValidRoomName(roomName)) {
+                    roomName = ServerSettings.DEFAULT_ROOM;
+                    lastSeenSequence = 0;
+                }
+                moveToRoom(userThread, user_name, roomName);
+                answerMessage.setMessage(compression ? roomName + " " + FrameCompression.CAPABILITY : roomName);
+            } else
+                answerMessage.setCommand(ServerSettings.LOGIN_IS_NOT_FREE);
+
+            userThread.sendMessage(answerMessage);
+            //сжатие включаем только после ответа, который клиент еще читает без него
+            if (compression)
+                userThread.setCompression(true);
+            //для нового клиента нужно отправить последние N сообщений (или только пропущенные,
+            //если клиент сообщил номер последнего полученного) и разослать всем уведомление о новом пользователе
+            if (isLogged) {
+                sendLastMessages(userThread, lastSeenSequence);
+                //уведомление - отдельное сообщение, без команды подтверждения логина; рассылается вместе
+                //с уведомлениями о других вошедших за то же окно
+                addLog(userThread, "USER '" + user_name + "' JOIN THE CHAT.");
+                notices.joined(roomOf(userThread), user_name);
             }
-            return isLogged;
         }
+        return isLogged;
 
     }
 
     @Override
-    public void onReceiveMessage(ServerToClientThread userThread, Socket socket, Message receivedMessage) throws IOException {
-
-        synchronized (receiveMonitor) {
-            Method userMethod = getUserMethod(receivedMessage);
-            String message = receivedMessage.getMessage();
+    public void onReceiveMessage(ClientConnection userThread, Socket socket, Message receivedMessage) throws IOException {
 
+        messagesIn.increment();
+        String message = receivedMessage.getMessage();
+        int command = commandTable.match(message);
+        // смотрим не прислал ли пользователь запрос на выполнение сервером какой-либо команды
+        if (command >= 0) {
+        /*если пользователь ввел команду для сервера, запускаем ее выполнение*/
+            receivedMessage.setCommand(commandTable.getName(command));
+            long start = System.nanoTime();
+            try {
+                commandTable.getHandler(command).execute(this, userThread);
+            } catch (Exception e) {
+                onException(userThread, socket, e);
+            } finally {
+                commandTimes[command].recordSince(start);
+            }
+        } else {
+        /*обычное сообщение расслается всем онлайн пользователям*/
             Message answerMessage = new Message();
             answerMessage.setUser(receivedMessage.getUser());
-            // смотрим не прислал ли пользователь запрос на выполнение сервером какой-либо команды
-            if (userMethod != null) {
-            /*если пользователь ввел команду для сервера, запускаем ее выполнение*/
-                try {
-                    userMethod.invoke(this, userThread);
-                } catch (Exception e) {
-                    onException(userThread, socket, e);
-                }
-            } else {
-            /*обычное сообщение расслается всем онлайн пользователям*/
-                answerMessage.setMessage(receivedMessage.getUser() + ": " + message);
-                sendBroadcastMessage(userThread, answerMessage);
-            }
+            answerMessage.setMessage(receivedMessage.getUser() + ": " + message);
+            sendBroadcastMessage(userThread, answerMessage);
         }
     }
 
     @Override
-    public void onStopSocket(ServerToClientThread userThread, Socket socket) {
+    public void onStopSocket(ClientConnection userThread, Socket socket) {
+        connections.decrementAndGet();
+        presence.unsubscribe(userThread);
         removeUser(userThread);
-        synchronized (stopMonitor) {
-            try {
-                Message message = new Message();
-                String logMessage = "USER '" + userThread.getUser_name() + "' QUIT THE CHAT.";
-                message.setMessage(logMessage);
-                addLog(userThread, logMessage);
-                sendBroadcastMessage(userThread, message);
-
-            } catch (Exception e) {
-//                onException(userThread, socket, e);
-            }
-        }
+        Room room = leaveRoom(userThread);
+        String login = userThread.getUser_name();
+        addLog(userThread, "USER '" + login + "' QUIT THE CHAT.");
+        //соединение, которое так и не вошло в чат, уведомления не заслуживает
+        if (login != null)
+            notices.left(room != null ? room : defaultRoom, login);
     }
 
     @Override
-    public void onException(ServerToClientThread userThread, Socket socket, Exception e) {
+    public void onException(ClientConnection userThread, Socket socket, Exception e) {
         addLog(userThread, userThread.getUser_name() + ": " + e);
     }
 
@@ -366,20 +876,25 @@ public class Server implements ClientListener {
      * */
     @UserCommand(commandName = ServerSettings.USERS,
             commandDescription = "to see users online type /USERS in your chat.")
-    public void getOnlineUsers(ServerToClientThread userTo) throws IOException {
+    public void getOnlineUsers(ClientConnection userTo) throws IOException {
         int averageSizeofNickName = 6;
-        synchronized (usersMonitor) {
-            StringBuilder onlineUsers = new StringBuilder(users.size() * averageSizeofNickName);
-            int i = 0;
-            for (Map.Entry<String, ServerToClientThread> e : users.entrySet()) {
-                if (i++ == 0)
-                    onlineUsers.append("ONLINE USERS:\n");
-                onlineUsers.append(e.getKey()).append("\n");
+        StringBuilder onlineUsers = new StringBuilder(users.size() * averageSizeofNickName);
+        int i = 0;
+        for (Map.Entry<String, ClientConnection> e : users.asMap().entrySet()) {
+            if (i++ == 0)
+                onlineUsers.append("ONLINE USERS:\n");
+            onlineUsers.append(e.getKey()).append("\n");
+        }
+        //пользователи других узлов кластера
+        ClusterNode cluster = this.cluster;
+        if (cluster != null) {
+            for (String login : cluster.getRemoteUsers()) {
+                onlineUsers.append(login).append("\n");
             }
-            Message message = new Message();
-            message.setMessage(onlineUsers.toString());
-            userTo.sendMessage(message);
         }
+        Message message = new Message();
+        message.setMessage(onlineUsers.toString());
+        userTo.sendMessage(message);
     }
 
 
@@ -388,33 +903,36 @@ public class Server implements ClientListener {
     * */
     @UserCommand(commandName = ServerSettings.RENAME,
             commandDescription = "to rename your login type /RENAME newLogin in your chat.")
-    public void changeLogin(ServerToClientThread userTo) throws IOException {
-        synchronized (renameMonitor) {
-            String previousLogin = userTo.getUser_name();
-            String receiveMessage = userTo.getReceivedMessage().getMessage();
-            String newLogin = receiveMessage.substring(ServerSettings.RENAME.length() + 1, receiveMessage.length());
-            if (loginCheck(userTo, newLogin)) {
-                //если новый логин доступен, вначале удаляем привзяку к старому нику
-                users.remove(userTo.getUser_name());
-                userTo.setUser_name(newLogin);
-                //затем добавляем клиента как нового в список рассылки
-                users.put(newLogin, userTo);
-
-                Message message = new Message();
-                message.setMessage("YOUR LOGIN WAS SUCCESSFULLY CHANGED TO '" + newLogin + "'");
-                userTo.sendMessage(message);
-
-                //оповещаем остальных
-                message = new Message();
-                String msg = "USER '" + previousLogin + "' CHANGED NAME TO '" + newLogin + "'.";
-                message.setMessage(msg);
-                addLog(userTo, msg);
-                sendBroadcastMessage(userTo, message);
-            } else {
-                Message message = new Message();
-                message.setMessage("LOGIN '" + newLogin + "' IS BUSY.");
-                userTo.sendMessage(message);
-            }
+    public void changeLogin(ClientConnection userTo) throws IOException {
+        String previousLogin = userTo.getUser_name();
+        String receiveMessage = userTo.getReceivedMessage().getMessage();
+        String newLogin = receiveMessage.substring(ServerSettings.RENAME.length() + 1, receiveMessage.length());
+        if (!isValidLogin(newLogin)) {
+            Message message = new Message();
+            message.setMessage("LOGIN MUST NOT CONTAIN LINE BREAKS OR TABS.");
+            userTo.sendMessage(message);
+            return;
+        }
+        if (renameLogin(userTo, previousLogin, newLogin)) {
+            userTo.setUser_name(newLogin);
+            Room room = userTo.getRoom();
+            if (room != null)
+                room.rename(previousLogin, newLogin, userTo);
+
+            Message message = new Message();
+            message.setMessage("YOUR LOGIN WAS SUCCESSFULLY CHANGED TO '" + newLogin + "'");
+            userTo.sendMessage(message);
+
+            //оповещаем остальных
+            message = new Message();
+            String msg = "USER '" + previousLogin + "' CHANGED NAME TO '" + newLogin + "'.";
+            message.setMessage(msg);
+            addLog(userTo, msg);
+            sendBroadcastMessage(userTo, message);
+        } else {
+            Message message = new Message();
+            message.setMessage("LOGIN '" + newLogin + "' IS BUSY.");
+            userTo.sendMessage(message);
         }
     }
 
@@ -424,55 +942,175 @@ public class Server implements ClientListener {
     * */
     @UserCommand(commandName = ServerSettings.DIRECT_TO,
             commandDescription = "to send direct message to the user type /DIRECTTO :user_name 'your sentence' .")
-    public boolean sendDirectUserMessage(ServerToClientThread userFrom) throws IOException {
-        synchronized (directMonitor) {
-            StringBuilder sb = new StringBuilder(userFrom.getReceivedMessage().getMessage());
+    public boolean sendDirectUserMessage(ClientConnection userFrom) throws IOException {
+        StringBuilder sb = new StringBuilder(userFrom.getReceivedMessage().getMessage());
 //       пробел и двоеточие удаляем для получения первого символа никнейма
-            String command = ServerSettings.DIRECT_TO;
-            if (sb.length() < command.length()+2)
-                return false;
+        String command = ServerSettings.DIRECT_TO;
+        if (sb.length() < command.length()+2)
+            return false;
 
-            sb.delete(0, ServerSettings.DIRECT_TO.length() + 2);
-            int i = 0;
-            while (i < sb.length() && sb.charAt(i) != ' ') {
-                i++;
-            }
+        sb.delete(0, ServerSettings.DIRECT_TO.length() + 2);
+        int i = 0;
+        while (i < sb.length() && sb.charAt(i) != ' ') {
+            i++;
+        }
         /*вычленили ник того, кому нужно отправить*/
-            String targetUser = sb.substring(0, i);
-            Message message = new Message();
-            StringBuilder answer = new StringBuilder();
-        /*проверяем валидность ника и отправляем сообщение*/
-            if (users.containsKey(targetUser)) {
-                if (i >= sb.length())
-                    return false;
-                answer.append("DIRECT MESSAGE FROM ").append(userFrom.getUser_name())
-                        .append(": ").append(sb.substring(i + 1, sb.length()));
-
-                ServerToClientThread target = users.get(targetUser);
-                message.setMessage(answer.toString());
-                target.sendMessage(message);
+        String targetUser = sb.substring(0, i);
+        Message message = new Message();
+        StringBuilder answer = new StringBuilder();
+        /*проверяем валидность ника и отправляем сообщение; пользователю другого узла сообщение передает кластер*/
+        ClusterNode cluster = this.cluster;
+        ClientConnection target = users.get(targetUser);
+        if (target == null && cluster != null && cluster.isRemoteUser(targetUser)) {
+            if (i >= sb.length())
+                return false;
+            answer.append("DIRECT MESSAGE FROM ").append(userFrom.getUser_name())
+                    .append(": ").append(sb.substring(i + 1, sb.length()));
+            if (cluster.sendDirect(targetUser, answer.toString()))
                 return true;
+            answer.setLength(0);
+        }
+        //пользователь мог выйти между проверкой и отправкой, поэтому соединение берется один раз
+        if (target != null) {
+            if (i >= sb.length())
+                return false;
+            answer.append("DIRECT MESSAGE FROM ").append(userFrom.getUser_name())
+                    .append(": ").append(sb.substring(i + 1, sb.length()));
 
-            } else {
-                answer.append("USER '").append(targetUser).append("' IS NOT IN THIS CHAT.");
-                message.setMessage(answer.toString());
-                userFrom.sendMessage(message);
-            }
+            message.setMessage(answer.toString());
+            //для получателя личное сообщение - такой же поток чата, как рассылка
+            target.sendMessage(message, OutboundQueue.BULK);
+            return true;
+
+        } else {
+            answer.append("USER '").append(targetUser).append("' IS NOT IN THIS CHAT.");
+            message.setMessage(answer.toString());
+            userFrom.sendMessage(message);
         }
         return false;
     }
 
+    /*Переход в другую комнату, несуществующая комната создается.
+    Команда - ServerSettings.JOIN
+    Остальные участники обеих комнат получают уведомление, вошедший - последние сообщения новой комнаты
+    * */
+    @UserCommand(commandName = ServerSettings.JOIN,
+            commandDescription = "to join the room type /JOIN room_name")
+    public void joinRoom(ClientConnection userTo) throws IOException {
+        String receiveMessage = userTo.getReceivedMessage().getMessage();
+        String roomName = receiveMessage.length() > ServerSettings.JOIN.length()
+                ? receiveMessage.substring(ServerSettings.JOIN.length() + 1).trim() : "";
+        if (!isValidRoomName(roomName)) {
+            Message message = new Message();
+            message.setMessage("WRONG ROOM NAME '" + roomName + "'.");
+            userTo.sendMessage(message);
+            return;
+        }
+        changeRoom(userTo, roomName);
+    }
+
+    /*Возврат в основную комнату.
+    Команда - ServerSettings.LEAVE
+    * */
+    @UserCommand(commandName = ServerSettings.LEAVE,
+            commandDescription = "to leave the room and return to the main room type /LEAVE")
+    public void leaveRoomCommand(ClientConnection userTo) throws IOException {
+        changeRoom(userTo, ServerSettings.DEFAULT_ROOM);
+    }
+
+    /*перевод строки и табуляция разделяют строки и логины в событиях присутствия, в логине их быть не может*/
+    static boolean isValidLogin(String login) {
+        return login != null && login.indexOf('\n') < 0 && login.indexOf('\t') < 0;
+    }
+
+    private static boolean isValidRoomName(String roomName) {
+        return roomName != null && !roomName.isEmpty() && roomName.indexOf(' ') < 0
+                && roomName.length() <= ServerSettings.ROOM_NAME_MAX_LENGTH;
+    }
+
+    private void changeRoom(ClientConnection userTo, String roomName) throws IOException {
+        String user_name = userTo.getUser_name();
+        Room current = userTo.getRoom();
+        if (current != null && current.getName().equals(roomName)) {
+            Message message = new Message();
+            message.setMessage("YOU ARE ALREADY IN THE ROOM '" + roomName + "'.");
+            userTo.sendMessage(message);
+            return;
+        }
+
+        Room previous = moveToRoom(userTo, roomName);
+        if (previous != null) {
+            Message message = new Message();
+            message.setMessage("USER '" + user_name + "' LEFT THE ROOM.");
+            sendRoomMessage(previous, userTo, message);
+        }
+
+        //команда JOIN в ответе говорит клиенту, что дальше пойдет нумерация сообщений новой комнаты,
+        //поэтому она идет в одной полосе с сообщениями комнат и не обгоняет еще не отправленные сообщения прежней
+        Message message = new Message();
+        message.setMessage("YOU JOINED THE ROOM '" + roomName + "'.");
+        message.setCommand(ServerSettings.JOIN);
+        userTo.sendMessage(message, OutboundQueue.BULK);
+        sendLastMessages(userTo);
+
+        message = new Message();
+        String msg = "USER '" + user_name + "' JOINED THE ROOM '" + roomName + "'.";
+        message.setMessage(msg);
+        addLog(userTo, msg);
+        sendBroadcastMessage(userTo, message);
+    }
+
+    /*Список комнат с числом участников
+    Команда - ServerSettings.ROOMS
+    * */
+    @UserCommand(commandName = ServerSettings.ROOMS,
+            commandDescription = "to see the rooms type /ROOMS")
+    public void getRooms(ClientConnection userTo) throws IOException {
+        StringBuilder sb = new StringBuilder("ROOMS:\n");
+        for (Room room : rooms.values()) {
+            sb.append(room.getName()).append(" (").append(room.size()).append(")");
+            if (room == userTo.getRoom())
+                sb.append(" *");
+            sb.append("\n");
+        }
+        Message message = new Message();
+        message.setMessage(sb.toString());
+        userTo.sendMessage(message);
+    }
+
+    /*Подписка на присутствие: полный список пользователей, затем только изменения с номером версии.
+    /PRESENCE версия - догнать изменения после этой версии, /PRESENCE OFF - отписаться
+    Команда - ServerSettings.PRESENCE
+    * */
+    @UserCommand(commandName = ServerSettings.PRESENCE,
+            commandDescription = "to follow who is online type /PRESENCE (/PRESENCE version to resync, /PRESENCE OFF to stop)")
+    public void presence(ClientConnection userTo) throws IOException {
+        String receiveMessage = userTo.getReceivedMessage().getMessage();
+        String argument = receiveMessage.length() > ServerSettings.PRESENCE.length()
+                ? receiveMessage.substring(ServerSettings.PRESENCE.length() + 1).trim() : "";
+        if (ServerSettings.PRESENCE_OFF.equalsIgnoreCase(argument)) {
+            presence.unsubscribe(userTo);
+            return;
+        }
+        long since = 0;
+        try {
+            if (!argument.isEmpty())
+                since = Long.parseLong(argument);
+        } catch (NumberFormatException e) {
+            //непонятная версия - подписка с полным списком
+        }
+        presence.subscribe(userTo, since);
+    }
+
     /*Обработка запроса на выход пользователя из чата.
     * Команда - ServerSettings.QUIT
     * */
     @UserCommand(commandName = ServerSettings.QUIT,
             commandDescription = "to quit the chat type /QUIT")
-    public void quit(ServerToClientThread userTo) throws IOException {
-        synchronized (quitMonitor) {
-            Message message = new Message();
-            message.setCommand(ServerSettings.SESSION_STOPPED);
-            userTo.sendMessage(message);
-        }
+    public void quit(ClientConnection userTo) throws IOException {
+        Message message = new Message();
+        message.setCommand(ServerSettings.SESSION_STOPPED);
+        userTo.sendMessage(message);
     }
 
     /*Получение информации по доступным командам пользователя
@@ -480,24 +1118,22 @@ public class Server implements ClientListener {
 * */
     @UserCommand(commandName = ServerSettings.HELP,
             commandDescription = "get available user commands")
-    public String help(ServerToClientThread userTo) throws IOException {
-        synchronized (helpMonitor) {
-            int averageSizeofCommand = 5;
-            StringBuilder commands = new StringBuilder(user_commands.size() * averageSizeofCommand);
-            int i = 0;
-            for (Map.Entry<String, String> e : user_commands.entrySet()) {
-                if (i++ == 0)
-                    commands.append("AVAILABLE USER COMMANDS:\n");
-                String command = e.getKey();
-                if (!command.equals(ServerSettings.HELP)) {
-                    commands.append(command).append(" - ").append(e.getValue()).append("\n");
-                }
+    public String help(ClientConnection userTo) throws IOException {
+        int averageSizeofCommand = 5;
+        StringBuilder commands = new StringBuilder(user_commands.size() * averageSizeofCommand);
+        int i = 0;
+        for (Map.Entry<String, String> e : user_commands.entrySet()) {
+            if (i++ == 0)
+                commands.append("AVAILABLE USER COMMANDS:\n");
+            String command = e.getKey();
+            if (!command.equals(ServerSettings.HELP)) {
+                commands.append(command).append(" - ").append(e.getValue()).append("\n");
             }
-            Message message = new Message();
-            message.setMessage(commands.toString());
-            userTo.sendMessage(message);
-            return commands.toString();
         }
+        Message message = new Message();
+        message.setMessage(commands.toString());
+        userTo.sendMessage(message);
+        return commands.toString();
     }
 /*========================================================================================================*/
 
@@ -506,8 +1142,17 @@ public class Server implements ClientListener {
     public void stopServer(){
         if (serverSocket != null){
             try {
-                serverSocket.close();
                 isStopped = true;
+                serverSocket.close();
+                if (nioTransport != null)
+                    nioTransport.stop();
+                if (connectionExecutor != null)
+                    connectionExecutor.shutdown();
+                notices.stop();
+                if (journal != null)
+                    journal.close();
+                if (cluster != null)
+                    cluster.stop();
             } catch (IOException e) {
                 e.printStackTrace();
             }
@@ -515,8 +1160,44 @@ public class Server implements ClientListener {
         }
     }
 
-    private void incFailSend(){
-        failSend.getAndIncrement();
+    /*размер очереди отправки каждого пользователя, позволяет найти клиентов, которые не успевают читать*/
+    @ServerCommand(commandName = ServerSettings.QUEUES,
+            commandDescription = "to see outbound queue depth of every user type /QUEUES")
+    public void printQueues(){
+        System.out.println("OUTBOUND QUEUES:");
+        for (Map.Entry<String, ClientConnection> e : users.asMap().entrySet()) {
+            ClientConnection user = e.getValue();
+            System.out.println(e.getKey() + ": queued " + user.getOutboundQueueSize()
+                    + ", dropped " + user.getDroppedFrames());
+        }
+    }
+
+    @ServerCommand(commandName = ServerSettings.COMPRESSION_STATS,
+            commandDescription = "to see frame compression ratio and cost type /COMPRESSION")
+    public void printCompression(){
+        long frames = FrameCompression.getFrames();
+        long bytesIn = FrameCompression.getBytesIn();
+        System.out.println("COMPRESSION" + Metrics.JVM_MARK + ": " + frames + " frames, " + bytesIn + " -> " + FrameCompression.getBytesOut() + " bytes"
+                + (frames == 0 ? "" : String.format(", ratio %.2f, %.1f us per frame",
+                (double) FrameCompression.getBytesOut() / bytesIn, FrameCompression.getNanos() / 1000.0 / frames)));
+    }
+
+    @ServerCommand(commandName = ServerSettings.STATS,
+            commandDescription = "to see server metrics type /STATS")
+    public void printStats(){
+        System.out.println("STATS:");
+        for (String line : metrics.report()) {
+            System.out.println(line);
+        }
+        System.out.println("metrics marked" + Metrics.JVM_MARK + " are shared by all servers in this JVM");
+    }
+
+    public Metrics getMetrics() {
+        return metrics;
+    }
+
+    private void incFailSend(int count){
+        failSend.getAndAdd(count);
     }
 
     public ServerSocket getServerSocket() {
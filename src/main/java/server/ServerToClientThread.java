@@ -1,87 +1,188 @@
 package server;
 
 
+import settings.BufferPool;
 import settings.ClientListener;
+import settings.FrameDecoder;
 import settings.Message;
-import settings.ObjectSerialization;
+import settings.ServerSettings;
 
 import java.io.*;
 import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
 
 /* отдельный поток для работы с каждым клиентом*/
-public class ServerToClientThread extends Thread {
-    private Socket socket;
-    private String user_name;
-    private DataOutputStream out;
-    private DataInputStream in;
-    private boolean isLogged;
-    private Message receivedMessage;
-    private ClientListener clientListener;
-    private ObjectSerialization serialization;
+public class ServerToClientThread extends ClientConnection implements Runnable {
+    private OutputStream out;
+    private InputStream in;
+    private FrameDecoder decoder;
+    private Executor writerExecutor;
+    private int frameReadTimeoutMs = ServerSettings.FRAME_READ_TIMEOUT_MS;
 
     public ServerToClientThread(Socket socket, ClientListener clientListener){
-        this.socket = socket;
-        this.clientListener = clientListener;
-        isLogged = false;
-        serialization = new ObjectSerialization();
+        this(socket, clientListener, true);
+    }
+
+    /*startThread = false - соединение запустит исполнитель (виртуальные потоки) или оно не запускается вовсе*/
+    public ServerToClientThread(Socket socket, ClientListener clientListener, boolean startThread){
+        super(socket, clientListener);
 
-        start();
+        if (startThread)
+            new Thread(this, getName()).start();
     }
 
     @Override
     public void run() {
+        Socket socket = getSocket();
+        ClientListener clientListener = getClientListener();
         try
         {
-            in = new DataInputStream(socket.getInputStream());
-            out = new DataOutputStream(socket.getOutputStream());
+            in = socket.getInputStream();
+            decoder = new FrameDecoder(ServerSettings.MAX_FRAME_SIZE, false, BufferPool.SHARED);
+            out = socket.getOutputStream();
+            startWriter();
             clientListener.onStartSocket(this, socket);
             while (true) {
-                receivedMessage = readFromClient();
-                if (!isLogged)
-                    isLogged = clientListener.onLoggedClient(this, socket, receivedMessage);
-                else
-                    clientListener.onReceiveMessage(this, socket, receivedMessage);
+                onMessage(readFromClient());
             }
         }
         catch(Exception e) {
             clientListener.onException(this, socket, e);
+            try {
+                //ошибочный кадр или оборванный на середине кадр: соединение дальше не читается
+                socket.close();
+            } catch (IOException ignored) {
+            }
         }
         finally {
+            outbound.close();
+            if (decoder != null)
+                decoder.release();
             clientListener.onStopSocket(this, socket);
         }
 
     }
 
-    public Message readFromClient() throws Exception {
+    /*
+    * запись в сокет выполняет отдельный поток, который разбирает очередь исходящих кадров,
+    * поэтому медленный клиент задерживает только собственную очередь
+    * */
+    private void startWriter() {
+        Runnable writer = new Runnable() {
+            @Override
+            public void run() {
+                writeToClient();
+            }
+        };
+        if (writerExecutor != null)
+            writerExecutor.execute(writer);
+        else
+            new Thread(writer, getName() + "-writer").start();
+    }
+
+    /*
+    * все кадры, накопившиеся в очереди, копируются в один буфер и уходят в сокет одной записью.
+    * При заданном ServerSettings.FLUSH_WINDOW_MICROS поток записи, забрав единственный кадр,
+    * немного ждет следующих, чтобы отправить их вместе
+    * */
+    private void writeToClient() {
+        byte[] buffer = new byte[ServerSettings.WRITE_BUFFER_SIZE];
+        long flushWindow = TimeUnit.MICROSECONDS.toNanos(ServerSettings.FLUSH_WINDOW_MICROS);
         try {
-            int size = in.readInt();
-            byte[] bytes = new byte[size];
-            in.readFully(bytes);
-            return (Message) serialization.toObject(bytes);
-        }catch (EOFException e){
-        }catch (IOException e){
-            throw e;
+            Frame frame;
+            while ((frame = outbound.take()) != null) {
+                if (flushWindow > 0 && outbound.size() == 0)
+                    LockSupport.parkNanos(flushWindow);
+                int length = 0;
+                int frames = 0;
+                while (frame != null) {
+                    try {
+                        if (length > 0 && length + frame.length() > buffer.length) {
+                            writeBuffer(buffer, length, frames);
+                            length = 0;
+                            frames = 0;
+                        }
+                        if (frame.length() > buffer.length) {
+                            //кадр больше буфера пишется отдельно, без копирования
+                            frame.writeTo(out);
+                            TrafficStats.onWrite(1, frame.length());
+                        } else {
+                            length = frame.copyTo(buffer, length);
+                            frames++;
+                        }
+                    } finally {
+                        frame.release();
+                    }
+                    frame = outbound.poll();
+                }
+                if (length > 0)
+                    writeBuffer(buffer, length, frames);
+            }
+        } catch (Exception e) {
+            if (!outbound.isClosed()) {
+                getClientListener().onException(this, getSocket(), e);
+                try {
+                    //закрытие сокета завершит и поток чтения
+                    getSocket().close();
+                } catch (IOException ignored) {
+                }
+            }
         }
-        return null;
     }
 
-    public void sendMessage(Message message) throws IOException {
-        byte[] bytes = serialization.toBytes(message);
-        out.writeInt(bytes.length);
-        out.write(bytes);
-        out.flush();
+    private void writeBuffer(byte[] buffer, int length, int frames) throws IOException {
+        out.write(buffer, 0, length);
+        TrafficStats.onWrite(frames, length);
     }
 
+    /*
+    * байты читаются порциями по мере поступления и копятся в декодере. Начатый кадр должен прийти целиком
+    * за frameReadTimeoutMs: таймаут сокета каждый раз выставляется на оставшееся время, так что клиент,
+    * присылающий кадр по байту, не продлевает его и не держит поток вечно
+    * */
+    public Message readFromClient() throws Exception {
+        Socket socket = getSocket();
+        //момент, к которому начатый кадр должен прийти целиком (System.nanoTime), 0 - кадр не начат
+        long deadline = 0;
+        while (!decoder.next()) {
+            if (frameReadTimeoutMs > 0 && decoder.hasPartialFrame()) {
+                long now = System.nanoTime();
+                if (deadline == 0)
+                    deadline = now + TimeUnit.MILLISECONDS.toNanos(frameReadTimeoutMs);
+                long remaining = TimeUnit.NANOSECONDS.toMillis(deadline - now);
+                if (remaining <= 0)
+                    throw new SocketTimeoutException("Frame is not received in " + frameReadTimeoutMs + " ms");
+                socket.setSoTimeout((int) remaining);
+            }
+            if (decoder.readFrom(in) < 0)
+                return null;
+        }
+        if (deadline != 0)
+            socket.setSoTimeout(0);
+        TrafficStats.onRead(decoder.frameLength() + 4);
+        return codec.decode(decoder.array(), decoder.frameOffset(), decoder.frameLength());
+    }
 
-    public Message getReceivedMessage() {
-        return receivedMessage;
+    /*закрытие сокета завершает поток чтения, а закрытие очереди - поток записи*/
+    @Override
+    protected void disconnect() {
+        outbound.close();
+        try {
+            if (getSocket() != null)
+                getSocket().close();
+        } catch (IOException e) {
+            getClientListener().onException(this, getSocket(), e);
+        }
     }
 
-    public String getUser_name() {
-        return user_name;
+    void setWriterExecutor(Executor writerExecutor) {
+        this.writerExecutor = writerExecutor;
     }
 
-    public void setUser_name(String user_name) {
-        this.user_name = user_name;
+    void setFrameReadTimeoutMs(int frameReadTimeoutMs) {
+        this.frameReadTimeoutMs = frameReadTimeoutMs;
     }
 }
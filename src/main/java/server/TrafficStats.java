@@ -0,0 +1,92 @@
+package server;
+
+
+import java.util.concurrent.atomic.LongAdder;
+
+/*
+* Счетчики обмена с сокетами по всему серверу: число вызовов записи (системных вызовов write/writev),
+* число записанных кадров и байт, а также число прочитанных кадров и байт.
+* По отношению записанных кадров к вызовам видно, насколько записи объединяются.
+* Отдельно учитываются кадры, отброшенные для медленных клиентов, и отключения медленных клиентов,
+* а также время ожидания кадров в очередях клиентов по полосам OutboundQueue.
+* */
+public final class TrafficStats {
+    private static final LongAdder writeCalls = new LongAdder();
+    private static final LongAdder frames = new LongAdder();
+    private static final LongAdder bytes = new LongAdder();
+    private static final LongAdder framesRead = new LongAdder();
+    private static final LongAdder bytesRead = new LongAdder();
+    private static final LongAdder framesDropped = new LongAdder();
+    private static final LongAdder evictions = new LongAdder();
+    private static final Metrics.Timer[] laneWait = {new Metrics.Timer(), new Metrics.Timer()};
+
+    private TrafficStats() {
+    }
+
+    static void onWrite(int frameCount, long byteCount) {
+        writeCalls.increment();
+        frames.add(frameCount);
+        bytes.add(byteCount);
+    }
+
+    /*byteCount - размер кадра вместе с заголовком длины*/
+    static void onRead(long byteCount) {
+        framesRead.increment();
+        bytesRead.add(byteCount);
+    }
+
+    static void onDropped(int frameCount) {
+        framesDropped.add(frameCount);
+    }
+
+    static void onEvicted() {
+        evictions.increment();
+    }
+
+    /*кадр забран из очереди клиента; ожидание считается от создания кадра, т.е. от начала рассылки*/
+    static void onDequeued(int lane, long createdAt) {
+        laneWait[lane].recordSince(createdAt);
+    }
+
+    public static Metrics.Timer getLaneWait(int lane) {
+        return laneWait[lane];
+    }
+
+    public static long getWriteCalls() {
+        return writeCalls.sum();
+    }
+
+    public static long getFrames() {
+        return frames.sum();
+    }
+
+    public static long getBytes() {
+        return bytes.sum();
+    }
+
+    public static long getFramesRead() {
+        return framesRead.sum();
+    }
+
+    public static long getBytesRead() {
+        return bytesRead.sum();
+    }
+
+    public static long getFramesDropped() {
+        return framesDropped.sum();
+    }
+
+    public static long getEvictions() {
+        return evictions.sum();
+    }
+
+    public static void reset() {
+        writeCalls.reset();
+        frames.reset();
+        bytes.reset();
+        framesRead.reset();
+        bytesRead.reset();
+        framesDropped.reset();
+        evictions.reset();
+    }
+}
@@ -0,0 +1,7 @@
+package server;
+
+
+/*прямой вызов метода команды пользователя без рефлексии*/
+public interface UserCommandHandler {
+    public void execute(Server server, ClientConnection user) throws Exception;
+}
@@ -0,0 +1,62 @@
+package server;
+
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/*
+* Пользователи этого сервера: логин - соединение. Все изменения - атомарные операции над одним логином,
+* поэтому вход, выход и переименование множества клиентов идут параллельно без общего замка:
+* логин занимает тот, чей claim выполнился первым, а освободить логин может только соединение, которое его заняло.
+* Переименование сначала занимает новый логин и только потом освобождает прежний, так что логин клиента
+* не может достаться другому в промежутке; на это короткое время клиент виден под обоими именами.
+* */
+class UserRegistry {
+    private final ConcurrentMap<String, ClientConnection> users;
+
+    UserRegistry() {
+        users = new ConcurrentHashMap<String, ClientConnection>();
+    }
+
+    /*занимает логин за соединением; false, если логин уже занят*/
+    boolean claim(String login, ClientConnection user) {
+        return users.putIfAbsent(login, user) == null;
+    }
+
+    /*освобождает логин, только если он занят именно этим соединением*/
+    boolean release(String login, ClientConnection user) {
+        return users.remove(login, user);
+    }
+
+    /*false, если новый логин занят; прежний логин освобождается только после того, как занят новый*/
+    boolean rename(ClientConnection user, String previousLogin, String newLogin) {
+        if (!claim(newLogin, user))
+            return false;
+        release(previousLogin, user);
+        return true;
+    }
+
+    ClientConnection get(String login) {
+        return users.get(login);
+    }
+
+    boolean contains(String login) {
+        return users.containsKey(login);
+    }
+
+    List<String> logins() {
+        return new ArrayList<String>(users.keySet());
+    }
+
+    int size() {
+        return users.size();
+    }
+
+    /*слабо согласованное представление для обхода всех пользователей*/
+    Map<String, ClientConnection> asMap() {
+        return users;
+    }
+}
@@ -0,0 +1,207 @@
+package settings;
+
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+
+/*
+* Компактный двоичный формат сообщения:
+*   1 байт флагов - какие из полей message, command, user, sequence присутствуют (null и 0 не передаются);
+*   для каждого присутствующего строкового поля - длина в формате varint и строка в UTF-8,
+*   затем номер сообщения в формате varint.
+* В отличие от стандартной сериализации не пишет описание класса в каждый кадр.
+* */
+public class BinaryMessageCodec implements MessageCodec {
+    private static final int HAS_MESSAGE = 1;
+    private static final int HAS_COMMAND = 1 << 1;
+    private static final int HAS_USER = 1 << 2;
+    private static final int HAS_SEQUENCE = 1 << 3;
+
+    @Override
+    public byte[] encode(Message message) throws IOException {
+        byte[] bytes = new byte[encodedSize(message)];
+        write(message, bytes, 0);
+        return bytes;
+    }
+
+    /*строки пишутся сразу в буфер кадра, без промежуточных массивов*/
+    @Override
+    public byte[] encodeFrame(Message message, BufferPool pool) throws IOException {
+        int size = encodedSize(message);
+        byte[] bytes = pool.acquire(size + 4);
+        bytes[0] = (byte) (size >>> 24);
+        bytes[1] = (byte) (size >>> 16);
+        bytes[2] = (byte) (size >>> 8);
+        bytes[3] = (byte) size;
+        write(message, bytes, 4);
+        return bytes;
+    }
+
+    private static int encodedSize(Message message) {
+        int size = 1 + fieldSize(message.getMessage()) + fieldSize(message.getCommand()) + fieldSize(message.getUser());
+        if (message.getSequence() != 0)
+            size += varIntSize(message.getSequence());
+        return size;
+    }
+
+    private static void write(Message message, byte[] bytes, int position) {
+        String text = message.getMessage();
+        String command = message.getCommand();
+        String user = message.getUser();
+        long sequence = message.getSequence();
+
+        int flags = 0;
+        if (text != null)
+            flags |= HAS_MESSAGE;
+        if (command != null)
+            flags |= HAS_COMMAND;
+        if (user != null)
+            flags |= HAS_USER;
+        if (sequence != 0)
+            flags |= HAS_SEQUENCE;
+
+        bytes[position++] = (byte) flags;
+        position = writeField(bytes, position, text);
+        position = writeField(bytes, position, command);
+        position = writeField(bytes, position, user);
+        if (sequence != 0)
+            writeVarInt(bytes, position, sequence);
+    }
+
+    @Override
+    public Message decode(byte[] bytes, int offset, int length) throws IOException {
+        if (length < 1)
+            throw new IOException("Empty message frame");
+        int limit = offset + length;
+        int flags = bytes[offset];
+        int[] position = {offset + 1};
+
+        Message message = new Message();
+        if ((flags & HAS_MESSAGE) != 0)
+            message.setMessage(readField(bytes, position, limit));
+        if ((flags & HAS_COMMAND) != 0)
+            message.setCommand(readField(bytes, position, limit));
+        if ((flags & HAS_USER) != 0)
+            message.setUser(readField(bytes, position, limit));
+        if ((flags & HAS_SEQUENCE) != 0)
+            message.setSequence(readVarLong(bytes, position, limit));
+        return message;
+    }
+
+    private static int fieldSize(String value) {
+        if (value == null)
+            return 0;
+        int length = utf8Length(value);
+        return varIntSize(length) + length;
+    }
+
+    private static int writeField(byte[] bytes, int position, String field) {
+        if (field == null)
+            return position;
+        position = writeVarInt(bytes, position, utf8Length(field));
+        return writeUtf8(bytes, position, field);
+    }
+
+    /*длина строки в UTF-8; одиночный суррогат, как и в String.getBytes, заменяется одним байтом '?'*/
+    private static int utf8Length(String value) {
+        int length = 0;
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            if (c < 0x80) {
+                length++;
+            } else if (c < 0x800) {
+                length += 2;
+            } else if (Character.isSurrogate(c)) {
+                if (Character.isHighSurrogate(c) && i + 1 < value.length() && Character.isLowSurrogate(value.charAt(i + 1))) {
+                    length += 4;
+                    i++;
+                } else {
+                    length++;
+                }
+            } else {
+                length += 3;
+            }
+        }
+        return length;
+    }
+
+    private static int writeUtf8(byte[] bytes, int position, String value) {
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            if (c < 0x80) {
+                bytes[position++] = (byte) c;
+            } else if (c < 0x800) {
+                bytes[position++] = (byte) (0xC0 | (c >> 6));
+                bytes[position++] = (byte) (0x80 | (c & 0x3F));
+            } else if (Character.isSurrogate(c)) {
+                if (Character.isHighSurrogate(c) && i + 1 < value.length() && Character.isLowSurrogate(value.charAt(i + 1))) {
+                    int codePoint = Character.toCodePoint(c, value.charAt(++i));
+                    bytes[position++] = (byte) (0xF0 | (codePoint >> 18));
+                    bytes[position++] = (byte) (0x80 | ((codePoint >> 12) & 0x3F));
+                    bytes[position++] = (byte) (0x80 | ((codePoint >> 6) & 0x3F));
+                    bytes[position++] = (byte) (0x80 | (codePoint & 0x3F));
+                } else {
+                    bytes[position++] = '?';
+                }
+            } else {
+                bytes[position++] = (byte) (0xE0 | (c >> 12));
+                bytes[position++] = (byte) (0x80 | ((c >> 6) & 0x3F));
+                bytes[position++] = (byte) (0x80 | (c & 0x3F));
+            }
+        }
+        return position;
+    }
+
+    private static int writeVarInt(byte[] bytes, int position, long value) {
+        while ((value & ~0x7FL) != 0) {
+            bytes[position++] = (byte) ((value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        bytes[position++] = (byte) value;
+        return position;
+    }
+
+    private static long readVarLong(byte[] bytes, int[] position, int limit) throws IOException {
+        int pos = position[0];
+        long value = 0;
+        int shift = 0;
+        byte b;
+        do {
+            if (pos >= limit || shift > 63)
+                throw new IOException("Malformed sequence");
+            b = bytes[pos++];
+            value |= (long) (b & 0x7F) << shift;
+            shift += 7;
+        } while ((b & 0x80) != 0);
+        position[0] = pos;
+        return value;
+    }
+
+    private static String readField(byte[] bytes, int[] position, int limit) throws IOException {
+        int pos = position[0];
+        int length = 0;
+        int shift = 0;
+        byte b;
+        do {
+            if (pos >= limit || shift > 28)
+                throw new IOException("Malformed field length");
+            b = bytes[pos++];
+            length |= (b & 0x7F) << shift;
+            shift += 7;
+        } while ((b & 0x80) != 0);
+
+        if (length < 0 || length > limit - pos)
+            throw new IOException("Field length " + length + " exceeds frame");
+        position[0] = pos + length;
+        return new String(bytes, pos, length, StandardCharsets.UTF_8);
+    }
+
+    private static int varIntSize(long value) {
+        int size = 1;
+        while ((value & ~0x7FL) != 0) {
+            value >>>= 7;
+            size++;
+        }
+        return size;
+    }
+}
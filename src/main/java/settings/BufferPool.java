@@ -0,0 +1,121 @@
+package settings;
+
+
+import java.util.concurrent.atomic.LongAdder;
+
+/*
+* Пул байтовых буферов для чтения и записи кадров. Буферы разбиты на классы по размеру - степени двойки
+* от MIN_SIZE до maxSize: запрос размера size получает буфер ближайшего большего класса, поэтому буфер
+* обычно длиннее запрошенного и длину данных вызывающий хранит сам. В каждом классе хранится не больше
+* buffersPerClass свободных буферов, лишние возвращенные буферы достаются сборщику мусора.
+* Буферы больше maxSize не кэшируются: они создаются точного размера и в пул не возвращаются.
+* Буфер, возвращенный в пул, больше нельзя использовать - его может получить другой поток.
+* */
+public final class BufferPool {
+    public static final int MIN_SIZE = 256;
+    /*общий пул сервера и клиента*/
+    public static final BufferPool SHARED = new BufferPool(ServerSettings.BUFFER_POOL_MAX_SIZE,
+            ServerSettings.BUFFER_POOL_BUFFERS);
+
+    private final int maxSize;
+    private final SizeClass[] classes;
+    private final LongAdder hits;
+    private final LongAdder misses;
+
+    public BufferPool(int maxSize, int buffersPerClass) {
+        int count = classOf(Math.max(maxSize, MIN_SIZE)) + 1;
+        this.maxSize = MIN_SIZE << (count - 1);
+        classes = new SizeClass[count];
+        for (int i = 0; i < count; i++) {
+            classes[i] = new SizeClass(buffersPerClass);
+        }
+        hits = new LongAdder();
+        misses = new LongAdder();
+    }
+
+    /*буфер длиной не меньше size*/
+    public byte[] acquire(int size) {
+        if (size < 0)
+            throw new IllegalArgumentException("Negative buffer size " + size);
+        if (size > maxSize) {
+            misses.increment();
+            return new byte[size];
+        }
+        int index = classOf(size);
+        byte[] buffer = classes[index].poll();
+        if (buffer != null) {
+            hits.increment();
+            return buffer;
+        }
+        misses.increment();
+        return new byte[MIN_SIZE << index];
+    }
+
+    /*возвращает буфер в пул; буферы чужого размера (не из пула) просто отбрасываются*/
+    public void release(byte[] buffer) {
+        int length = buffer.length;
+        if (length < MIN_SIZE || length > maxSize || Integer.bitCount(length) != 1)
+            return;
+        classes[classOf(length)].offer(buffer);
+    }
+
+    /*номер класса: 0 для размеров до MIN_SIZE, далее по степеням двойки*/
+    private static int classOf(int size) {
+        if (size <= MIN_SIZE)
+            return 0;
+        return 32 - Integer.numberOfLeadingZeros(size - 1) - Integer.numberOfTrailingZeros(MIN_SIZE);
+    }
+
+    public int getMaxSize() {
+        return maxSize;
+    }
+
+    /*число выдач буфера из пула*/
+    public long getHits() {
+        return hits.sum();
+    }
+
+    /*число выдач, для которых пришлось создать новый буфер*/
+    public long getMisses() {
+        return misses.sum();
+    }
+
+    /*суммарный размер свободных буферов в пуле*/
+    public long getPooledBytes() {
+        long bytes = 0;
+        for (int i = 0; i < classes.length; i++) {
+            bytes += (long) classes[i].size() * (MIN_SIZE << i);
+        }
+        return bytes;
+    }
+
+    /*
+    * свободные буферы одного размера - стек на массиве. Короткая блокировка вместо неблокирующей очереди:
+    * очередь создает узел на каждое добавление, а стек не выделяет память совсем
+    * */
+    private static final class SizeClass {
+        private final byte[][] buffers;
+        private int size;
+
+        SizeClass(int capacity) {
+            buffers = new byte[capacity][];
+        }
+
+        synchronized byte[] poll() {
+            if (size == 0)
+                return null;
+            byte[] buffer = buffers[--size];
+            buffers[size] = null;
+            return buffer;
+        }
+
+        synchronized void offer(byte[] buffer) {
+            if (size < buffers.length)
+                buffers[size++] = buffer;
+        }
+
+        synchronized int size() {
+            return size;
+        }
+    }
+}
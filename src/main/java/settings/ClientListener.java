@@ -1,15 +1,15 @@
 package settings;
 
-import server.ServerToClientThread;
+import server.ClientConnection;
 
 
 import java.io.IOException;
 import java.net.Socket;
 
 public interface ClientListener {
-    public void onStartSocket(ServerToClientThread userThread, Socket socket);
-    public boolean onLoggedClient(ServerToClientThread userThread, Socket socket, Message message) throws IOException;
-    public void onReceiveMessage(ServerToClientThread userThread, Socket socket, Message message) throws IOException;
-    public void onStopSocket(ServerToClientThread userThread, Socket socket);
-    public void onException(ServerToClientThread userThread, Socket socket, Exception e);
+    public void onStartSocket(ClientConnection userThread, Socket socket);
+    public boolean onLoggedClient(ClientConnection userThread, Socket socket, Message message) throws IOException;
+    public void onReceiveMessage(ClientConnection userThread, Socket socket, Message message) throws IOException;
+    public void onStopSocket(ClientConnection userThread, Socket socket);
+    public void onException(ClientConnection userThread, Socket socket, Exception e);
 }
@@ -0,0 +1,169 @@
+package settings;
+
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/*
+* Сжатие больших кадров (история, списки пользователей и команд). Включается для соединения при логине:
+* клиент добавляет к тексту сообщения LOGIN_CHECK признак CAPABILITY, сервер подтверждает его в ответе.
+* Сжатый кадр помечается старшим битом длины, его данные - 4 байта исходной длины и поток zlib.
+* Обе стороны используют общий словарь из типичного текста чата (BotMessages.txt), поэтому
+* даже кадры в несколько сотен байт сжимаются заметно. Контрольная сумма словаря передается в потоке zlib,
+* так что расхождение словарей обнаруживается при распаковке.
+* Сжимает тот поток, который ставит кадр в очередь клиента, а в режиме VIRTUAL это свой поток на каждое соединение,
+* поэтому Deflater (с памятью zlib вне кучи) не привязан к потоку: он берется из небольшого общего пула
+* и возвращается в него, а не поместившийся в пул сразу освобождается (end).
+* */
+public final class FrameCompression {
+    public static final int COMPRESSED_FLAG = 0x80000000;
+    public static final String CAPABILITY = "+deflate";
+    //больше 32 КБ словаря deflate не использует
+    private static final int DICTIONARY_SIZE = 32 * 1024;
+    private static final byte[] DICTIONARY = loadDictionary();
+
+    private static final BlockingQueue<Deflater> deflaters =
+            new ArrayBlockingQueue<Deflater>(Math.max(1, ServerSettings.DEFLATER_POOL_SIZE));
+
+    private static final LongAdder frames = new LongAdder();
+    private static final LongAdder bytesIn = new LongAdder();
+    private static final LongAdder bytesOut = new LongAdder();
+    private static final LongAdder nanos = new LongAdder();
+
+    private FrameCompression() {
+    }
+
+    private static byte[] loadDictionary() {
+        try (InputStream in = FrameCompression.class.getResourceAsStream("/BotMessages.txt")) {
+            if (in == null)
+                return null;
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            byte[] buffer = new byte[8192];
+            int read;
+            while ((read = in.read(buffer)) > 0) {
+                out.write(buffer, 0, read);
+            }
+            byte[] corpus = out.toByteArray();
+            return Arrays.copyOfRange(corpus, Math.max(0, corpus.length - DICTIONARY_SIZE), corpus.length);
+        } catch (IOException e) {
+            return null;
+        }
+    }
+
+    /*сжатие возможно, только если словарь найден*/
+    public static boolean isAvailable() {
+        return DICTIONARY != null;
+    }
+
+    /*данные сжатого кадра без заголовка длины или null, если сжатие не дает выигрыша*/
+    public static byte[] compress(byte[] data, int offset, int length) {
+        long start = System.nanoTime();
+        Deflater deflater = deflaters.poll();
+        if (deflater == null)
+            deflater = new Deflater(Deflater.DEFAULT_COMPRESSION);
+        byte[] out = new byte[length + 4];
+        int size = 4;
+        boolean smaller;
+        try {
+            deflater.setDictionary(DICTIONARY);
+            deflater.setInput(data, offset, length);
+            deflater.finish();
+
+            ByteBuffer.wrap(out).putInt(length);
+            while (!deflater.finished() && size < out.length) {
+                size += deflater.deflate(out, size, out.length - size);
+            }
+            smaller = deflater.finished() && size < length;
+        } finally {
+            release(deflater);
+        }
+
+        frames.increment();
+        bytesIn.add(length);
+        bytesOut.add(smaller ? size : length);
+        nanos.add(System.nanoTime() - start);
+        return smaller ? Arrays.copyOf(out, size) : null;
+    }
+
+    /*сброшенный Deflater возвращается в пул, а если пул полон - освобождается сразу, не дожидаясь сборщика мусора*/
+    private static void release(Deflater deflater) {
+        deflater.reset();
+        if (!deflaters.offer(deflater))
+            deflater.end();
+    }
+
+    /*число свободных Deflater в пуле*/
+    static int pooledDeflaters() {
+        return deflaters.size();
+    }
+
+    /*inflater принадлежит соединению и используется только его потоком чтения*/
+    public static byte[] decompress(Inflater inflater, byte[] data, int offset, int length) throws IOException {
+        byte[] out = new byte[uncompressedSize(data, offset, length)];
+        decompress(inflater, data, offset, length, out);
+        return out;
+    }
+
+    /*исходный размер сообщения сжатого кадра*/
+    public static int uncompressedSize(byte[] data, int offset, int length) throws IOException {
+        if (length < 4)
+            throw new IOException("Compressed frame is too short");
+        int size = ByteBuffer.wrap(data, offset, 4).getInt();
+        if (size < 0)
+            throw new IOException("Wrong uncompressed size " + size);
+        return size;
+    }
+
+    /*распаковка в готовый буфер (например, из пула) длиной не меньше uncompressedSize; возвращает размер сообщения*/
+    public static int decompress(Inflater inflater, byte[] data, int offset, int length, byte[] out) throws IOException {
+        int size = uncompressedSize(data, offset, length);
+        if (out.length < size)
+            throw new IllegalArgumentException("Buffer is too small for " + size + " bytes");
+        inflater.reset();
+        inflater.setInput(data, offset + 4, length - 4);
+        try {
+            int position = 0;
+            while (!inflater.finished()) {
+                int read = inflater.inflate(out, position, size - position);
+                if (read == 0) {
+                    if (inflater.needsDictionary()) {
+                        inflater.setDictionary(DICTIONARY);
+                    } else if (inflater.needsInput() || position == size) {
+                        throw new IOException("Compressed frame is truncated");
+                    }
+                }
+                position += read;
+            }
+            if (position != size)
+                throw new IOException("Compressed frame size mismatch");
+        } catch (DataFormatException | IllegalArgumentException e) {
+            throw new IOException("Compressed frame is corrupted: " + e.getMessage(), e);
+        }
+        return size;
+    }
+
+    public static long getFrames() {
+        return frames.sum();
+    }
+
+    public static long getBytesIn() {
+        return bytesIn.sum();
+    }
+
+    public static long getBytesOut() {
+        return bytesOut.sum();
+    }
+
+    public static long getNanos() {
+        return nanos.sum();
+    }
+}
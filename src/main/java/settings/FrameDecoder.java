@@ -0,0 +1,163 @@
+package settings;
+
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+
+/*
+* Пошаговый разбор кадров (4 байта длины и сообщение) из потока байт. Байты читаются порциями, сколько есть
+* (readFrom), неполный кадр копится в буфере до следующего чтения, а next выделяет очередной полный кадр.
+* Подходит и для блокирующего потока, и для неблокирующего канала: чтение никогда не ждет конца кадра.
+* Длина кадра проверяется, как только пришел заголовок: кадр длиннее maxFrameSize отвергается исключением
+* до того, как под него выделен буфер. Буфер берется из пула и растет по мере надобности до размера кадра.
+* Декодер не потокобезопасен: им пользуется только поток, читающий соединение.
+* */
+public final class FrameDecoder {
+    public static final int INITIAL_SIZE = 8 * 1024;
+
+    private final int maxFrameSize;
+    //разрешены ли сжатые кадры (помечены старшим битом длины) - их присылает только сервер
+    private final boolean compressedFrames;
+    private final BufferPool pool;
+    //размер буфера, когда в нем нет кадров больше него
+    private final int initialSize;
+    private byte[] buffer;
+    //представление буфера для чтения из канала, пересоздается при замене буфера
+    private ByteBuffer channelBuffer;
+    //непрочитанные байты лежат в buffer[start, end)
+    private int start;
+    private int end;
+    private int frameOffset;
+    private int frameLength;
+    private boolean frameCompressed;
+
+    public FrameDecoder(int maxFrameSize, boolean compressedFrames, BufferPool pool) {
+        this(maxFrameSize, compressedFrames, pool, INITIAL_SIZE);
+    }
+
+    /*initialSize меньше обычного подходит, когда соединений очень много, а сообщения короткие*/
+    public FrameDecoder(int maxFrameSize, boolean compressedFrames, BufferPool pool, int initialSize) {
+        this.maxFrameSize = maxFrameSize;
+        this.compressedFrames = compressedFrames;
+        this.pool = pool;
+        this.initialSize = Math.max(4, initialSize);
+        buffer = pool.acquire(this.initialSize);
+    }
+
+    /*
+    * выделяет очередной полный кадр: его данные доступны через array, frameOffset и frameLength
+    * до следующего вызова next или readFrom. false - кадр еще не пришел целиком
+    * */
+    public boolean next() throws IOException {
+        if (end - start < 4)
+            return false;
+        int size = readHeader();
+        if (end - start < size + 4)
+            return false;
+        frameOffset = start + 4;
+        frameLength = size;
+        start += size + 4;
+        return true;
+    }
+
+    /*чтение того, что уже доступно в потоке (поток блокируется, только пока не придет хотя бы один байт); -1 - конец потока*/
+    public int readFrom(InputStream in) throws IOException {
+        if (buffer == null)
+            return -1;
+        prepareSpace();
+        int read = in.read(buffer, end, buffer.length - end);
+        if (read > 0)
+            end += read;
+        return read;
+    }
+
+    /*чтение из неблокирующего канала: 0 - данных пока нет, -1 - канал закрыт*/
+    public int readFrom(ReadableByteChannel channel) throws IOException {
+        if (buffer == null)
+            return -1;
+        prepareSpace();
+        if (channelBuffer == null || channelBuffer.array() != buffer)
+            channelBuffer = ByteBuffer.wrap(buffer);
+        channelBuffer.limit(buffer.length).position(end);
+        int read = channel.read(channelBuffer);
+        if (read > 0)
+            end += read;
+        return read;
+    }
+
+    private int readHeader() throws IOException {
+        int header = ((buffer[start] & 0xFF) << 24) | ((buffer[start + 1] & 0xFF) << 16)
+                | ((buffer[start + 2] & 0xFF) << 8) | (buffer[start + 3] & 0xFF);
+        frameCompressed = compressedFrames && (header & FrameCompression.COMPRESSED_FLAG) != 0;
+        int size = frameCompressed ? header & ~FrameCompression.COMPRESSED_FLAG : header;
+        if (size < 0 || size > maxFrameSize)
+            throw new IOException("Frame size " + size + " exceeds limit " + maxFrameSize);
+        return size;
+    }
+
+    /*
+    * перед чтением освобождает место: разобранные кадры удаляются из начала буфера, а если ожидаемый
+    * кадр в буфер не помещается, буфер заменяется большим. Опустевший большой буфер меняется на обычный
+    * */
+    private void prepareSpace() throws IOException {
+        if (start == end) {
+            start = end = 0;
+            if (buffer.length > initialSize)
+                replaceBuffer(initialSize);
+            return;
+        }
+        int needed = end - start < 4 ? 4 : readHeader() + 4;
+        if (needed > buffer.length)
+            replaceBuffer(needed);
+        else if (needed > buffer.length - start || end == buffer.length)
+            compact();
+    }
+
+    private void compact() {
+        System.arraycopy(buffer, start, buffer, 0, end - start);
+        end -= start;
+        start = 0;
+    }
+
+    private void replaceBuffer(int size) {
+        byte[] replacement = pool.acquire(size);
+        System.arraycopy(buffer, start, replacement, 0, end - start);
+        end -= start;
+        start = 0;
+        pool.release(buffer);
+        buffer = replacement;
+    }
+
+    public byte[] array() {
+        return buffer;
+    }
+
+    public int frameOffset() {
+        return frameOffset;
+    }
+
+    public int frameLength() {
+        return frameLength;
+    }
+
+    public boolean isFrameCompressed() {
+        return frameCompressed;
+    }
+
+    /*есть ли начатый, но еще не полученный целиком кадр*/
+    public boolean hasPartialFrame() {
+        return end > start;
+    }
+
+    /*возвращает буфер в пул; вызывается потоком чтения, после этого декодер ведет себя как закрытый поток*/
+    public void release() {
+        if (buffer != null) {
+            pool.release(buffer);
+            buffer = null;
+            channelBuffer = null;
+            start = end = 0;
+        }
+    }
+}
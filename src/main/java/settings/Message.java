@@ -7,6 +7,8 @@ public class Message implements Serializable{
     private String message;
     private String command;
     private String user;
+    //порядковый номер сообщения в истории комнаты, 0 - сообщение не сохраняется в истории
+    private long sequence;
 
     public Message(){}
 
@@ -44,4 +46,12 @@ public class Message implements Serializable{
     public void setUser(String user) {
         this.user = user;
     }
+
+    public long getSequence() {
+        return sequence;
+    }
+
+    public void setSequence(long sequence) {
+        this.sequence = sequence;
+    }
 }
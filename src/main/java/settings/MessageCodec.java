@@ -0,0 +1,20 @@
+package settings;
+
+
+import java.io.IOException;
+
+/*
+* Преобразование сообщения в байты кадра и обратно. Сервер и клиент должны использовать
+* один и тот же кодек, он выбирается настройкой ServerSettings.CODEC
+* */
+public interface MessageCodec {
+    public byte[] encode(Message message) throws IOException;
+
+    /*
+    * кодирует сообщение сразу в кадр: 4 байта длины и сообщение в буфере из пула. Буфер может быть длиннее
+    * кадра (длина кадра - заголовок плюс 4), после отправки вызывающий возвращает его в пул
+    * */
+    public byte[] encodeFrame(Message message, BufferPool pool) throws IOException;
+
+    public Message decode(byte[] bytes, int offset, int length) throws IOException;
+}
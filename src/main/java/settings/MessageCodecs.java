@@ -0,0 +1,22 @@
+package settings;
+
+
+/*выбор кодека сообщений по имени из настроек*/
+public class MessageCodecs {
+    public static final String BINARY = "BINARY";
+    public static final String JAVA = "JAVA";
+
+    private MessageCodecs() {}
+
+    public static MessageCodec newCodec() {
+        return newCodec(ServerSettings.CODEC);
+    }
+
+    public static MessageCodec newCodec(String name) {
+        if (JAVA.equals(name))
+            return new ObjectSerialization();
+        if (BINARY.equals(name))
+            return new BinaryMessageCodec();
+        throw new IllegalArgumentException("Unknown message codec: " + name);
+    }
+}
@@ -2,16 +2,19 @@ package settings;
 
 
 import java.io.*;
+import java.util.Arrays;
 
-public class ObjectSerialization {
+/*кодек на основе стандартной сериализации Java*/
+public class ObjectSerialization implements MessageCodec {
 
     public byte[] toBytes(Object object) throws IOException{
-        ByteArrayOutputStream baos = new ByteArrayOutputStream();
-
-        ObjectOutputStream oos = new ObjectOutputStream(baos);
-        oos.writeObject(object);
-
-        return baos.toByteArray();
+        PooledOutput out = new PooledOutput(BufferPool.SHARED, 0);
+        try {
+            out.writeObject(object);
+            return Arrays.copyOf(out.buffer, out.count);
+        } finally {
+            out.release();
+        }
     }
 
     public Object toObject(byte[] bytes) throws Exception{
@@ -19,4 +22,82 @@ public class ObjectSerialization {
         return new ObjectInputStream(new ByteArrayInputStream(bytes)).readObject();
 
     }
+
+    @Override
+    public byte[] encode(Message message) throws IOException {
+        return toBytes(message);
+    }
+
+    /*сериализация пишет прямо в буфер из пула после места под заголовок длины*/
+    @Override
+    public byte[] encodeFrame(Message message, BufferPool pool) throws IOException {
+        PooledOutput out = new PooledOutput(pool, 4);
+        try {
+            out.writeObject(message);
+        } catch (IOException e) {
+            out.release();
+            throw e;
+        }
+        int size = out.count - 4;
+        byte[] bytes = out.buffer;
+        bytes[0] = (byte) (size >>> 24);
+        bytes[1] = (byte) (size >>> 16);
+        bytes[2] = (byte) (size >>> 8);
+        bytes[3] = (byte) size;
+        return bytes;
+    }
+
+    @Override
+    public Message decode(byte[] bytes, int offset, int length) throws IOException {
+        try {
+            return (Message) new ObjectInputStream(new ByteArrayInputStream(bytes, offset, length)).readObject();
+        } catch (ClassNotFoundException e) {
+            throw new IOException(e);
+        }
+    }
+
+    /*поток в буфер из пула; при росте берется буфер следующего размера, а прежний возвращается в пул*/
+    private static final class PooledOutput extends OutputStream {
+        private final BufferPool pool;
+        private byte[] buffer;
+        private int count;
+
+        PooledOutput(BufferPool pool, int reserved) {
+            this.pool = pool;
+            buffer = pool.acquire(BufferPool.MIN_SIZE);
+            count = reserved;
+        }
+
+        void writeObject(Object object) throws IOException {
+            ObjectOutputStream oos = new ObjectOutputStream(this);
+            oos.writeObject(object);
+            oos.flush();
+        }
+
+        @Override
+        public void write(int b) {
+            ensureCapacity(count + 1);
+            buffer[count++] = (byte) b;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) {
+            ensureCapacity(count + len);
+            System.arraycopy(b, off, buffer, count, len);
+            count += len;
+        }
+
+        private void ensureCapacity(int capacity) {
+            if (capacity <= buffer.length)
+                return;
+            byte[] bigger = pool.acquire(Math.max(capacity, buffer.length * 2));
+            System.arraycopy(buffer, 0, bigger, 0, count);
+            pool.release(buffer);
+            buffer = bigger;
+        }
+
+        void release() {
+            pool.release(buffer);
+        }
+    }
 }
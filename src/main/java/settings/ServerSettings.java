@@ -3,15 +3,103 @@ package settings;
 
 public class ServerSettings {
     /*настройка соединения*/
-    public static final int PORT = 8888;
+    public static final int PORT = Integer.getInteger("chat.port", 8888);
     public static final String INET_ADDRESS = "127.0.0.1";
+    /*транспорт сервера: BLOCKING - поток на каждого клиента, NIO - селекторы с фиксированным числом потоков,
+    * VIRTUAL - виртуальный поток на каждого клиента*/
+    public static final String TRANSPORT_BLOCKING = "BLOCKING";
+    public static final String TRANSPORT_NIO = "NIO";
+    public static final String TRANSPORT_VIRTUAL = "VIRTUAL";
+    public static final String TRANSPORT = System.getProperty("chat.transport", TRANSPORT_BLOCKING);
+    public static final int EVENT_LOOPS = Integer.getInteger("chat.eventLoops",
+            Runtime.getRuntime().availableProcessors());
+    /*число потоков, обрабатывающих сообщения клиентов в режиме NIO; при 0 сообщения обрабатывает сам цикл селектора*/
+    public static final int DISPATCH_THREADS = Integer.getInteger("chat.dispatchThreads", 0);
+    /*формат сообщений: BINARY - компактный двоичный, JAVA - стандартная сериализация*/
+    public static final String CODEC = System.getProperty("chat.codec", "BINARY");
     /*авторизация*/
     public static final String LOGIN_IS_FREE = "1";
     public static final String LOGIN_IS_NOT_FREE = "0";
     public static final String LOGIN_CHECK = "<login:?>";
     public static final String SESSION_STOPPED = "<SESSION STOPPED!!!>";
 
-    public static final int MESSAGES_SIZE = 100;
+    /*число последних сообщений, которые хранит сервер и отправляет вновь подключившимся*/
+    public static final int MESSAGES_SIZE = Integer.getInteger("chat.historySize", 100);
+    /*журнал сообщений: каталог (пустая строка отключает журнал), размер сегмента в байтах,
+    * число хранимых сегментов и интервал сброса на диск в миллисекундах*/
+    public static final String JOURNAL_DIR = System.getProperty("chat.journalDir", "journal");
+    public static final int JOURNAL_SEGMENT_SIZE = Integer.getInteger("chat.journalSegmentSize", 16 * 1024 * 1024);
+    public static final int JOURNAL_SEGMENTS = Integer.getInteger("chat.journalSegments", 8);
+    public static final int JOURNAL_FLUSH_MS = Integer.getInteger("chat.journalFlushMs", 1000);
+    /*максимальная длина названия комнаты*/
+    public static final int ROOM_NAME_MAX_LENGTH = 64;
+    /*размер буфера, в котором кадры из очереди клиента объединяются в одну запись в сокет*/
+    public static final int WRITE_BUFFER_SIZE = Integer.getInteger("chat.writeBufferSize", 64 * 1024);
+    /*окно ожидания новых кадров перед записью в микросекундах: 0 - писать сразу,
+    * небольшое значение позволяет в оживленных комнатах отправлять больше кадров за одну запись*/
+    public static final int FLUSH_WINDOW_MICROS = Integer.getInteger("chat.flushWindowMicros", 0);
+    /*
+    * максимальный размер кадра от клиента и максимальный размер кадра от сервера и от других узлов кластера (байт);
+    * кадр с большей длиной в заголовке считается ошибкой и соединение закрывается
+    * */
+    public static final int MAX_FRAME_SIZE = Integer.getInteger("chat.maxFrameSize", 1024 * 1024);
+    public static final int MAX_SERVER_FRAME_SIZE = Integer.getInteger("chat.maxServerFrameSize", 64 * 1024 * 1024);
+    /*сколько миллисекунд блокирующее соединение ждет окончания начатого кадра, прежде чем закрыться*/
+    public static final int FRAME_READ_TIMEOUT_MS = Integer.getInteger("chat.frameReadTimeoutMs", 30000);
+    /*пул буферов кадров: самый большой кэшируемый размер буфера и сколько свободных буферов хранить для каждого размера*/
+    public static final int BUFFER_POOL_MAX_SIZE = Integer.getInteger("chat.bufferPoolMaxSize", 64 * 1024);
+    public static final int BUFFER_POOL_BUFFERS = Integer.getInteger("chat.bufferPoolBuffers", 256);
+    /*максимальное число кадров клиента в одной записи в неблокирующем режиме*/
+    public static final int MAX_GATHERED_FRAMES = 64;
+    /*сжатие кадров: разрешено ли оно (клиент его запрашивает, сервер соглашается) и с какого размера сообщения (в байтах) сжимаются кадры*/
+    public static final boolean COMPRESSION = Boolean.parseBoolean(System.getProperty("chat.compression", "true"));
+    public static final int COMPRESSION_THRESHOLD = Integer.getInteger("chat.compressionThreshold", 512);
+    /*сколько свободных Deflater хранится для повторного использования; остальные освобождаются сразу после сжатия*/
+    public static final int DEFLATER_POOL_SIZE = Integer.getInteger("chat.deflaterPoolSize",
+            Runtime.getRuntime().availableProcessors());
+    /*максимальное число кадров в очереди отправки одного клиента*/
+    public static final int OUTBOUND_QUEUE_SIZE = Integer.getInteger("chat.outboundQueueSize", 1024);
+    /*
+    * медленный клиент: очередь отправки переполнена по числу кадров, по объему (байт) или первый кадр
+    * ждет дольше заданного (мс, 0 - без ограничения). Что с ним делать, задает политика:
+    * DROP_NEWEST - отбрасывать новые кадры, DROP_OLDEST - отбрасывать самые старые сообщения комнаты,
+    * SUMMARY - отбросить все ждущие сообщения комнаты и отправить вместо них уведомление о пропуске,
+    * DISCONNECT - отключить клиента
+    * */
+    public static final String SLOW_CONSUMER_DROP_NEWEST = "DROP_NEWEST";
+    public static final String SLOW_CONSUMER_DROP_OLDEST = "DROP_OLDEST";
+    public static final String SLOW_CONSUMER_SUMMARY = "SUMMARY";
+    public static final String SLOW_CONSUMER_DISCONNECT = "DISCONNECT";
+    public static final String SLOW_CONSUMER_POLICY = System.getProperty("chat.slowConsumerPolicy", SLOW_CONSUMER_DROP_NEWEST);
+    public static final long SLOW_CONSUMER_BYTES = Long.getLong("chat.slowConsumerBytes", 4 * 1024 * 1024);
+    public static final long SLOW_CONSUMER_MILLIS = Long.getLong("chat.slowConsumerMillis", 30000);
+    /*объем (байт) ответов клиенту и команд, ожидающих отправки; политика медленного клиента к ним не относится*/
+    public static final long CONTROL_QUEUE_BYTES = Long.getLong("chat.controlQueueBytes", 1024 * 1024);
+
+    /*
+    * кластер: узлы связаны отдельными TCP-соединениями на порту CLUSTER_PORT (0 - кластер отключен),
+    * каждый узел сам подключается к узлам из списка CLUSTER_PEERS ("host:port,host:port").
+    * Порт кластера слушается только на адресе CLUSTER_HOST (по умолчанию только локальные подключения).
+    * Имя узла должно быть уникальным в кластере, поэтому значения по умолчанию у него нет: без NODE_ID
+    * и общего секрета CLUSTER_SECRET, знание которого узлы проверяют при знакомстве, сервер в режиме кластера не стартует
+    * */
+    public static final int CLUSTER_PORT = Integer.getInteger("chat.clusterPort", 0);
+    public static final String CLUSTER_HOST = System.getProperty("chat.clusterHost", "127.0.0.1");
+    public static final String CLUSTER_PEERS = System.getProperty("chat.clusterPeers", "");
+    public static final String NODE_ID = System.getProperty("chat.nodeId", "");
+    public static final String CLUSTER_SECRET = System.getProperty("chat.clusterSecret", "");
+    /*интервал попыток переподключения к узлам, мс*/
+    public static final int CLUSTER_RECONNECT_MS = Integer.getInteger("chat.clusterReconnectMs", 1000);
+    /*очередь отправки на другой узел (в сообщениях) и максимальное число сообщений в одной записи в сокет*/
+    public static final int CLUSTER_QUEUE_SIZE = Integer.getInteger("chat.clusterQueueSize", 65536);
+    public static final int CLUSTER_BATCH_SIZE = 256;
+    /*команды обмена между узлами*/
+    public static final String CLUSTER_HELLO = "#HELLO";
+    public static final String CLUSTER_AUTH = "#AUTH";
+    public static final String CLUSTER_USER_ADD = "#USER_ADD";
+    public static final String CLUSTER_USER_REMOVE = "#USER_REMOVE";
+    public static final String CLUSTER_BROADCAST = "#BROADCAST";
+    public static final String CLUSTER_DIRECT = "#DIRECT";
 
     /*команды пользователя*/
     public static final String HELP = "/HELP";
@@ -19,7 +107,35 @@ public class ServerSettings {
     public static final String USERS = "/USERS";
     public static final String DIRECT_TO = "/DIRECTTO";
     public static final String QUIT = "/QUIT";
+    public static final String JOIN = "/JOIN";
+    public static final String LEAVE = "/LEAVE";
+    public static final String ROOMS = "/ROOMS";
+    public static final String PRESENCE = "/PRESENCE";
+
+    /*
+    * подписка на присутствие пользователей: полный список и изменения с номером версии,
+    * а также сколько последних изменений сервер хранит для подписчиков, догоняющих по версии
+    * */
+    public static final String PRESENCE_SNAPSHOT = "<presence:snapshot>";
+    public static final String PRESENCE_DELTA = "<presence:delta>";
+    public static final String PRESENCE_OFF = "OFF";
+    public static final int PRESENCE_LOG_SIZE = Integer.getInteger("chat.presenceLogSize", 1024);
+
+    /*
+    * уведомления о входе и выходе пользователей собираются в течение окна (мс) и рассылаются одним сообщением
+    * на комнату, не чаще заданного числа раз в секунду; 0 - отправлять каждое уведомление сразу
+    * */
+    public static final int NOTICE_WINDOW_MS = Integer.getInteger("chat.noticeWindowMs", 200);
+    public static final int NOTICES_PER_SECOND = Integer.getInteger("chat.noticesPerSecond", 2);
+
+    /*комната, в которую попадает пользователь после входа и по команде /LEAVE*/
+    public static final String DEFAULT_ROOM = "main";
 
     /*команды сервера*/
     public static final String STOP = "/STOP";
+    public static final String QUEUES = "/QUEUES";
+    public static final String COMPRESSION_STATS = "/COMPRESSION";
+    public static final String STATS = "/STATS";
+    /*имя MBean, под которым метрики сервера публикуются по JMX*/
+    public static final String METRICS_MBEAN = "serverChat:type=Metrics";
 }
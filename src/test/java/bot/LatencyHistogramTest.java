@@ -0,0 +1,59 @@
+package bot;
+
+import org.junit.Test;
+
+import static org.hamcrest.Matchers.*;
+import static org.junit.Assert.*;
+
+
+public class LatencyHistogramTest {
+
+    @Test
+    public void testPercentile_Empty() {
+        LatencyHistogram histogram = new LatencyHistogram();
+
+        assertThat(histogram.getCount(), is(0L));
+        assertThat(histogram.getValueAtPercentile(99), is(0L));
+    }
+
+    @Test
+    public void testPercentile_SmallValuesAreExact() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        for (int i = 1; i <= 100; i++) {
+            histogram.record(i);
+        }
+
+        assertThat(histogram.getValueAtPercentile(50), is(50L));
+        assertThat(histogram.getValueAtPercentile(99), is(99L));
+        assertThat(histogram.getValueAtPercentile(100), is(100L));
+    }
+
+    @Test
+    public void testPercentile_LargeValuesWithinPrecision() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        for (int i = 1; i <= 1000; i++) {
+            histogram.record(i * 1000000L);
+        }
+
+        long p50 = histogram.getValueAtPercentile(50);
+        long p999 = histogram.getValueAtPercentile(99.9);
+        assertThat(p50, allOf(greaterThanOrEqualTo(500000000L), lessThan(500000000L + 500000000L / 64)));
+        assertThat(p999, allOf(greaterThanOrEqualTo(999000000L), lessThanOrEqualTo(1000000000L)));
+        assertThat(histogram.getMax(), is(1000000000L));
+    }
+
+    @Test
+    public void testAdd_MergesCountsAndMax() {
+        LatencyHistogram first = new LatencyHistogram();
+        LatencyHistogram second = new LatencyHistogram();
+        first.record(10);
+        second.record(20);
+        second.record(Long.MAX_VALUE);
+
+        first.add(second);
+
+        assertThat(first.getCount(), is(3L));
+        assertThat(first.getMax(), is(Long.MAX_VALUE));
+        assertThat(first.getValueAtPercentile(50), is(20L));
+    }
+}
@@ -0,0 +1,275 @@
+package client;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import server.MessageHistory;
+import server.Server;
+import settings.BufferPool;
+import settings.FrameCompression;
+import settings.Message;
+import settings.MessageCodec;
+import settings.MessageCodecs;
+import settings.ServerSettings;
+
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import static org.hamcrest.Matchers.instanceOf;
+import static org.hamcrest.Matchers.is;
+import static org.junit.Assert.*;
+
+public class AsyncChatClientTest {
+    private ServerSocket serverSocket;
+    private AsyncChatClient chatClient;
+    private static final String COMPRESS = "zip ";
+
+    private final MessageCodec codec = MessageCodecs.newCodec();
+
+    @Before
+    public void init() throws IOException {
+        serverSocket = new ServerSocket(0);
+        //буфер меньше сообщений проверяет сборку кадра из нескольких чтений
+        chatClient = new AsyncChatClient(1, 256);
+        startEchoServer();
+    }
+
+    @After
+    public void stop() throws IOException {
+        chatClient.close();
+        serverSocket.close();
+    }
+
+    @Test
+    public void testLoginAndEcho() throws Exception {
+        AsyncConnection connection = connect();
+        final BlockingQueue<Message> received = new LinkedBlockingQueue<Message>();
+        connection.setListener(new AsyncConnection.Listener() {
+            @Override
+            public void onMessage(AsyncConnection connection, Message message) {
+                received.add(message);
+            }
+
+            @Override
+            public void onClosed(AsyncConnection connection, Throwable cause) {
+            }
+        });
+
+        assertTrue(connection.login("alice").get(5, TimeUnit.SECONDS));
+        assertThat(connection.getRoom(), is(ServerSettings.DEFAULT_ROOM));
+
+        StringBuilder text = new StringBuilder();
+        for (int i = 0; i < 200; i++) {
+            text.append("hello ").append(i).append(' ');
+        }
+        connection.send(new Message(text.toString(), "alice")).get(5, TimeUnit.SECONDS);
+        Message echo = received.poll(5, TimeUnit.SECONDS);
+        assertThat(echo.getMessage(), is("alice: " + text));
+        assertThat(connection.getLastSequence(), is(1L));
+    }
+
+    @Test
+    public void testBusyLogin() throws Exception {
+        AsyncConnection connection = connect();
+
+        assertFalse(connection.login("busy").get(5, TimeUnit.SECONDS));
+        assertTrue(connection.login("bob").get(5, TimeUnit.SECONDS));
+    }
+
+    @Test
+    public void testClosedByServer() throws Exception {
+        AsyncConnection connection = connect();
+        final CompletableFuture<Throwable> closed = new CompletableFuture<Throwable>();
+        connection.setListener(new AsyncConnection.Listener() {
+            @Override
+            public void onMessage(AsyncConnection connection, Message message) {
+            }
+
+            @Override
+            public void onClosed(AsyncConnection connection, Throwable cause) {
+                closed.complete(cause);
+            }
+        });
+        connection.send(new Message(ServerSettings.QUIT, "alice"));
+
+        closed.get(5, TimeUnit.SECONDS);
+        assertFalse(connection.isOpen());
+        try {
+            connection.send(new Message("after", "alice")).get(5, TimeUnit.SECONDS);
+            fail("Message is sent to a closed connection");
+        } catch (ExecutionException e) {
+            assertThat(e.getCause(), instanceOf(IOException.class));
+        }
+    }
+
+    @Test
+    public void testManyConnectionsOnOneLoop() throws Exception {
+        List<CompletableFuture<Boolean>> logins = new ArrayList<CompletableFuture<Boolean>>();
+        for (int i = 0; i < 200; i++) {
+            logins.add(connect().login("user" + i));
+        }
+        for (CompletableFuture<Boolean> login : logins) {
+            assertTrue(login.get(5, TimeUnit.SECONDS));
+        }
+    }
+
+    @Test
+    public void testCompressedFramesOnSharedInflater() throws Exception {
+        //оба соединения одного цикла распаковывают кадры одним распаковщиком цикла
+        assertTrue(FrameCompression.isAvailable());
+        AsyncConnection first = connect();
+        AsyncConnection second = connect();
+        BlockingQueue<Message> firstReceived = collect(first);
+        BlockingQueue<Message> secondReceived = collect(second);
+        assertTrue(first.login("alice").get(5, TimeUnit.SECONDS));
+        assertTrue(second.login("bob").get(5, TimeUnit.SECONDS));
+
+        StringBuilder text = new StringBuilder(COMPRESS);
+        for (int i = 0; i < 200; i++) {
+            text.append("hello ").append(i).append(' ');
+        }
+        for (int i = 0; i < 3; i++) {
+            first.send(new Message(text.toString() + i, "alice")).get(5, TimeUnit.SECONDS);
+            second.send(new Message(text.toString() + i, "bob")).get(5, TimeUnit.SECONDS);
+            assertThat(firstReceived.poll(5, TimeUnit.SECONDS).getMessage(), is("alice: " + text + i));
+            assertThat(secondReceived.poll(5, TimeUnit.SECONDS).getMessage(), is("bob: " + text + i));
+        }
+    }
+
+    @Test
+    public void testCompressedHistoryFromServer() throws Exception {
+        ServerSocket socket = new ServerSocket(0);
+        final Server server = new Server(socket, "AsyncServer", null, ServerSettings.TRANSPORT_BLOCKING);
+        Thread listener = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                server.startSocketListener();
+            }
+        });
+        listener.setDaemon(true);
+        listener.start();
+        try {
+            //история длиннее порога сжатия
+            MessageHistory history = server.getRoom(ServerSettings.DEFAULT_ROOM).getHistory();
+            StringBuilder expected = new StringBuilder();
+            for (int i = 0; i < 50; i++) {
+                String line = "user" + i + ": hello, how are you? " + i;
+                history.append(line);
+                expected.append(line).append("\n");
+            }
+            assertTrue(expected.length() > ServerSettings.COMPRESSION_THRESHOLD);
+
+            AsyncConnection connection = chatClient.connect("127.0.0.1", socket.getLocalPort()).get(5, TimeUnit.SECONDS);
+            BlockingQueue<Message> received = collect(connection);
+            assertTrue(connection.login("alice").get(5, TimeUnit.SECONDS));
+            assertThat(connection.getRoom(), is(ServerSettings.DEFAULT_ROOM));
+            assertTrue(connection.isCompressed());
+
+            Message reply = received.poll(5, TimeUnit.SECONDS);
+            assertThat(reply.getMessage(), is(expected.toString()));
+            assertThat(connection.getLastSequence(), is(history.lastSequence()));
+            //история пришла сжатой и распакована общим распаковщиком цикла
+            assertThat(connection.getLoop().getInflater().getBytesWritten(), is((long) codec.encode(reply).length));
+        } finally {
+            server.stopServer();
+        }
+    }
+
+    private static BlockingQueue<Message> collect(AsyncConnection connection) {
+        final BlockingQueue<Message> received = new LinkedBlockingQueue<Message>();
+        connection.setListener(new AsyncConnection.Listener() {
+            @Override
+            public void onMessage(AsyncConnection connection, Message message) {
+                received.add(message);
+            }
+
+            @Override
+            public void onClosed(AsyncConnection connection, Throwable cause) {
+            }
+        });
+        return received;
+    }
+
+    private AsyncConnection connect() throws Exception {
+        return chatClient.connect("127.0.0.1", serverSocket.getLocalPort()).get(5, TimeUnit.SECONDS);
+    }
+
+    /*
+    * сервер для проверки протокола: логин "busy" занят, остальные свободны; сообщения возвращаются
+    * отправителю с номером, сообщения, начинающиеся с COMPRESS, - сжатым кадром; /QUIT закрывает соединение
+    * */
+    private void startEchoServer() {
+        Thread acceptor = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    while (true) {
+                        final Socket socket = serverSocket.accept();
+                        Thread thread = new Thread(new Runnable() {
+                            @Override
+                            public void run() {
+                                serve(socket);
+                            }
+                        });
+                        thread.setDaemon(true);
+                        thread.start();
+                    }
+                } catch (IOException e) {
+                    //сервер остановлен
+                }
+            }
+        });
+        acceptor.setDaemon(true);
+        acceptor.start();
+    }
+
+    private void serve(Socket socket) {
+        try {
+            DataInputStream in = new DataInputStream(socket.getInputStream());
+            OutputStream out = socket.getOutputStream();
+            long sequence = 0;
+            while (true) {
+                byte[] bytes = new byte[in.readInt()];
+                in.readFully(bytes);
+                Message message = codec.decode(bytes, 0, bytes.length);
+                Message answer = new Message();
+                if (ServerSettings.LOGIN_CHECK.equals(message.getCommand())) {
+                    boolean isFree = !"busy".equals(message.getUser());
+                    answer.setCommand(isFree ? ServerSettings.LOGIN_IS_FREE : ServerSettings.LOGIN_IS_NOT_FREE);
+                    answer.setMessage(ServerSettings.DEFAULT_ROOM);
+                } else if (ServerSettings.QUIT.equals(message.getMessage())) {
+                    socket.close();
+                    return;
+                } else {
+                    answer.setUser(message.getUser());
+                    answer.setMessage(message.getUser() + ": " + message.getMessage());
+                    answer.setSequence(++sequence);
+                }
+                byte[] frame = codec.encodeFrame(answer, BufferPool.SHARED);
+                int length = ByteBuffer.wrap(frame).getInt();
+                byte[] compressed = message.getMessage() != null && message.getMessage().startsWith(COMPRESS)
+                        ? FrameCompression.compress(frame, 4, length) : null;
+                if (compressed != null) {
+                    out.write(ByteBuffer.allocate(4).putInt(compressed.length | FrameCompression.COMPRESSED_FLAG).array());
+                    out.write(compressed);
+                } else {
+                    out.write(frame, 0, length + 4);
+                }
+                BufferPool.SHARED.release(frame);
+            }
+        } catch (IOException e) {
+            //клиент отключился
+        }
+    }
+}
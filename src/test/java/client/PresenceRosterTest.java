@@ -0,0 +1,57 @@
+package client;
+
+import org.junit.Test;
+import settings.Message;
+import settings.ServerSettings;
+
+import static org.hamcrest.Matchers.contains;
+import static org.hamcrest.Matchers.is;
+import static org.junit.Assert.*;
+
+
+public class PresenceRosterTest {
+    private PresenceRoster roster = new PresenceRoster();
+
+    @Test
+    public void testSnapshotAndDeltas() throws Exception {
+        roster.apply(presence(ServerSettings.PRESENCE_SNAPSHOT, "7\nalice\nbob"));
+        roster.apply(presence(ServerSettings.PRESENCE_DELTA, "8 +carol"));
+        roster.apply(presence(ServerSettings.PRESENCE_DELTA, "9 >bob\tbob smith"));
+        roster.apply(presence(ServerSettings.PRESENCE_DELTA, "10 -alice"));
+
+        assertThat(roster.getUsers(), contains("bob smith", "carol"));
+        assertThat(roster.getVersion(), is(10L));
+        assertTrue(roster.isSynced());
+    }
+
+    @Test
+    public void testGapRequiresResync() throws Exception {
+        roster.apply(presence(ServerSettings.PRESENCE_SNAPSHOT, "7\nalice"));
+        roster.apply(presence(ServerSettings.PRESENCE_DELTA, "9 -alice"));
+
+        assertFalse(roster.isSynced());
+        assertThat(roster.getUsers(), contains("alice"));
+        assertThat(roster.resyncRequest(), is(ServerSettings.PRESENCE + " 7"));
+
+        //ответ на запрос: все изменения после версии 7, уже виденное повторно не применяется
+        roster.apply(presence(ServerSettings.PRESENCE_DELTA, "8 +bob\n9 -alice"));
+        roster.apply(presence(ServerSettings.PRESENCE_DELTA, "9 -alice"));
+
+        assertTrue(roster.isSynced());
+        assertThat(roster.getUsers(), contains("bob"));
+        assertThat(roster.getVersion(), is(9L));
+    }
+
+    @Test
+    public void testOtherMessagesAreIgnored() throws Exception {
+        assertFalse(roster.apply(new Message("hello", "alice")));
+        assertThat(roster.resyncRequest(), is(ServerSettings.PRESENCE));
+    }
+
+    private static Message presence(String command, String text) {
+        Message message = new Message();
+        message.setCommand(command);
+        message.setMessage(text);
+        return message;
+    }
+}
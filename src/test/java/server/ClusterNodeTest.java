@@ -0,0 +1,226 @@
+package server;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import settings.Message;
+import settings.MessageCodec;
+import settings.MessageCodecs;
+import settings.ServerSettings;
+
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketException;
+import java.nio.ByteBuffer;
+import java.util.Collections;
+
+import static org.hamcrest.Matchers.is;
+import static org.junit.Assert.*;
+import static org.mockito.Mockito.mock;
+
+
+public class ClusterNodeTest {
+    private static final String SECRET = "cluster-secret";
+
+    private Server first;
+    private Server second;
+    private ClusterNode firstNode;
+    private ClusterNode secondNode;
+
+    @Before
+    public void init() throws Exception {
+        first = new Server(mock(ServerSocket.class), "first");
+        second = new Server(mock(ServerSocket.class), "second");
+        firstNode = new ClusterNode(first, "node-a", SECRET, new ServerSocket(0), Collections.<String>emptyList());
+        first.setCluster(firstNode);
+        firstNode.start();
+        secondNode = new ClusterNode(second, "node-b", SECRET, new ServerSocket(0),
+                Collections.singletonList("127.0.0.1:" + firstNode.getPort()));
+        second.setCluster(secondNode);
+        secondNode.start();
+        waitFor(new Condition() {
+            @Override
+            public boolean isTrue() {
+                return firstNode.getPeers().contains("node-b") && secondNode.getPeers().contains("node-a");
+            }
+        });
+    }
+
+    @Test
+    public void testLoginIsClusterWide() throws Exception {
+        ServerToClientThread alice = loggedUser(first, "alice");
+
+        waitFor(new Condition() {
+            @Override
+            public boolean isTrue() {
+                return secondNode.isRemoteUser("alice");
+            }
+        });
+        assertFalse(second.loginCheck(new ServerToClientThread(null, second, false), "alice"));
+
+        first.removeUser(alice);
+        waitFor(new Condition() {
+            @Override
+            public boolean isTrue() {
+                return !secondNode.isRemoteUser("alice");
+            }
+        });
+        assertTrue(second.loginCheck(new ServerToClientThread(null, second, false), "alice"));
+    }
+
+    @Test
+    public void testBroadcastIsRelayed() throws Exception {
+        ServerToClientThread alice = loggedUser(first, "alice");
+        ServerToClientThread bob = loggedUser(second, "bob");
+
+        first.sendBroadcastMessage(alice, new Message("alice: hello", "alice"));
+
+        waitForMessage(bob, "alice: hello");
+        waitFor(new Condition() {
+            @Override
+            public boolean isTrue() {
+                for (MessageHistory.Entry entry : second.getRoom(ServerSettings.DEFAULT_ROOM).lastMessages()) {
+                    if (entry.getMessage().equals("alice: hello"))
+                        return true;
+                }
+                return false;
+            }
+        });
+    }
+
+    @Test
+    public void testDirectMessageIsRouted() throws Exception {
+        ServerToClientThread alice = loggedUser(first, "alice");
+        ServerToClientThread bob = loggedUser(second, "bob");
+        waitFor(new Condition() {
+            @Override
+            public boolean isTrue() {
+                return secondNode.isRemoteUser("alice");
+            }
+        });
+
+        bob.onMessage(new Message(ServerSettings.DIRECT_TO + " :alice hi", "bob"));
+
+        waitForMessage(alice, "DIRECT MESSAGE FROM bob: hi");
+    }
+
+    @Test
+    public void testOnlineUsersIncludeRemoteUsers() throws Exception {
+        ServerToClientThread alice = loggedUser(first, "alice");
+        loggedUser(second, "bob");
+        waitFor(new Condition() {
+            @Override
+            public boolean isTrue() {
+                return firstNode.isRemoteUser("bob");
+            }
+        });
+
+        alice.onMessage(new Message(ServerSettings.USERS, "alice"));
+
+        waitForMessage(alice, "ONLINE USERS:\nalice\nbob\n");
+    }
+
+    @Test
+    public void testPeerWithoutSecretIsRejected() throws Exception {
+        MessageCodec codec = MessageCodecs.newCodec();
+        Socket socket = new Socket("127.0.0.1", firstNode.getPort());
+        try {
+            socket.setSoTimeout(5000);
+            OutputStream out = socket.getOutputStream();
+            writeFrame(out, codec, new Message("node-x", "nonce", ServerSettings.CLUSTER_HELLO));
+            writeFrame(out, codec, new Message(SECRET, null, ServerSettings.CLUSTER_AUTH));
+            writeFrame(out, codec, new Message(null, "mallory", ServerSettings.CLUSTER_USER_ADD));
+            out.flush();
+
+            //узел закрывает соединение, не приняв ни одного сообщения; непрочитанные им кадры
+            //могут превратить закрытие в сброс соединения
+            InputStream in = socket.getInputStream();
+            try {
+                while (in.read() >= 0) {
+                }
+            } catch (SocketException e) {
+                //соединение сброшено узлом
+            }
+        } finally {
+            socket.close();
+        }
+        assertFalse(firstNode.isRemoteUser("mallory"));
+        assertFalse(firstNode.getPeers().contains("node-x"));
+    }
+
+    @Test
+    public void testNodeWithOtherSecretDoesNotJoin() throws Exception {
+        Server third = new Server(mock(ServerSocket.class), "third");
+        ClusterNode thirdNode = new ClusterNode(third, "node-c", "other-secret", new ServerSocket(0),
+                Collections.singletonList("127.0.0.1:" + firstNode.getPort()));
+        third.setCluster(thirdNode);
+        thirdNode.start();
+        try {
+            loggedUser(third, "carol");
+            Thread.sleep(300);
+
+            assertFalse(firstNode.getPeers().contains("node-c"));
+            assertFalse(firstNode.isRemoteUser("carol"));
+            assertThat(thirdNode.getPeers().size(), is(0));
+        } finally {
+            thirdNode.stop();
+        }
+    }
+
+    @After
+    public void stop() {
+        firstNode.stop();
+        secondNode.stop();
+    }
+
+    /*пользователь входит так же, как настоящий клиент: через сообщение LOGIN_CHECK*/
+    private ServerToClientThread loggedUser(Server server, String login) throws Exception {
+        ServerToClientThread user = new ServerToClientThread(null, server, false);
+        user.onMessage(new Message("", login, ServerSettings.LOGIN_CHECK));
+        assertThat(user.getUser_name(), is(login));
+        return user;
+    }
+
+    /*кадр кластера, записанный в сокет вручную, как это сделал бы посторонний узел*/
+    private static void writeFrame(OutputStream out, MessageCodec codec, Message message) throws Exception {
+        byte[] payload = codec.encode(message);
+        out.write(ByteBuffer.allocate(4 + payload.length).putInt(payload.length).put(payload).array());
+    }
+
+    /*разбирает очередь пользователя, пока в ней не появится сообщение с указанным текстом*/
+    private static void waitForMessage(final ServerToClientThread user, final String text) throws InterruptedException {
+        waitFor(new Condition() {
+            @Override
+            public boolean isTrue() {
+                Frame frame;
+                while ((frame = user.outbound.poll()) != null) {
+                    try {
+                        byte[] bytes = new byte[frame.length()];
+                        frame.buffer().get(bytes);
+                        if (text.equals(user.codec.decode(bytes, 4, bytes.length - 4).getMessage()))
+                            return true;
+                    } catch (Exception e) {
+                        throw new IllegalStateException(e);
+                    } finally {
+                        frame.release();
+                    }
+                }
+                return false;
+            }
+        });
+    }
+
+    private interface Condition {
+        boolean isTrue();
+    }
+
+    private static void waitFor(Condition condition) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 5000;
+        while (!condition.isTrue()) {
+            assertTrue("Condition is not met in time", System.currentTimeMillis() < deadline);
+            Thread.sleep(10);
+        }
+    }
+}
@@ -0,0 +1,50 @@
+package server;
+
+import org.junit.Test;
+import settings.ServerSettings;
+
+import java.lang.invoke.MethodHandles;
+
+import static org.hamcrest.Matchers.is;
+import static org.junit.Assert.*;
+import static org.mockito.Mockito.*;
+
+
+public class CommandTableTest {
+    private CommandTable table = new CommandTable(Server.class, MethodHandles.lookup());
+
+    @Test
+    public void testMatch_Command() {
+        int command = table.match(ServerSettings.HELP);
+
+        assertTrue(command >= 0);
+        assertThat(table.getName(command), is(ServerSettings.HELP));
+        assertThat(table.getMethod(command).getName(), is("help"));
+    }
+
+    @Test
+    public void testMatch_CommandWithArguments() {
+        int command = table.match(ServerSettings.DIRECT_TO + " :admin privet");
+
+        assertThat(table.getName(command), is(ServerSettings.DIRECT_TO));
+    }
+
+    @Test
+    public void testMatch_NotCommand() {
+        assertThat(table.match("hello /HELP"), is(-1));
+        assertThat(table.match(ServerSettings.HELP + "ME"), is(-1));
+        assertThat(table.match(" " + ServerSettings.HELP), is(-1));
+        assertThat(table.match(""), is(-1));
+        assertThat(table.match(null), is(-1));
+    }
+
+    @Test
+    public void testHandler_CallsOverriddenMethod() throws Exception {
+        Server server = mock(Server.class);
+        ServerToClientThread user = mock(ServerToClientThread.class);
+
+        table.getHandler(table.match(ServerSettings.QUIT)).execute(server, user);
+
+        verify(server, times(1)).quit(user);
+    }
+}
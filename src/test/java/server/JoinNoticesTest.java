@@ -0,0 +1,95 @@
+package server;
+
+import org.junit.Test;
+import settings.Message;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import static org.hamcrest.Matchers.contains;
+import static org.hamcrest.Matchers.endsWith;
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.nullValue;
+import static org.junit.Assert.*;
+
+public class JoinNoticesTest {
+    //в рассылку по расписанию список пишет поток уведомлений
+    private final List<String> sent = Collections.synchronizedList(new ArrayList<String>());
+    private final List<String> excluded = Collections.synchronizedList(new ArrayList<String>());
+    private final JoinNotices.Sender sender = new JoinNotices.Sender() {
+        @Override
+        public void sendNotice(Room room, Message message, String exceptLogin) {
+            sent.add(room.getName() + ": " + message.getMessage());
+            excluded.add(exceptLogin);
+        }
+    };
+
+    @Test
+    public void testStormIsCoalescedIntoOneNoticePerRoom() {
+        //окно больше времени теста: рассылку запускает сам тест
+        JoinNotices notices = new JoinNotices(sender, 60000, 2);
+        Room main = new Room("main", 10);
+        Room games = new Room("games", 10);
+        for (int i = 0; i < 25; i++) {
+            notices.joined(main, "bot" + i);
+        }
+        notices.left(main, "alice");
+        notices.joined(games, "bob");
+        assertTrue(sent.isEmpty());
+
+        notices.flush();
+
+        assertThat(sent, contains(
+                "main: 25 USERS JOINED THE CHAT: bot0, bot1, bot2, bot3, bot4, bot5, bot6, bot7, bot8, bot9, bot10, "
+                        + "bot11, bot12, bot13, bot14, bot15, bot16, bot17, bot18, bot19 AND 5 MORE.\n"
+                        + "USER 'alice' QUIT THE CHAT.",
+                "games: USER 'bob' JOIN THE CHAT."));
+        //единственный вошедший не получает уведомление о себе
+        assertThat(excluded.get(0), is(nullValue()));
+        assertThat(excluded.get(1), is("bob"));
+        assertThat(notices.getEvents(), is(27L));
+        assertThat(notices.getNotices(), is(2L));
+        notices.stop();
+    }
+
+    @Test
+    public void testReconnectWithinWindowIsNotAnnounced() {
+        JoinNotices notices = new JoinNotices(sender, 60000, 2);
+        Room main = new Room("main", 10);
+        notices.left(main, "alice");
+        notices.joined(main, "alice");
+        notices.joined(main, "bob");
+        notices.left(main, "bob");
+
+        notices.flush();
+
+        assertTrue(sent.isEmpty());
+        notices.stop();
+    }
+
+    @Test
+    public void testNoticesAreSentAfterWindow() throws Exception {
+        JoinNotices notices = new JoinNotices(sender, 20, 100);
+        Room main = new Room("main", 10);
+        notices.joined(main, "alice");
+        notices.joined(main, "bob");
+
+        long deadline = System.currentTimeMillis() + 5000;
+        while (sent.isEmpty() && System.currentTimeMillis() < deadline) {
+            Thread.sleep(5);
+        }
+        assertThat(sent, contains("main: 2 USERS JOINED THE CHAT: alice, bob."));
+        notices.stop();
+    }
+
+    @Test
+    public void testZeroWindowSendsImmediately() {
+        JoinNotices notices = new JoinNotices(sender, 0, 2);
+        notices.left(new Room("main", 10), "alice");
+
+        assertThat(sent.size(), is(1));
+        assertThat(sent.get(0), endsWith("USER 'alice' QUIT THE CHAT."));
+        assertThat(excluded.get(0), is("alice"));
+    }
+}
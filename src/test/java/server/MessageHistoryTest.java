@@ -0,0 +1,132 @@
+package server;
+
+import org.junit.Test;
+
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+
+import static org.hamcrest.Matchers.is;
+import static org.junit.Assert.*;
+
+
+public class MessageHistoryTest {
+
+    @Test
+    public void testSnapshot_Empty() {
+        MessageHistory history = new MessageHistory(3);
+
+        assertThat(history.snapshot().size(), is(0));
+        assertThat(history.lastSequence(), is(0L));
+    }
+
+    @Test
+    public void testAppend_KeepsOrderAndSequence() {
+        MessageHistory history = new MessageHistory(3);
+        history.append("m1");
+        history.append("m2");
+
+        List<MessageHistory.Entry> entries = history.snapshot();
+        assertThat(entries.size(), is(2));
+        assertThat(entries.get(0).getMessage(), is("m1"));
+        assertThat(entries.get(0).getSequence(), is(1L));
+        assertThat(entries.get(1).getMessage(), is("m2"));
+        assertThat(entries.get(1).getSequence(), is(2L));
+    }
+
+    @Test
+    public void testAppend_OverwritesOldest() {
+        MessageHistory history = new MessageHistory(3);
+        for (int i = 1; i <= 5; i++) {
+            history.append("m" + i);
+        }
+
+        List<MessageHistory.Entry> entries = history.snapshot();
+        assertThat(history.size(), is(3));
+        assertThat(entries.size(), is(3));
+        assertThat(entries.get(0).getMessage(), is("m3"));
+        assertThat(entries.get(2).getMessage(), is("m5"));
+        assertThat(entries.get(2).getSequence(), is(5L));
+    }
+
+    @Test
+    public void testFirstSequence_ContinuesNumbering() {
+        MessageHistory history = new MessageHistory(2, 10);
+        assertThat(history.lastSequence(), is(9L));
+        assertThat(history.firstRetainedSequence(), is(10L));
+
+        history.append("m10");
+        history.append("m11");
+        history.append("m12");
+
+        assertThat(history.size(), is(2));
+        assertThat(history.firstRetainedSequence(), is(11L));
+        assertThat(history.snapshot().get(0).getSequence(), is(11L));
+    }
+
+    @Test
+    public void testSnapshotAfter_ReturnsOnlyNewer() {
+        MessageHistory history = new MessageHistory(10);
+        for (int i = 1; i <= 5; i++) {
+            history.append("m" + i);
+        }
+
+        List<MessageHistory.Entry> entries = history.snapshotAfter(3);
+        assertThat(entries.size(), is(2));
+        assertThat(entries.get(0).getMessage(), is("m4"));
+        assertThat(history.snapshotAfter(5).size(), is(0));
+    }
+
+    @Test
+    public void testAppend_Concurrent() throws Exception {
+        final MessageHistory history = new MessageHistory(1000);
+        final int threads = 4;
+        final int perThread = 200;
+        final CountDownLatch done = new CountDownLatch(threads);
+        for (int t = 0; t < threads; t++) {
+            new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    for (int i = 0; i < perThread; i++) {
+                        history.append("m");
+                    }
+                    done.countDown();
+                }
+            }).start();
+        }
+        done.await();
+
+        List<MessageHistory.Entry> entries = history.snapshot();
+        assertThat(entries.size(), is(threads * perThread));
+        for (int i = 0; i < entries.size(); i++) {
+            assertThat(entries.get(i).getSequence(), is((long) i + 1));
+        }
+    }
+
+    @Test
+    public void testAppend_ConcurrentWrapKeepsNewest() throws Exception {
+        //писателей больше, чем ячеек, и кольцо проходится много раз: обогнанный писатель не должен затереть новое
+        final MessageHistory history = new MessageHistory(4);
+        final int threads = 8;
+        final int perThread = 20000;
+        final CountDownLatch done = new CountDownLatch(threads);
+        for (int t = 0; t < threads; t++) {
+            new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    for (int i = 0; i < perThread; i++) {
+                        history.append("m");
+                    }
+                    done.countDown();
+                }
+            }).start();
+        }
+        done.await();
+
+        List<MessageHistory.Entry> entries = history.snapshot();
+        long last = (long) threads * perThread;
+        assertThat(entries.size(), is(4));
+        for (int i = 0; i < entries.size(); i++) {
+            assertThat(entries.get(i).getSequence(), is(last - 3 + i));
+        }
+    }
+}
@@ -0,0 +1,207 @@
+package server;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.lang.reflect.Field;
+import java.nio.ByteBuffer;
+import java.util.List;
+import java.util.zip.CRC32;
+
+import static org.hamcrest.Matchers.is;
+import static org.junit.Assert.*;
+
+
+public class MessageJournalTest {
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void testAppendAndRead() throws Exception {
+        MessageJournal journal = new MessageJournal(folder.getRoot(), 4096, 4, 1000);
+        assertTrue(journal.append("main", 1, "user1: hello"));
+        assertTrue(journal.append("team", 1, "user2: привет"));
+        journal.sync();
+
+        List<MessageJournal.Record> records = journal.read(0, 10);
+        assertThat(records.size(), is(2));
+        assertThat(records.get(0).getOffset(), is(0L));
+        assertThat(records.get(1).getOffset(), is(1L));
+        assertThat(records.get(1).getRoom(), is("team"));
+        assertThat(records.get(1).getSequence(), is(1L));
+        assertThat(records.get(1).getMessage(), is("user2: привет"));
+        assertThat(journal.read(1, 10).size(), is(1));
+        journal.close();
+    }
+
+    @Test
+    public void testReopen_RecordsSurvive() throws Exception {
+        MessageJournal journal = new MessageJournal(folder.getRoot(), 4096, 4, 1000);
+        journal.append("main", 1, "m1");
+        journal.append("main", 2, "m2");
+        journal.close();
+
+        journal = new MessageJournal(folder.getRoot(), 4096, 4, 1000);
+        assertThat(journal.getNextOffset(), is(2L));
+        journal.append("main", 3, "m3");
+        journal.sync();
+
+        List<MessageJournal.Record> records = journal.read(0, 10);
+        assertThat(records.size(), is(3));
+        assertThat(records.get(2).getOffset(), is(2L));
+        assertThat(records.get(2).getMessage(), is("m3"));
+        journal.close();
+    }
+
+    @Test
+    public void testReopen_TornRecordIgnored() throws Exception {
+        MessageJournal journal = new MessageJournal(folder.getRoot(), 4096, 4, 1000);
+        journal.append("main", 1, "m1");
+        journal.append("main", 2, "m2");
+        journal.close();
+
+        //портим последний байт второй записи, как при обрыве записи
+        File log = new File(folder.getRoot(), String.format("%020d.log", 0));
+        try (RandomAccessFile raf = new RandomAccessFile(log, "rw")) {
+            int second = JournalSegment.FILE_HEADER_SIZE + 8 + 8 + 2 + 4 + 2;
+            raf.seek(second + 8 + 8 + 2 + 4 + 1);
+            raf.write('x');
+        }
+
+        journal = new MessageJournal(folder.getRoot(), 4096, 4, 1000);
+        List<MessageJournal.Record> records = journal.read(0, 10);
+        assertThat(records.size(), is(1));
+        assertThat(journal.getNextOffset(), is(1L));
+        journal.close();
+    }
+
+    @Test
+    public void testReopen_SegmentWithoutHeaderIsReadable() throws Exception {
+        //сегмент прежнего формата: записи начинаются с начала файла
+        byte[] data = ByteBuffer.allocate(8 + 2 + 4 + 2).putLong(1).putShort((short) 4).put("main".getBytes("UTF-8"))
+                .put("m1".getBytes("UTF-8")).array();
+        CRC32 crc = new CRC32();
+        crc.update(data, 0, data.length);
+        File log = new File(folder.getRoot(), String.format("%020d.log", 0));
+        try (RandomAccessFile raf = new RandomAccessFile(log, "rw")) {
+            raf.setLength(4096);
+            raf.writeInt(data.length);
+            raf.writeInt((int) crc.getValue());
+            raf.write(data);
+        }
+
+        MessageJournal journal = new MessageJournal(folder.getRoot(), 4096, 4, 1000);
+        journal.append("main", 2, "m2");
+        journal.sync();
+
+        List<MessageJournal.Record> records = journal.read(0, 10);
+        assertThat(records.size(), is(2));
+        assertThat(records.get(0).getMessage(), is("m1"));
+        assertThat(records.get(1).getMessage(), is("m2"));
+        journal.close();
+    }
+
+    @Test(expected = IOException.class)
+    public void testOpen_NewerVersionRejected() throws Exception {
+        File log = new File(folder.getRoot(), String.format("%020d.log", 0));
+        try (RandomAccessFile raf = new RandomAccessFile(log, "rw")) {
+            raf.setLength(4096);
+            raf.writeInt(JournalSegment.MAGIC);
+            raf.writeInt(JournalSegment.VERSION + 1);
+        }
+
+        new MessageJournal(folder.getRoot(), 4096, 4, 1000);
+    }
+
+    @Test
+    public void testRollAndRetention() throws Exception {
+        MessageJournal journal = new MessageJournal(folder.getRoot(), 256, 2, 1000);
+        for (int i = 0; i < 50; i++) {
+            journal.append("main", i + 1, "message number " + i);
+        }
+        journal.sync();
+
+        assertThat(journal.getSegmentCount(), is(2));
+        assertThat(journal.getNextOffset(), is(50L));
+        List<MessageJournal.Record> records = journal.read(0, 100);
+        assertTrue(journal.getFirstOffset() > 0);
+        assertThat(records.get(0).getOffset(), is(journal.getFirstOffset()));
+        assertThat(records.get(records.size() - 1).getMessage(), is("message number 49"));
+        assertThat((long) records.size(), is(50 - journal.getFirstOffset()));
+        //кроме двух сегментов может лежать заготовка следующего
+        assertThat(folder.getRoot().list(new FilenameFilter() {
+            @Override
+            public boolean accept(File dir, String name) {
+                return name.endsWith(".log") || name.endsWith(".index");
+            }
+        }).length, is(4));
+        journal.close();
+    }
+
+    @Test
+    public void testPrepareFailure_RetriedOnNextRoll() throws Exception {
+        //каталог на месте файла заготовки не дает ее создать, а непустой каталог не удаляется при открытии
+        File blocker = new File(folder.getRoot(), "prepared.log.tmp");
+        assertTrue(blocker.mkdir());
+        assertTrue(new File(blocker, "keep").createNewFile());
+        MessageJournal journal = new MessageJournal(folder.getRoot(), 256, 4, 1000);
+        Field scheduled = MessageJournal.class.getDeclaredField("prepareScheduled");
+        scheduled.setAccessible(true);
+        long deadline = System.currentTimeMillis() + 5000;
+        while ((Boolean) scheduled.get(journal)) {
+            assertTrue("Failed preparation is not reset", System.currentTimeMillis() < deadline);
+            Thread.sleep(10);
+        }
+
+        assertTrue(new File(blocker, "keep").delete());
+        assertTrue(blocker.delete());
+        for (int i = 0; i < 20; i++) {
+            journal.append("main", i + 1, "message number " + i);
+        }
+        journal.sync();
+
+        assertTrue(journal.getSegmentCount() > 1);
+        while (!blocker.isFile()) {
+            assertTrue("Next segment is not prepared", System.currentTimeMillis() < deadline);
+            Thread.sleep(10);
+        }
+        journal.close();
+    }
+
+    @Test
+    public void testServer_HistoryRestoredFromJournal() throws Exception {
+        MessageJournal journal = new MessageJournal(folder.getRoot(), 4096, 4, 1000);
+        journal.append("main", 7, "user1: hello");
+        journal.append("team", 1, "user2: hi");
+        journal.append("main", 8, "user1: bye");
+        journal.sync();
+
+        Server server = new Server(null, "TestServer", journal);
+
+        MessageHistory main = server.getRoom("main").getHistory();
+        assertThat(main.size(), is(2));
+        assertThat(main.snapshot().get(0).getSequence(), is(7L));
+        assertThat(main.snapshot().get(1).getMessage(), is("user1: bye"));
+        assertThat(main.append("next"), is(9L));
+        journal.close();
+    }
+
+    @Test
+    public void testClose_WritesQueuedRecords() throws Exception {
+        MessageJournal journal = new MessageJournal(folder.getRoot(), 4096, 4, 1000);
+        for (int i = 0; i < 20; i++) {
+            journal.append("main", i + 1, "m" + i);
+        }
+        journal.close();
+        assertFalse(journal.append("main", 21, "late"));
+
+        journal = new MessageJournal(folder.getRoot(), 4096, 4, 1000);
+        assertThat(journal.read(0, 100).size(), is(20));
+        journal.close();
+    }
+}
@@ -0,0 +1,88 @@
+package server;
+
+import org.junit.Test;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import javax.management.ReflectionException;
+import java.lang.management.ManagementFactory;
+import java.util.List;
+
+import static org.hamcrest.Matchers.*;
+import static org.junit.Assert.*;
+
+
+public class MetricsTest {
+    private Metrics metrics = new Metrics();
+
+    @Test
+    public void testCounter() throws Exception {
+        metrics.counter("messages").increment();
+        metrics.counter("messages").add(2);
+
+        assertThat(metrics.counter("messages").get(), is(3L));
+    }
+
+    @Test
+    public void testTimer() throws Exception {
+        Metrics.Timer timer = metrics.timer("command");
+        timer.record(1000);
+        timer.record(3000);
+
+        assertThat(timer.getCount(), is(2L));
+        assertThat(timer.getMeanMicros(), is(2.0));
+        assertThat(timer.getMaxMicros(), is(3.0));
+    }
+
+    @Test
+    public void testReport() throws Exception {
+        metrics.counter("b").increment();
+        metrics.gauge("a", new Metrics.Gauge() {
+            @Override
+            public long value() {
+                return 42;
+            }
+        });
+        metrics.timer("c").record(1500);
+
+        List<String> report = metrics.report();
+
+        assertThat(report, contains("a = 42", "b = 1", "c: count 1, mean 1.5 us, max 1.5 us"));
+    }
+
+    @Test
+    public void testJmxAttributes() throws Exception {
+        metrics.counter("messages.in").add(5);
+        metrics.timer("broadcast").record(2000);
+        MBeanServer mBeanServer = ManagementFactory.getPlatformMBeanServer();
+        ObjectName name = new ObjectName("serverChat:type=MetricsTest");
+        mBeanServer.registerMBean(metrics, name);
+        try {
+            assertThat(mBeanServer.getAttribute(name, "messages.in"), is((Object) 5L));
+            assertThat(mBeanServer.getAttribute(name, "broadcast.count"), is((Object) 1L));
+            assertThat(mBeanServer.getAttribute(name, "broadcast.meanMicros"), is((Object) 2.0));
+            assertThat(mBeanServer.getMBeanInfo(name).getAttributes().length, is(4));
+        } finally {
+            mBeanServer.unregisterMBean(name);
+        }
+    }
+
+    @Test
+    public void testReport_MarksJvmWideMetrics() throws Exception {
+        metrics.jvmGauge("bytes.out", new Metrics.Gauge() {
+            @Override
+            public long value() {
+                return 7;
+            }
+        });
+        metrics.jvmTimer("wait", new Metrics.Timer());
+
+        assertThat(metrics.report(), contains("bytes.out = 7" + Metrics.JVM_MARK,
+                "wait: count 0, mean 0.0 us, max 0.0 us" + Metrics.JVM_MARK));
+    }
+
+    @Test(expected = ReflectionException.class)
+    public void testInvoke_NoOperations() throws Exception {
+        metrics.invoke("reset", new Object[0], new String[0]);
+    }
+}
@@ -0,0 +1,153 @@
+package server;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import settings.Message;
+import settings.MessageCodecs;
+import settings.ServerSettings;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketException;
+import java.nio.channels.ServerSocketChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import static org.hamcrest.Matchers.greaterThan;
+import static org.hamcrest.Matchers.is;
+import static org.junit.Assert.*;
+
+
+public class NioServerTransportTest {
+    //буфер отправки сервера меньше ответа с историей, поэтому история пишется по частям
+    private static final int SEND_BUFFER = 4096;
+    private static final int LINE_SIZE = 2000;
+
+    private final BlockingQueue<ClientConnection> started = new LinkedBlockingQueue<ClientConnection>();
+    private final BlockingQueue<ClientConnection> stopped = new LinkedBlockingQueue<ClientConnection>();
+    private final List<SocketClient> clients = new ArrayList<SocketClient>();
+    private Server server;
+    private int port;
+
+    @Before
+    public void init() throws Exception {
+        ServerSocket serverSocket = ServerSocketChannel.open()
+                .bind(new InetSocketAddress(ServerSettings.INET_ADDRESS, 0)).socket();
+        port = serverSocket.getLocalPort();
+        server = new Server(serverSocket, "NioServer", null, ServerSettings.TRANSPORT_NIO) {
+            @Override
+            public void onStartSocket(ClientConnection userThread, Socket socket) {
+                super.onStartSocket(userThread, socket);
+                try {
+                    socket.setSendBufferSize(SEND_BUFFER);
+                } catch (SocketException e) {
+                    throw new IllegalStateException(e);
+                }
+                started.add(userThread);
+            }
+
+            @Override
+            public void onStopSocket(ClientConnection userThread, Socket socket) {
+                super.onStopSocket(userThread, socket);
+                stopped.add(userThread);
+            }
+        };
+        Thread listener = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                server.startSocketListener();
+            }
+        }, "nio-test-listener");
+        listener.setDaemon(true);
+        listener.start();
+    }
+
+    @After
+    public void stop() throws IOException {
+        for (SocketClient client : clients) {
+            client.close();
+        }
+        server.stopServer();
+    }
+
+    @Test
+    public void testLoginAndBroadcast() throws Exception {
+        SocketClient alice = connect(0);
+        SocketClient bob = connect(0);
+
+        assertThat(alice.login("alice").getCommand(), is(ServerSettings.LOGIN_IS_FREE));
+        assertThat(bob.login("bob").getCommand(), is(ServerSettings.LOGIN_IS_FREE));
+        assertThat(connect(0).login("alice").getCommand(), is(ServerSettings.LOGIN_IS_NOT_FREE));
+
+        alice.send(new Message("hello", "alice"));
+
+        //отправителю его собственное сообщение не рассылается
+        assertThat(bob.readUntil("alice: hello").getSequence(), is(1L));
+        bob.send(new Message("hi", "bob"));
+        assertThat(alice.readUntil("bob: hi").getSequence(), is(2L));
+    }
+
+    @Test
+    public void testLargeHistory_IsWrittenInParts() throws Exception {
+        String expected = fillHistory();
+        long writeCalls = TrafficStats.getWriteCalls();
+        long frames = TrafficStats.getFrames();
+        SocketClient client = connect(0);
+
+        assertThat(client.login("carol").getCommand(), is(ServerSettings.LOGIN_IS_FREE));
+        Message history = client.read();
+
+        assertThat(history.getMessage(), is(expected));
+        assertThat(history.getSequence(), is(server.getRoom(ServerSettings.DEFAULT_ROOM).getHistory().lastSequence()));
+        //часть записей не закончила ни одного кадра: канал принимал кадр по частям
+        assertThat(TrafficStats.getWriteCalls() - writeCalls, greaterThan(TrafficStats.getFrames() - frames));
+    }
+
+    @Test
+    public void testDisconnect_ReleasesFramesAndStopsSocket() throws Exception {
+        fillHistory();
+        //клиент не читает историю, поэтому она и кадр за ней остаются в очереди соединения
+        SocketClient client = connect(SEND_BUFFER);
+        assertThat(client.login("carol").getCommand(), is(ServerSettings.LOGIN_IS_FREE));
+        ClientConnection connection = started.poll(5, TimeUnit.SECONDS);
+        Frame frame = Frame.encode(MessageCodecs.newCodec(), new Message("bye", null), false);
+        assertTrue(connection.sendFrame(frame));
+        assertThat(frame.referenceCount(), greaterThan(1));
+
+        client.close();
+
+        assertThat(stopped.poll(5, TimeUnit.SECONDS), is(connection));
+        assertTrue(connection.outbound.isClosed());
+        assertThat(frame.referenceCount(), is(1));
+        assertTrue(frame.release());
+        //логин освобожден при отключении
+        assertThat(connect(0).login("carol").getCommand(), is(ServerSettings.LOGIN_IS_FREE));
+    }
+
+    private SocketClient connect(int receiveBufferSize) throws IOException {
+        SocketClient client = new SocketClient(port, receiveBufferSize);
+        clients.add(client);
+        return client;
+    }
+
+    /*заполняет историю комнаты и возвращает текст, который придет клиенту в ответе с историей*/
+    private String fillHistory() {
+        MessageHistory history = server.getRoom(ServerSettings.DEFAULT_ROOM).getHistory();
+        StringBuilder line = new StringBuilder(LINE_SIZE);
+        for (int i = 0; i < LINE_SIZE; i++) {
+            line.append((char) ('a' + i % 26));
+        }
+        StringBuilder expected = new StringBuilder();
+        for (int i = 0; i < history.getCapacity(); i++) {
+            history.append(i + line.toString());
+            expected.append(i).append(line).append("\n");
+        }
+        return expected.toString();
+    }
+}
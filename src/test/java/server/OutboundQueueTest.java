@@ -0,0 +1,217 @@
+package server;
+
+import org.junit.Test;
+
+import settings.BinaryMessageCodec;
+import settings.Message;
+
+import java.io.IOException;
+
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.nullValue;
+import static org.junit.Assert.*;
+
+
+public class OutboundQueueTest {
+
+    @Test
+    public void testOffer_KeepsOrder() throws Exception {
+        OutboundQueue queue = new OutboundQueue(10);
+        Frame first = frame();
+        Frame second = frame();
+
+        assertTrue(queue.offer(first));
+        assertTrue(queue.offer(second));
+
+        assertThat(queue.size(), is(2));
+        assertThat(queue.take(), is(first));
+        assertThat(queue.poll(), is(second));
+        assertThat(queue.poll(), is(nullValue()));
+    }
+
+    @Test
+    public void testOffer_RetainsSharedFrame() throws Exception {
+        OutboundQueue first = new OutboundQueue(10);
+        OutboundQueue second = new OutboundQueue(10);
+        Frame frame = frame();
+
+        first.offer(frame);
+        second.offer(frame);
+        assertThat(frame.referenceCount(), is(3));
+
+        assertFalse(frame.release());
+        assertFalse(first.poll().release());
+        second.close();
+        assertThat(frame.referenceCount(), is(0));
+    }
+
+    @Test
+    public void testOffer_DropsWhenFull() throws Exception {
+        OutboundQueue queue = new OutboundQueue(2);
+
+        assertTrue(queue.offer(frame()));
+        assertTrue(queue.offer(frame()));
+        assertFalse(queue.offer(frame()));
+
+        assertThat(queue.size(), is(2));
+        assertThat(queue.getDroppedFrames(), is(1L));
+    }
+
+    @Test
+    public void testOffer_DropsWhenTooManyBytes() throws Exception {
+        Frame frame = frame();
+        OutboundQueue queue = new OutboundQueue(10, frame.length() * 2, 0);
+
+        assertTrue(queue.offer(frame));
+        assertTrue(queue.offer(frame));
+        assertFalse(queue.offer(frame));
+        assertThat(queue.getQueuedBytes(), is(frame.length() * 2L));
+
+        queue.poll().release();
+        assertThat(queue.getQueuedBytes(), is((long) frame.length()));
+        assertTrue(queue.offer(frame));
+    }
+
+    @Test
+    public void testOffer_DropsWhenFirstFrameWaitsTooLong() throws Exception {
+        OutboundQueue queue = new OutboundQueue(10, Long.MAX_VALUE, 1);
+
+        assertTrue(queue.offer(frame()));
+        Thread.sleep(10);
+
+        assertFalse(queue.offer(frame()));
+    }
+
+    @Test
+    public void testDropOldest_KeepsControlFrames() throws Exception {
+        OutboundQueue queue = new OutboundQueue(3);
+        Frame control = frame();
+        Frame first = roomFrame(1);
+        Frame second = roomFrame(2);
+        queue.offer(control);
+        queue.offer(first);
+        queue.offer(second);
+
+        assertThat(queue.dropOldest(control.length()), is(1));
+
+        assertThat(first.referenceCount(), is(1));
+        assertThat(queue.poll(), is(control));
+        assertThat(queue.poll(), is(second));
+        assertThat(queue.getDroppedFrames(), is(1L));
+    }
+
+    @Test
+    public void testDropAll_KeepsControlFrames() throws Exception {
+        OutboundQueue queue = new OutboundQueue(10);
+        Frame control = frame();
+        queue.offer(roomFrame(1));
+        queue.offer(control);
+        queue.offer(roomFrame(2));
+
+        assertThat(queue.dropAll(), is(2));
+
+        assertThat(queue.size(), is(1));
+        assertThat(queue.poll(), is(control));
+        assertThat(queue.getQueuedBytes(), is(0L));
+    }
+
+    @Test
+    public void testControlLane_GoesBeforeBulk() throws Exception {
+        OutboundQueue queue = new OutboundQueue(10);
+        Frame bulk = roomFrame(1);
+        Frame firstReply = frame();
+        Frame secondReply = frame();
+        queue.offer(bulk);
+        queue.offer(firstReply, OutboundQueue.CONTROL);
+        queue.offer(secondReply, OutboundQueue.CONTROL);
+        long waited = TrafficStats.getLaneWait(OutboundQueue.CONTROL).getCount();
+
+        assertThat(queue.size(OutboundQueue.CONTROL), is(2));
+        assertThat(queue.peek(), is(firstReply));
+        assertThat(queue.take(), is(firstReply));
+        assertThat(queue.poll(), is(secondReply));
+        assertThat(queue.poll(), is(bulk));
+        assertThat(TrafficStats.getLaneWait(OutboundQueue.CONTROL).getCount(), is(waited + 2));
+    }
+
+    @Test
+    public void testControlLane_AcceptsFramesWhenBulkIsOverloaded() throws Exception {
+        Frame frame = frame();
+        OutboundQueue queue = new OutboundQueue(3, frame.length() * 2, 0);
+
+        //полоса BULK заполнена по объему, но не по числу кадров
+        assertTrue(queue.offer(frame));
+        assertTrue(queue.offer(frame));
+        assertFalse(queue.offer(frame));
+        assertTrue(queue.offer(frame, OutboundQueue.CONTROL));
+        assertTrue(queue.offer(frame, OutboundQueue.CONTROL));
+        assertTrue(queue.offer(frame, OutboundQueue.CONTROL));
+        assertFalse(queue.offer(frame, OutboundQueue.CONTROL));
+
+        assertThat(queue.size(), is(5));
+        assertThat(queue.getQueuedBytes(OutboundQueue.BULK), is(frame.length() * 2L));
+        assertThat(queue.getQueuedBytes(OutboundQueue.CONTROL), is(frame.length() * 3L));
+        assertThat(queue.getDroppedFrames(), is(2L));
+        queue.close();
+        assertThat(queue.getQueuedBytes(), is(0L));
+    }
+
+    @Test
+    public void testControlLane_BytesDoNotOverloadBulk() throws Exception {
+        Frame frame = roomFrame(1);
+        OutboundQueue queue = new OutboundQueue(10, frame.length() * 2, 0, frame.length() * 2);
+
+        assertTrue(queue.offer(frame, OutboundQueue.CONTROL));
+        assertTrue(queue.offer(frame, OutboundQueue.CONTROL));
+        assertFalse(queue.offer(frame, OutboundQueue.CONTROL));
+        assertTrue(queue.offer(frame));
+        assertTrue(queue.offer(frame));
+        assertThat(queue.getQueuedBytes(), is(frame.length() * 4L));
+
+        //ответы клиенту не вытесняют рассылки
+        assertThat(queue.dropOldest(0), is(0));
+        Frame taken;
+        while ((taken = queue.poll()) != null) {
+            taken.release();
+        }
+        assertThat(queue.getQueuedBytes(OutboundQueue.CONTROL), is(0L));
+        assertThat(queue.getQueuedBytes(OutboundQueue.BULK), is(0L));
+        assertTrue(queue.offer(frame, OutboundQueue.CONTROL));
+        queue.close();
+    }
+
+    @Test
+    public void testClose_ReleasesWaitingWriter() throws Exception {
+        final OutboundQueue queue = new OutboundQueue(2);
+        final Frame[] taken = {frame()};
+        Thread writer = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    taken[0] = queue.take();
+                } catch (InterruptedException e) {
+                    e.printStackTrace();
+                }
+            }
+        });
+        writer.start();
+
+        queue.close();
+        writer.join(1000);
+
+        assertFalse(writer.isAlive());
+        assertThat(taken[0], is(nullValue()));
+        assertFalse(queue.offer(frame()));
+    }
+
+    private Frame frame() throws IOException {
+        return Frame.encode(new BinaryMessageCodec(), new Message("hello", "user"));
+    }
+
+    /*нумерованное сообщение комнаты, которое можно отбросить*/
+    private Frame roomFrame(long sequence) throws IOException {
+        Message message = new Message("hello", "user");
+        message.setSequence(sequence);
+        return Frame.encode(new BinaryMessageCodec(), message);
+    }
+}
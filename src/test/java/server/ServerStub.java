@@ -14,14 +14,14 @@ import java.util.Map;
 
 @SuppressWarnings("ALL")
 public class ServerStub extends Server{
-    private ServerToClientThread serverToClientThread;
+    private ClientConnection serverToClientThread;
     private BufferedReader keyBoard;
-    private Map<String, ServerToClientThread> users;
+    private Map<String, ClientConnection> users;
     private Map<String, Method> user_methods;
     private boolean useParentMethod;
 
     public ServerStub(ServerSocket serverSocket, String name,
-                      ServerToClientThread serverToClientThread,
+                      ClientConnection serverToClientThread,
                       BufferedReader keyBoard,
                       boolean useParentMethod) throws IOException {
         super(serverSocket, name);
@@ -31,7 +31,7 @@ public class ServerStub extends Server{
         try {
             field = Server.class.getDeclaredField("users");
             field.setAccessible(true);
-            this.users = (Map<String, ServerToClientThread>)field.get(this);
+            this.users = ((UserRegistry)field.get(this)).asMap();
 
             field = Server.class.getDeclaredField("user_methods");
             field.setAccessible(true);
@@ -94,67 +94,67 @@ public class ServerStub extends Server{
 
 
     @Override
-    public void onStartSocket(ServerToClientThread userThread, Socket socket) {
+    public void onStartSocket(ClientConnection userThread, Socket socket) {
 
     }
 
 
     @Override
-    public void onReceiveMessage(ServerToClientThread userThread, Socket socket, Message receivedMessage) throws IOException {
+    public void onReceiveMessage(ClientConnection userThread, Socket socket, Message receivedMessage) throws IOException {
         if (receivedMessage.getCommand().equals("RUN_PARENT_METHOD")){
             super.onReceiveMessage(userThread,socket,receivedMessage);
         }
     }
 
     @Override
-    public void onStopSocket(ServerToClientThread userThread, Socket socket) {
+    public void onStopSocket(ClientConnection userThread, Socket socket) {
         if (useParentMethod){
             super.onStopSocket(userThread, socket);
         }
     }
 
     @Override
-    public void onException(ServerToClientThread userThread, Socket socket, Exception e) {
+    public void onException(ClientConnection userThread, Socket socket, Exception e) {
 
     }
 
     @Override
-    public void sendBroadcastMessage(ServerToClientThread fromUser, Message message) throws IOException {
+    public void sendBroadcastMessage(ClientConnection fromUser, Message message) throws IOException {
         System.out.println("Broadcast message was send");
     }
 
     @Override
-    public void sendLastMessages(ServerToClientThread user) throws IOException {
+    public void sendLastMessages(ClientConnection user) throws IOException {
 
     }
 
     @Override
-    public void addLog(ServerToClientThread userThread, String logMessage) {
+    public void addLog(ClientConnection userThread, String logMessage) {
 //        System.out.println(logMessage);
     }
 
     @Override
-    public void getOnlineUsers(ServerToClientThread userTo) throws IOException {
+    public void getOnlineUsers(ClientConnection userTo) throws IOException {
 
     }
 
     @Override
-    public void changeLogin(ServerToClientThread userTo) throws IOException {
+    public void changeLogin(ClientConnection userTo) throws IOException {
 
     }
 
     @Override
-    public boolean sendDirectUserMessage(ServerToClientThread userFrom) throws IOException {
+    public boolean sendDirectUserMessage(ClientConnection userFrom) throws IOException {
         return true;
     }
 
     @Override
-    public void quit(ServerToClientThread userTo) throws IOException {
+    public void quit(ClientConnection userTo) throws IOException {
 
     }
 
     @Override
-    public String help(ServerToClientThread userTo) throws IOException {
+    public String help(ClientConnection userTo) throws IOException {
         System.out.println("help invoked");
         return null;
     }
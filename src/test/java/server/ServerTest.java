@@ -1,8 +1,10 @@
 package server;
 
+import client.PresenceRoster;
 import org.junit.After;
 import org.junit.Before;
 import org.junit.Test;
+import settings.FrameCompression;
 import settings.Message;
 import settings.ServerSettings;
 import settings.UserCommand;
@@ -14,9 +16,14 @@ import java.net.ServerSocket;
 import java.net.Socket;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.CountDownLatch;
 
+import static org.hamcrest.Matchers.contains;
+import static org.hamcrest.Matchers.hasItem;
+import static org.hamcrest.Matchers.hasItems;
 import static org.hamcrest.Matchers.is;
 import static org.hamcrest.Matchers.nullValue;
+import static org.hamcrest.Matchers.startsWith;
 import static org.junit.Assert.*;
 import static org.mockito.Mockito.*;
 
@@ -52,17 +59,80 @@ public class ServerTest {
 
     @Test
     public void testSendLastMessages_Ok() throws Exception {
-        Field messagesField = Server.class.getDeclaredField("messages");
-        messagesField.setAccessible(true);
-        List<String> messages = (List<String>)messagesField.get(server);
-        messages.add("user1");
-        messages.add("user2");
-        messages.add("user3");
-        doNothing().when(userThreadMock).sendMessage(any(Message.class));
+        MessageHistory history = server.getRoom(ServerSettings.DEFAULT_ROOM).getHistory();
+        history.append("user1");
+        history.append("user2");
+        history.append("user3");
+        doNothing().when(userThreadMock).sendMessage(any(Message.class), anyInt());
 
         server.sendLastMessages(userThreadMock);
 
-        verify(userThreadMock, times(1)).sendMessage(any(Message.class));
+        //история идет в полосе рассылок и не задерживает ответы на команды
+        verify(userThreadMock, times(1)).sendMessage(any(Message.class), eq(OutboundQueue.BULK));
+    }
+
+    @Test
+    public void testSendLastMessages_OnlyGap() throws Exception {
+        ServerToClientThread user = loggedUser("user");
+        MessageHistory history = server.getRoom(ServerSettings.DEFAULT_ROOM).getHistory();
+        for (int i = 1; i <= 5; i++) {
+            history.append("m" + i);
+        }
+
+        server.sendLastMessages(user, 3);
+
+        Message message = takeMessage(user);
+        assertThat(message.getMessage(), is("m4\nm5\n"));
+        assertThat(message.getSequence(), is(5L));
+    }
+
+    @Test
+    public void testSendLastMessages_NothingMissed() throws Exception {
+        ServerToClientThread user = loggedUser("user");
+        server.getRoom(ServerSettings.DEFAULT_ROOM).getHistory().append("m1");
+
+        server.sendLastMessages(user, 1);
+
+        assertThat(user.getOutboundQueueSize(), is(0));
+    }
+
+    @Test
+    public void testSendLastMessages_GapEvictedSendsSnapshot() throws Exception {
+        ServerToClientThread user = loggedUser("user");
+        MessageHistory history = server.getRoom(ServerSettings.DEFAULT_ROOM).getHistory();
+        for (int i = 1; i <= ServerSettings.MESSAGES_SIZE + 10; i++) {
+            history.append("m" + i);
+        }
+
+        server.sendLastMessages(user, 2);
+
+        Message message = takeMessage(user);
+        assertThat(message.getMessage().split("\n").length, is(ServerSettings.MESSAGES_SIZE));
+        assertThat(message.getSequence(), is((long) ServerSettings.MESSAGES_SIZE + 10));
+    }
+
+    @Test
+    public void testBroadcast_AssignsRoomSequence() throws Exception {
+        ServerToClientThread sender = loggedUser("sender");
+        ServerToClientThread reader = loggedUser("reader");
+
+        server.sendBroadcastMessage(sender, new Message("first", "sender"));
+        server.sendBroadcastMessage(sender, new Message("second", "sender"));
+
+        assertThat(takeMessage(reader).getSequence(), is(1L));
+        assertThat(takeMessage(reader).getSequence(), is(2L));
+    }
+
+    @Test
+    public void testBroadcast_DoesNotChangeCallerMessage() throws Exception {
+        ServerToClientThread sender = loggedUser("sender");
+        ServerToClientThread reader = loggedUser("reader");
+        Message message = new Message("first", "sender");
+
+        server.sendBroadcastMessage(sender, message);
+
+        assertThat(message.getSequence(), is(0L));
+        assertThat(takeMessage(reader).getSequence(), is(1L));
     }
 
     @Test
@@ -77,39 +147,143 @@ public class ServerTest {
     @Test
     public void testBroadcast_ToTwoUsersFromList() throws Exception{
         Message message = new Message("hello", "user1", "");
-        Map<String, ServerToClientThread> users = prepareUsers();
-        users.put("user1", userThreadMock);
-        users.put("user2", userThreadMock);
-        users.put("user3", userThreadMock);
-        doNothing().when(userThreadMock).sendMessage(any(Message.class));
+        Room room = server.getRoom(ServerSettings.DEFAULT_ROOM);
+        room.join("user1", userThreadMock);
+        room.join("user2", userThreadMock);
+        room.join("user3", userThreadMock);
+        when(userThreadMock.sendFrame(any(Frame.class))).thenReturn(true);
         when(userThreadMock.getUser_name()).thenReturn("user1");
 
         server.sendBroadcastMessage(userThreadMock, message);
-        verify(userThreadMock, times(2)).sendMessage(any(Message.class));
+        verify(userThreadMock, times(2)).sendFrame(any(Frame.class));
+        verify(userThreadMock, times(0)).sendMessage(any(Message.class));
     }
 
     @Test
     public void testBroadcast_ToZeroUsers() throws Exception{
         Message message = new Message("hello", "user1", "");
-        Map<String, ServerToClientThread> users = prepareUsers();
-        users.put("user1", userThreadMock);
-        doNothing().when(userThreadMock).sendMessage(any(Message.class));
+        Room room = server.getRoom(ServerSettings.DEFAULT_ROOM);
+        room.join("user1", userThreadMock);
+        when(userThreadMock.sendFrame(any(Frame.class))).thenReturn(true);
         when(userThreadMock.getUser_name()).thenReturn("user1");
 
         server.sendBroadcastMessage(userThreadMock, message);
-        verify(userThreadMock, times(0)).sendMessage(any(Message.class));
+        verify(userThreadMock, times(0)).sendFrame(any(Frame.class));
     }
 
-    @Test(expected = IOException.class)
-    public void testBroadcast_Exception() throws Exception{
+    @Test
+    public void testBroadcast_ExceptionDoesNotStopBroadcast() throws Exception{
         Message message = new Message("hello", "user1", "");
-        Map<String, ServerToClientThread> users = prepareUsers();
-        users.put("user1", userThreadMock);
-        users.put("user2", userThreadMock);
-        doThrow(IOException.class).when(userThreadMock).sendMessage(any(Message.class));
+        Room room = server.getRoom(ServerSettings.DEFAULT_ROOM);
+        room.join("user1", userThreadMock);
+        room.join("user2", userThreadMock);
+        ServerToClientThread user3 = loggedUser("user3");
+        doThrow(IOException.class).when(userThreadMock).sendFrame(any(Frame.class));
         when(userThreadMock.getUser_name()).thenReturn("user1");
 
         server.sendBroadcastMessage(userThreadMock, message);
+
+        assertThat(user3.getOutboundQueueSize(), is(1));
+        assertThat(server.getMetrics().report(), hasItems("broadcast.dropped = 1"));
+    }
+
+    @Test
+    public void testSlowConsumer_Summary() throws Exception{
+        ServerToClientThread sender = loggedUser("sender");
+        ServerToClientThread slow = loggedUser("slow");
+        slow.setSlowConsumerPolicy(ServerSettings.SLOW_CONSUMER_SUMMARY);
+        slow.sendMessage(new Message("control", null));
+        //ответ клиенту идет в отдельной полосе, очередь рассылок переполняет последнее сообщение
+        for (int i = 0; i <= ServerSettings.OUTBOUND_QUEUE_SIZE; i++) {
+            server.sendBroadcastMessage(sender, new Message("m" + i, "sender", ""));
+        }
+
+        assertThat(slow.getOutboundQueueSize(), is(2));
+        assertThat(takeMessage(slow).getMessage(), is("control"));
+        assertThat(takeMessage(slow).getMessage(), is((ServerSettings.OUTBOUND_QUEUE_SIZE + 1) + " MESSAGES SKIPPED: YOUR CONNECTION IS TOO SLOW."));
+    }
+
+    @Test
+    public void testSlowConsumer_DropNewestKeepsJoinConfirmation() throws Exception{
+        ServerToClientThread sender = connectedUser("sender");
+        ServerToClientThread slow = connectedUser("slow");
+        slow.setSlowConsumerPolicy(ServerSettings.SLOW_CONSUMER_DROP_NEWEST);
+        for (int i = 0; i <= ServerSettings.OUTBOUND_QUEUE_SIZE; i++) {
+            server.sendBroadcastMessage(sender, new Message("m" + i, "sender", ""));
+        }
+
+        slow.onMessage(new Message(ServerSettings.JOIN + " team", "slow"));
+
+        assertFalse(slow.outbound.isClosed());
+        Message join = null;
+        while (slow.outbound.size() > 0) {
+            Message message = takeMessage(slow);
+            if (ServerSettings.JOIN.equals(message.getCommand()))
+                join = message;
+        }
+        assertThat(join.getMessage(), is("YOU JOINED THE ROOM 'team'."));
+    }
+
+    @Test
+    public void testCommandReplyOvertakesQueuedBroadcast() throws Exception {
+        ServerToClientThread sender = connectedUser("sender");
+        ServerToClientThread reader = connectedUser("reader");
+        for (int i = 0; i < 10; i++) {
+            server.sendBroadcastMessage(sender, new Message("m" + i, "sender", ""));
+        }
+
+        reader.onMessage(new Message(ServerSettings.USERS, "reader"));
+
+        assertThat(takeMessage(reader).getMessage(), startsWith("ONLINE USERS:"));
+        assertThat(takeMessage(reader).getMessage(), is("m0"));
+        assertThat(server.getMetrics().report(), hasItem(startsWith("outbound.wait.control: count ")));
+    }
+
+    @Test
+    public void testSlowConsumer_Disconnect() throws Exception{
+        ServerToClientThread sender = loggedUser("sender");
+        ServerToClientThread slow = loggedUser("slow");
+        ServerToClientThread fast = loggedUser("fast");
+        slow.setSlowConsumerPolicy(ServerSettings.SLOW_CONSUMER_DISCONNECT);
+        for (int i = 0; i <= ServerSettings.OUTBOUND_QUEUE_SIZE; i++) {
+            server.sendBroadcastMessage(sender, new Message("m" + i, "sender", ""));
+            fast.outbound.poll().release();
+        }
+
+        assertTrue(slow.outbound.isClosed());
+        server.sendBroadcastMessage(sender, new Message("after", "sender", ""));
+        assertThat(takeMessage(fast).getMessage(), is("after"));
+    }
+
+    @Test
+    public void testMoveToRoom_BroadcastOnlyToRoomMembers() throws Exception{
+        ServerToClientThread sender = loggedUser("sender");
+        ServerToClientThread sameRoom = loggedUser("same");
+        ServerToClientThread otherRoom = loggedUser("other");
+        server.moveToRoom(otherRoom, "team");
+
+        server.sendBroadcastMessage(sender, new Message("hello", "sender", ""));
+
+        assertThat(sameRoom.getOutboundQueueSize(), is(1));
+        assertThat(otherRoom.getOutboundQueueSize(), is(0));
+        assertThat(server.getRoom("team").lastMessages().size(), is(0));
+        assertThat(server.getRoom(ServerSettings.DEFAULT_ROOM).lastMessages().size(), is(1));
+    }
+
+    @Test
+    public void testLeaveRoom_EmptyRoomRemoved() throws Exception{
+        ServerToClientThread user = loggedUser("user");
+        Room previous = server.moveToRoom(user, "team");
+
+        assertThat(previous.getName(), is(ServerSettings.DEFAULT_ROOM));
+        assertThat(server.getRoom("team").size(), is(1));
+
+        server.moveToRoom(user, ServerSettings.DEFAULT_ROOM);
+        assertThat(server.getRoom("team"), is(nullValue()));
+        assertThat(server.getRoom(ServerSettings.DEFAULT_ROOM).size(), is(1));
+
+        server.leaveRoom(user);
+        assertThat(server.getRoom(ServerSettings.DEFAULT_ROOM).size(), is(0));
     }
 
     @Test
@@ -117,7 +291,7 @@ public class ServerTest {
         Map<String, Method> user_methods = prepareUserMethods();
 
         Message message = new Message("/HELP message","user","");
-        Method helpMethod = Server.class.getDeclaredMethod("help", new Class[]{ServerToClientThread.class});
+        Method helpMethod = Server.class.getDeclaredMethod("help", new Class[]{ClientConnection.class});
         assertThat(server.getUserMethod(message), is(helpMethod));
     }
 
@@ -131,7 +305,7 @@ public class ServerTest {
 
     @Test
     public void testRemoveUser_Ok() throws Exception {
-        Map<String, ServerToClientThread> users = prepareUsers();
+        Map<String, ClientConnection> users = prepareUsers();
         users.put("user1", userThreadMock);
         users.put("user2", userThreadMock);
         users.put("user3", userThreadMock);
@@ -142,7 +316,7 @@ public class ServerTest {
 
     @Test
     public void testRemoveUser_NoSuchUser() throws Exception{
-        Map<String, ServerToClientThread> users = prepareUsers();
+        Map<String, ClientConnection> users = prepareUsers();
         users.put("user1", userThreadMock);
         users.put("user2", userThreadMock);
 
@@ -155,7 +329,7 @@ public class ServerTest {
         Message message = new Message("","user3", ServerSettings.LOGIN_CHECK);
 
         ServerStub server = new ServerStub(serverSocketMock, "TestServer", userThreadMock, keyboardMock, false);
-        Map<String, ServerToClientThread> users = prepareUsersStub(server);
+        Map<String, ClientConnection> users = prepareUsersStub(server);
         doNothing().when(userThreadMock).sendMessage(any(Message.class));
         boolean isLogged = server.onLoggedClient(userThreadMock, socketMock, message);
 
@@ -163,11 +337,29 @@ public class ServerTest {
         assertTrue(isLogged);
     }
 
+    @Test
+    public void testOnLoggedClient_Compression() throws Exception {
+        MessageHistory history = server.getRoom(ServerSettings.DEFAULT_ROOM).getHistory();
+        for (int i = 0; i < 50; i++) {
+            history.append("user" + i + ": hello everybody, how are you?");
+        }
+        ServerToClientThread user = new ServerToClientThread(null, server, false);
+        Message message = new Message(FrameCompression.CAPABILITY, "user", ServerSettings.LOGIN_CHECK);
+
+        assertTrue(server.onLoggedClient(user, socketMock, message));
+
+        assertThat(takeMessage(user).getMessage(), is(ServerSettings.DEFAULT_ROOM + " " + FrameCompression.CAPABILITY));
+        assertTrue(user.isCompression());
+        Frame frame = user.outbound.poll();
+        assertThat(frame.buffer().getInt() & FrameCompression.COMPRESSED_FLAG, is(FrameCompression.COMPRESSED_FLAG));
+        frame.release();
+    }
+
     @Test
     public void testOnLoggedClient_LoginIsNotFree() throws Exception {
         Message message = new Message("","user1", ServerSettings.LOGIN_CHECK);
         ServerStub server = new ServerStub(serverSocketMock, "TestServer", userThreadMock, keyboardMock, false);
-        Map<String, ServerToClientThread> users = prepareUsersStub(server);
+        Map<String, ClientConnection> users = prepareUsersStub(server);
         doNothing().when(userThreadMock).sendMessage(any(Message.class));
         boolean isLogged = server.onLoggedClient(userThreadMock, socketMock, message);
 
@@ -202,7 +394,7 @@ public class ServerTest {
     public void testOnStopSocket_UserRemoved() throws Exception{
         when(userThreadMock.getUser_name()).thenReturn("user1").thenReturn("user1");
         ServerStub server = new ServerStub(serverSocketMock, "TestServer", userThreadMock, keyboardMock, true);
-        Map<String, ServerToClientThread> users = prepareUsersStub(server);
+        Map<String, ClientConnection> users = prepareUsersStub(server);
 
         assertThat(users.size(), is(2));
         server.onStopSocket(userThreadMock, socketMock);
@@ -211,7 +403,7 @@ public class ServerTest {
 
     @Test
     public void testOnlineUsers() throws Exception{
-        Map<String, ServerToClientThread> users = prepareUsers();
+        Map<String, ClientConnection> users = prepareUsers();
         users.put("admin", userThreadMock);
         users.put("user", userThreadMock);
         doNothing().when(userThreadMock).sendMessage(any(Message.class));
@@ -220,10 +412,121 @@ public class ServerTest {
         verify(userThreadMock, times(1)).sendMessage(any(Message.class));
     }
 
+    @Test
+    public void testMetrics_CommandsAndBroadcasts() throws Exception {
+        ServerToClientThread user = loggedUser("user");
+        loggedUser("admin");
+
+        server.onReceiveMessage(user, socketMock, new Message(ServerSettings.USERS, "user"));
+        server.onReceiveMessage(user, socketMock, new Message("hello", "user"));
+
+        Metrics metrics = server.getMetrics();
+        assertThat(metrics.counter("messages.in").get(), is(2L));
+        assertThat(metrics.timer("command." + ServerSettings.USERS).getCount(), is(1L));
+        assertThat(metrics.timer("broadcast.fanout").getCount(), is(1L));
+        assertThat(metrics.timer("room.lockWait").getCount(), is(1L));
+        assertThat(metrics.report(), hasItems("users.online = 2", "history.size = 1"));
+    }
+
+    @Test
+    public void testPresence_SnapshotAndDeltas() throws Exception {
+        ServerToClientThread alice = connectedUser("alice");
+        ServerToClientThread bob = connectedUser("bob");
+        drain(alice);
+
+        alice.onMessage(new Message(ServerSettings.PRESENCE, "alice"));
+        Message snapshot = takePresence(alice);
+        assertThat(snapshot.getCommand(), is(ServerSettings.PRESENCE_SNAPSHOT));
+        assertThat(snapshot.getMessage(), is("2\nalice\nbob"));
+
+        ServerToClientThread carol = connectedUser("carol");
+        carol.onMessage(new Message(ServerSettings.RENAME + " carol2", "carol"));
+        server.removeUser(bob);
+
+        PresenceRoster roster = new PresenceRoster();
+        roster.apply(snapshot);
+        Message message;
+        while ((message = takePresence(alice)) != null) {
+            roster.apply(message);
+        }
+        assertThat(roster.getVersion(), is(5L));
+        assertTrue(roster.isSynced());
+        assertThat(roster.getUsers(), contains("alice", "carol2"));
+    }
+
+    @Test
+    public void testPresence_Resync() throws Exception {
+        ServerToClientThread alice = connectedUser("alice");
+        connectedUser("bob");
+        connectedUser("carol");
+        drain(alice);
+
+        alice.onMessage(new Message(ServerSettings.PRESENCE + " 1", "alice"));
+        Message delta = takePresence(alice);
+        assertThat(delta.getCommand(), is(ServerSettings.PRESENCE_DELTA));
+        assertThat(delta.getMessage(), is("2 +bob\n3 +carol"));
+
+        alice.onMessage(new Message(ServerSettings.PRESENCE + " " + ServerSettings.PRESENCE_OFF, "alice"));
+        connectedUser("dave");
+        assertThat(takePresence(alice), is(nullValue()));
+    }
+
+    @Test
+    public void testPresence_ConcurrentEventsArriveInVersionOrder() throws Exception {
+        ServerToClientThread alice = connectedUser("alice");
+        drain(alice);
+        alice.onMessage(new Message(ServerSettings.PRESENCE, "alice"));
+        PresenceRoster roster = new PresenceRoster();
+        roster.apply(takePresence(alice));
+
+        final int threads = 4;
+        final int perThread = 100;
+        final CountDownLatch done = new CountDownLatch(threads);
+        for (int t = 0; t < threads; t++) {
+            final int thread = t;
+            new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    for (int i = 0; i < perThread; i++) {
+                        server.loginCheck(new ServerToClientThread(null, server, false), "u" + thread + "-" + i);
+                    }
+                    done.countDown();
+                }
+            }).start();
+        }
+        done.await();
+
+        //события идут без пропусков и по порядку версий, иначе roster потерял бы синхронизацию
+        Message message;
+        while ((message = takePresence(alice)) != null) {
+            roster.apply(message);
+            assertTrue(roster.isSynced());
+        }
+        assertThat(roster.getVersion(), is(1L + threads * perThread));
+        assertThat(roster.getUsers().size(), is(1 + threads * perThread));
+    }
+
+    @Test
+    public void testLoginCheck_RejectsLineBreakAndTab() throws Exception {
+        assertFalse(server.loginCheck(new ServerToClientThread(null, server, false), "bad\nlogin"));
+        assertFalse(server.loginCheck(new ServerToClientThread(null, server, false), "bad\tlogin"));
+        assertThat(server.getRoom(ServerSettings.DEFAULT_ROOM).size(), is(0));
+    }
+
+    @Test
+    public void testChangeLogin_RejectsTab() throws Exception {
+        ServerToClientThread carol = connectedUser("carol");
+
+        carol.onMessage(new Message(ServerSettings.RENAME + " carol\tcarol2", "carol"));
+
+        assertThat(carol.getUser_name(), is("carol"));
+        assertThat(takeMessage(carol).getMessage(), is("LOGIN MUST NOT CONTAIN LINE BREAKS OR TABS."));
+    }
+
     @Test
     public void testChangeLogin_LoginIsFree() throws Exception{
         Message message = new Message(ServerSettings.RENAME + " newUser", "user", "");
-        Map<String, ServerToClientThread> users = prepareChangeLogin(message);
+        Map<String, ClientConnection> users = prepareChangeLogin(message);
 
         server.changeLogin(userThreadMock);
         assertThat(users.containsKey("user"), is(false));
@@ -233,7 +536,7 @@ public class ServerTest {
     @Test
     public void testChangeLogin_LoginIsBusy() throws Exception{
         Message message = new Message(ServerSettings.RENAME + " admin", "user", "");
-        Map<String, ServerToClientThread> users = prepareChangeLogin(message);
+        Map<String, ClientConnection> users = prepareChangeLogin(message);
 
         server.changeLogin(userThreadMock);
         assertThat(users.containsKey("user"), is(true));
@@ -284,7 +587,7 @@ public class ServerTest {
     }
 
     private void prepareDirectSend(Message message) throws Exception {
-        Map<String, ServerToClientThread> users = prepareUsers();
+        Map<String, ClientConnection> users = prepareUsers();
         users.put("admin", userThreadMock);
         users.put("user", userThreadMock);
         users.put("geek", userThreadMock);
@@ -293,8 +596,8 @@ public class ServerTest {
     }
 
 
-    private Map<String, ServerToClientThread> prepareChangeLogin(Message message) throws Exception {
-        Map<String, ServerToClientThread> users = prepareUsers();
+    private Map<String, ClientConnection> prepareChangeLogin(Message message) throws Exception {
+        Map<String, ClientConnection> users = prepareUsers();
         users.put("admin", userThreadMock);
         users.put("user", userThreadMock);
         users.put("geek", userThreadMock);
@@ -305,10 +608,10 @@ public class ServerTest {
         return users;
     }
 
-    private Map<String, ServerToClientThread> prepareUsersStub(ServerStub server) throws Exception{
+    private Map<String, ClientConnection> prepareUsersStub(ServerStub server) throws Exception{
         Field field = ServerStub.class.getDeclaredField("users");
         field.setAccessible(true);
-        Map<String, ServerToClientThread> users = (Map<String, ServerToClientThread>)field.get(server);
+        Map<String, ClientConnection> users = (Map<String, ClientConnection>)field.get(server);
         users.put("user1", userThreadMock);
         users.put("user2", userThreadMock);
         return users;
@@ -327,14 +630,58 @@ public class ServerTest {
         return user_methods;
     }
 
-    private Map<String, ServerToClientThread> prepareUsers() throws  Exception{
+    private Map<String, ClientConnection> prepareUsers() throws  Exception{
         Field field = Server.class.getDeclaredField("users");
         field.setAccessible(true);
-        Map<String, ServerToClientThread> users = (Map<String, ServerToClientThread>)field.get(server);
+        Map<String, ClientConnection> users = ((UserRegistry)field.get(server)).asMap();
 
         return users;
     }
 
+    private Message takeMessage(ServerToClientThread user) throws Exception {
+        Frame frame = user.outbound.poll();
+        try {
+            byte[] bytes = new byte[frame.length()];
+            frame.buffer().get(bytes);
+            return user.codec.decode(bytes, 4, bytes.length - 4);
+        } finally {
+            frame.release();
+        }
+    }
+
+    /*следующее сообщение подписки на присутствие; уведомления о входе, которые могут прийти в любой момент, пропускаются*/
+    private Message takePresence(ServerToClientThread user) throws Exception {
+        while (user.outbound.size() > 0) {
+            Message message = takeMessage(user);
+            if (message.getCommand() != null && message.getCommand().startsWith("<presence:"))
+                return message;
+        }
+        return null;
+    }
+
+    /*пользователь входит так же, как настоящий клиент: через сообщение LOGIN_CHECK; ответы на вход отбрасываются*/
+    private ServerToClientThread connectedUser(String login) throws Exception {
+        ServerToClientThread user = new ServerToClientThread(null, server, false);
+        user.onMessage(new Message("", login, ServerSettings.LOGIN_CHECK));
+        drain(user);
+        return user;
+    }
+
+    private static void drain(ServerToClientThread user) {
+        Frame frame;
+        while ((frame = user.outbound.poll()) != null) {
+            frame.release();
+        }
+    }
+
+    private ServerToClientThread loggedUser(String login){
+        ServerToClientThread user = new ServerToClientThread(null, server, false);
+        user.setUser_name(login);
+        server.loginCheck(user, login);
+        server.moveToRoom(user, ServerSettings.DEFAULT_ROOM);
+        return user;
+    }
+
     @After
     public void stop(){
         System.setOut(null);
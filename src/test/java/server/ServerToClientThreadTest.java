@@ -0,0 +1,62 @@
+package server;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import settings.ClientListener;
+
+import java.io.OutputStream;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+
+import static org.mockito.Mockito.*;
+
+
+public class ServerToClientThreadTest {
+    private ServerSocket serverSocket;
+    private Socket client;
+    private volatile boolean stopped;
+
+    @Before
+    public void init() throws Exception {
+        serverSocket = new ServerSocket(0);
+        client = new Socket("127.0.0.1", serverSocket.getLocalPort());
+    }
+
+    @Test
+    public void testSlowFrameIsClosedByDeadline() throws Exception {
+        ClientListener listener = mock(ClientListener.class);
+        ServerToClientThread connection = new ServerToClientThread(serverSocket.accept(), listener, false);
+        connection.setFrameReadTimeoutMs(300);
+        new Thread(connection).start();
+
+        //клиент присылает начатый кадр по байту: каждое чтение укладывается в таймаут, весь кадр - нет
+        final OutputStream out = client.getOutputStream();
+        out.write(ByteBuffer.allocate(4).putInt(100).array());
+        Thread trickle = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    for (int i = 0; i < 100 && !stopped; i++) {
+                        out.write('x');
+                        Thread.sleep(50);
+                    }
+                } catch (Exception ignored) {
+                    //сервер закрыл соединение
+                }
+            }
+        });
+        trickle.start();
+
+        //по байту кадр шел бы 5 секунд
+        verify(listener, timeout(3000)).onStopSocket(eq(connection), any(Socket.class));
+    }
+
+    @After
+    public void stop() throws Exception {
+        stopped = true;
+        client.close();
+        serverSocket.close();
+    }
+}
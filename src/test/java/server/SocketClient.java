@@ -0,0 +1,72 @@
+package server;
+
+
+import settings.Message;
+import settings.MessageCodec;
+import settings.MessageCodecs;
+import settings.ServerSettings;
+
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+
+/*
+* Клиент для проверки транспортов сервера на настоящих сокетах: пишет и читает кадры
+* (4 байта длины и сообщение) так же, как client.Client, но без собственных потоков
+* */
+class SocketClient {
+    private final Socket socket;
+    private final MessageCodec codec;
+    private final DataInputStream in;
+    private final OutputStream out;
+
+    SocketClient(int port) throws IOException {
+        this(port, 0);
+    }
+
+    /*receiveBufferSize > 0 - маленький буфер приема, чтобы данные, которые клиент не читает, оставались у сервера*/
+    SocketClient(int port, int receiveBufferSize) throws IOException {
+        socket = new Socket();
+        if (receiveBufferSize > 0)
+            socket.setReceiveBufferSize(receiveBufferSize);
+        socket.connect(new InetSocketAddress(ServerSettings.INET_ADDRESS, port), 5000);
+        socket.setSoTimeout(5000);
+        codec = MessageCodecs.newCodec();
+        in = new DataInputStream(socket.getInputStream());
+        out = socket.getOutputStream();
+    }
+
+    void send(Message message) throws IOException {
+        byte[] payload = codec.encode(message);
+        out.write(ByteBuffer.allocate(4 + payload.length).putInt(payload.length).put(payload).array());
+        out.flush();
+    }
+
+    Message read() throws IOException {
+        byte[] payload = new byte[in.readInt()];
+        in.readFully(payload);
+        return codec.decode(payload, 0, payload.length);
+    }
+
+    /*отправляет логин и возвращает ответ сервера на него*/
+    Message login(String login) throws IOException {
+        send(new Message("", login, ServerSettings.LOGIN_CHECK));
+        return read();
+    }
+
+    /*читает сообщения, пока не придет сообщение с указанным текстом; остальные (уведомления о входе) пропускаются*/
+    Message readUntil(String text) throws IOException {
+        Message message;
+        do {
+            message = read();
+        } while (!text.equals(message.getMessage()));
+        return message;
+    }
+
+    void close() throws IOException {
+        socket.close();
+    }
+}
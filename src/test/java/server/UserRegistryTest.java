@@ -0,0 +1,76 @@
+package server;
+
+import org.junit.Test;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.hamcrest.Matchers.*;
+import static org.junit.Assert.*;
+import static org.mockito.Mockito.mock;
+
+
+public class UserRegistryTest {
+    private UserRegistry registry = new UserRegistry();
+    private ServerToClientThread alice = mock(ServerToClientThread.class);
+    private ServerToClientThread bob = mock(ServerToClientThread.class);
+
+    @Test
+    public void testClaim_LoginIsBusy() throws Exception {
+        assertTrue(registry.claim("alice", alice));
+        assertFalse(registry.claim("alice", bob));
+        assertThat(registry.get("alice"), is(alice));
+    }
+
+    @Test
+    public void testRelease_OnlyByOwner() throws Exception {
+        registry.claim("alice", alice);
+
+        assertFalse(registry.release("alice", bob));
+        assertTrue(registry.contains("alice"));
+        assertTrue(registry.release("alice", alice));
+        assertFalse(registry.contains("alice"));
+    }
+
+    @Test
+    public void testRename() throws Exception {
+        registry.claim("alice", alice);
+        registry.claim("bob", bob);
+
+        assertFalse(registry.rename(alice, "alice", "bob"));
+        assertThat(registry.get("alice"), is(alice));
+
+        assertTrue(registry.rename(alice, "alice", "alice2"));
+        assertThat(registry.logins(), containsInAnyOrder("alice2", "bob"));
+        assertThat(registry.get("alice2"), is(alice));
+    }
+
+    @Test
+    public void testClaim_StormForOneLogin() throws Exception {
+        final int threads = 16;
+        final CountDownLatch start = new CountDownLatch(1);
+        final CountDownLatch done = new CountDownLatch(threads);
+        final AtomicInteger winners = new AtomicInteger();
+        for (int i = 0; i < threads; i++) {
+            final ServerToClientThread user = mock(ServerToClientThread.class);
+            new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        start.await();
+                        if (registry.claim("admin", user))
+                            winners.incrementAndGet();
+                    } catch (InterruptedException ignored) {
+                    } finally {
+                        done.countDown();
+                    }
+                }
+            }).start();
+        }
+        start.countDown();
+        done.await();
+
+        assertThat(winners.get(), is(1));
+        assertThat(registry.size(), is(1));
+    }
+}
@@ -0,0 +1,85 @@
+package server;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import settings.Message;
+import settings.ServerSettings;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.not;
+import static org.junit.Assert.*;
+
+
+public class VirtualTransportTest {
+    //поток, в котором соединение начало работу, по имени соединения
+    private final Map<String, String> threads = new ConcurrentHashMap<String, String>();
+    private final List<SocketClient> clients = new ArrayList<SocketClient>();
+    private Server server;
+    private int port;
+
+    @Before
+    public void init() throws Exception {
+        ServerSocket serverSocket = new ServerSocket(0, 50, InetAddress.getByName(ServerSettings.INET_ADDRESS));
+        port = serverSocket.getLocalPort();
+        server = new Server(serverSocket, "VirtualServer", null, ServerSettings.TRANSPORT_VIRTUAL) {
+            @Override
+            public void onStartSocket(ClientConnection userThread, Socket socket) {
+                super.onStartSocket(userThread, socket);
+                threads.put(userThread.getName(), Thread.currentThread().getName());
+            }
+        };
+        Thread listener = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                server.startSocketListener();
+            }
+        }, "virtual-test-listener");
+        listener.setDaemon(true);
+        listener.start();
+    }
+
+    @After
+    public void stop() throws IOException {
+        for (SocketClient client : clients) {
+            client.close();
+        }
+        server.stopServer();
+    }
+
+    @Test
+    public void testLoginAndBroadcast() throws Exception {
+        SocketClient alice = connect();
+        SocketClient bob = connect();
+
+        assertThat(alice.login("alice").getCommand(), is(ServerSettings.LOGIN_IS_FREE));
+        assertThat(bob.login("bob").getCommand(), is(ServerSettings.LOGIN_IS_FREE));
+        assertThat(connect().login("alice").getCommand(), is(ServerSettings.LOGIN_IS_NOT_FREE));
+
+        alice.send(new Message("hello", "alice"));
+        assertThat(bob.readUntil("alice: hello").getSequence(), is(1L));
+        bob.send(new Message("hi", "bob"));
+        assertThat(alice.readUntil("bob: hi").getSequence(), is(2L));
+
+        //соединения выполняются исполнителем, а не собственными потоками, названными по соединению
+        assertThat(threads.size(), is(3));
+        for (Map.Entry<String, String> e : threads.entrySet()) {
+            assertThat(e.getValue(), not(e.getKey()));
+        }
+    }
+
+    private SocketClient connect() throws IOException {
+        SocketClient client = new SocketClient(port);
+        clients.add(client);
+        return client;
+    }
+}
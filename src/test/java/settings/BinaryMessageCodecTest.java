@@ -0,0 +1,120 @@
+package settings;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.nullValue;
+import static org.junit.Assert.*;
+
+
+public class BinaryMessageCodecTest {
+    private BinaryMessageCodec codec = new BinaryMessageCodec();
+
+    @Test
+    public void testRoundTrip_AllFields() throws Exception {
+        Message message = roundTrip(new Message("hello", "user", ServerSettings.LOGIN_CHECK));
+
+        assertThat(message.getMessage(), is("hello"));
+        assertThat(message.getUser(), is("user"));
+        assertThat(message.getCommand(), is(ServerSettings.LOGIN_CHECK));
+    }
+
+    @Test
+    public void testRoundTrip_Sequence() throws Exception {
+        Message source = new Message("hello", "user");
+        source.setSequence(300L + Integer.MAX_VALUE);
+        Message message = roundTrip(source);
+
+        assertThat(message.getSequence(), is(300L + Integer.MAX_VALUE));
+        assertThat(message.getUser(), is("user"));
+        assertThat(roundTrip(new Message("hello", "user")).getSequence(), is(0L));
+    }
+
+    @Test
+    public void testRoundTrip_NullFields() throws Exception {
+        Message message = roundTrip(new Message());
+
+        assertThat(message.getMessage(), is(nullValue()));
+        assertThat(message.getUser(), is(nullValue()));
+        assertThat(message.getCommand(), is(nullValue()));
+    }
+
+    @Test
+    public void testRoundTrip_EmptyAndUnicode() throws Exception {
+        Message message = roundTrip(new Message("А воз и ныне там. №№№", "", ""));
+
+        assertThat(message.getMessage(), is("А воз и ныне там. №№№"));
+        assertThat(message.getUser(), is(""));
+        assertThat(message.getCommand(), is(""));
+    }
+
+    @Test
+    public void testRoundTrip_LongMessage() throws Exception {
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < 20000; i++) {
+            sb.append('ы');
+        }
+        Message message = roundTrip(new Message(sb.toString(), "user"));
+
+        assertThat(message.getMessage(), is(sb.toString()));
+    }
+
+    @Test
+    public void testEncode_Utf8LikeString() throws Exception {
+        //пара суррогатов кодируется четырьмя байтами, одиночный суррогат заменяется '?'
+        String text = "ы\uD83D\uDE00 \uD83D end";
+        byte[] bytes = codec.encode(new Message(text, null));
+        byte[] utf8 = text.getBytes(StandardCharsets.UTF_8);
+
+        assertThat(bytes.length, is(2 + utf8.length));
+        assertThat(Arrays.copyOfRange(bytes, 2, bytes.length), is(utf8));
+    }
+
+    @Test
+    public void testEncodeFrame() throws Exception {
+        Message source = new Message("А воз и ныне там.", "user");
+        source.setSequence(42);
+        BufferPool pool = new BufferPool(1024, 1);
+        byte[] frame = codec.encodeFrame(source, pool);
+        int size = ByteBuffer.wrap(frame).getInt();
+
+        assertThat(frame.length, is(BufferPool.MIN_SIZE));
+        assertThat(Arrays.copyOfRange(frame, 4, 4 + size), is(codec.encode(source)));
+        assertThat(codec.decode(frame, 4, size).getSequence(), is(42L));
+    }
+
+    @Test
+    public void testDecode_WithOffset() throws Exception {
+        byte[] bytes = codec.encode(new Message("hello", "user"));
+        byte[] frame = new byte[bytes.length + 10];
+        System.arraycopy(bytes, 0, frame, 7, bytes.length);
+
+        Message message = codec.decode(frame, 7, bytes.length);
+        assertThat(message.getMessage(), is("hello"));
+        assertThat(message.getUser(), is("user"));
+    }
+
+    @Test
+    public void testEncode_SmallerThanJavaSerialization() throws Exception {
+        Message message = new Message("hello", "user");
+
+        assertTrue(codec.encode(message).length < new ObjectSerialization().encode(message).length);
+    }
+
+    @Test(expected = IOException.class)
+    public void testDecode_TruncatedFrame() throws Exception {
+        byte[] bytes = codec.encode(new Message("hello", "user"));
+
+        codec.decode(bytes, 0, bytes.length - 2);
+    }
+
+    private Message roundTrip(Message message) throws IOException {
+        byte[] bytes = codec.encode(message);
+        return codec.decode(bytes, 0, bytes.length);
+    }
+}
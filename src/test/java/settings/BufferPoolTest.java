@@ -0,0 +1,53 @@
+package settings;
+
+import org.junit.Test;
+
+import static org.hamcrest.Matchers.*;
+import static org.junit.Assert.*;
+
+
+public class BufferPoolTest {
+    private BufferPool pool = new BufferPool(4096, 2);
+
+    @Test
+    public void testAcquire_SizeClasses() throws Exception {
+        assertThat(pool.acquire(0).length, is(BufferPool.MIN_SIZE));
+        assertThat(pool.acquire(256).length, is(256));
+        assertThat(pool.acquire(257).length, is(512));
+        assertThat(pool.acquire(4096).length, is(4096));
+        assertThat(pool.getMaxSize(), is(4096));
+    }
+
+    @Test
+    public void testRelease_BufferIsReused() throws Exception {
+        byte[] buffer = pool.acquire(1000);
+        pool.release(buffer);
+
+        assertThat(pool.getPooledBytes(), is(1024L));
+        assertThat(pool.acquire(600), sameInstance(buffer));
+        assertThat(pool.getHits(), is(1L));
+        assertThat(pool.getMisses(), is(1L));
+        assertThat(pool.getPooledBytes(), is(0L));
+    }
+
+    @Test
+    public void testRelease_PoolIsBounded() throws Exception {
+        pool.release(new byte[512]);
+        pool.release(new byte[512]);
+        pool.release(new byte[512]);
+
+        assertThat(pool.getPooledBytes(), is(1024L));
+    }
+
+    @Test
+    public void testForeignAndOversizedBuffersAreNotPooled() throws Exception {
+        byte[] big = pool.acquire(5000);
+        assertThat(big.length, is(5000));
+
+        pool.release(big);
+        pool.release(new byte[300]);
+        pool.release(new byte[16]);
+
+        assertThat(pool.getPooledBytes(), is(0L));
+    }
+}
@@ -0,0 +1,83 @@
+package settings;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.Inflater;
+
+import static org.hamcrest.Matchers.*;
+import static org.junit.Assert.*;
+
+
+public class FrameCompressionTest {
+    private BinaryMessageCodec codec = new BinaryMessageCodec();
+
+    @Test
+    public void testRoundTrip() throws Exception {
+        StringBuilder text = new StringBuilder();
+        for (int i = 0; i < 20; i++) {
+            text.append("user").append(i).append(" JOIN THE CHAT. hello, how are you?\n");
+        }
+        byte[] data = codec.encode(new Message(text.toString(), "user"));
+
+        byte[] compressed = FrameCompression.compress(data, 0, data.length);
+        assertThat(compressed, is(notNullValue()));
+        assertThat(compressed.length, lessThan(data.length / 2));
+
+        byte[] restored = FrameCompression.decompress(new Inflater(), compressed, 0, compressed.length);
+        assertArrayEquals(data, restored);
+        assertThat(codec.decode(restored, 0, restored.length).getMessage(), is(text.toString()));
+    }
+
+    @Test
+    public void testIncompressibleData() throws Exception {
+        byte[] data = new byte[] {1, 2, 3};
+
+        assertThat(FrameCompression.compress(data, 0, data.length), is(nullValue()));
+    }
+
+    @Test
+    public void testInflaterIsReused() throws Exception {
+        Inflater inflater = new Inflater();
+        for (int i = 0; i < 3; i++) {
+            byte[] data = ("message " + i + " message message message message message message").getBytes("UTF-8");
+            byte[] compressed = FrameCompression.compress(data, 0, data.length);
+
+            assertArrayEquals(data, FrameCompression.decompress(inflater, compressed, 0, compressed.length));
+        }
+    }
+
+    @Test
+    public void testDeflatersArePooledAcrossThreads() throws Exception {
+        final byte[] data = "message message message message message message message".getBytes("UTF-8");
+        final AtomicInteger compressed = new AtomicInteger();
+        //каждое сжатие в своем потоке, как у соединений в режиме VIRTUAL
+        Thread[] threads = new Thread[ServerSettings.DEFLATER_POOL_SIZE * 4];
+        for (int i = 0; i < threads.length; i++) {
+            threads[i] = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    if (FrameCompression.compress(data, 0, data.length) != null)
+                        compressed.incrementAndGet();
+                }
+            });
+            threads[i].start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+
+        assertThat(compressed.get(), is(threads.length));
+        assertThat(FrameCompression.pooledDeflaters(), lessThanOrEqualTo(Math.max(1, ServerSettings.DEFLATER_POOL_SIZE)));
+        assertThat(FrameCompression.pooledDeflaters(), greaterThan(0));
+    }
+
+    @Test(expected = IOException.class)
+    public void testTruncatedFrame() throws Exception {
+        byte[] data = "message message message message message message message".getBytes("UTF-8");
+        byte[] compressed = FrameCompression.compress(data, 0, data.length);
+
+        FrameCompression.decompress(new Inflater(), compressed, 0, compressed.length - 3);
+    }
+}
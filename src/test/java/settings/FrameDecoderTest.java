@@ -0,0 +1,141 @@
+package settings;
+
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.ReadableByteChannel;
+
+import static org.hamcrest.Matchers.is;
+import static org.junit.Assert.*;
+
+
+public class FrameDecoderTest {
+    private BufferPool pool = new BufferPool(64 * 1024, 4);
+    private BinaryMessageCodec codec = new BinaryMessageCodec();
+
+    @Test
+    public void testPartialFrames() throws Exception {
+        //поток отдает по одному байту, как медленный клиент
+        InputStream in = new ByteArrayInputStream(frames("first", "second")) {
+            @Override
+            public synchronized int read(byte[] b, int off, int len) {
+                return super.read(b, off, Math.min(len, 1));
+            }
+        };
+        FrameDecoder decoder = new FrameDecoder(1024, false, pool);
+
+        assertThat(readMessage(decoder, in), is("first"));
+        assertThat(readMessage(decoder, in), is("second"));
+        assertThat(decoder.readFrom(in), is(-1));
+    }
+
+    @Test
+    public void testSeveralFramesInOneRead() throws Exception {
+        InputStream in = new ByteArrayInputStream(frames("a", "b", "c"));
+        FrameDecoder decoder = new FrameDecoder(1024, false, pool);
+
+        decoder.readFrom(in);
+
+        for (String text : new String[]{"a", "b", "c"}) {
+            assertTrue(decoder.next());
+            assertThat(decode(decoder), is(text));
+        }
+        assertFalse(decoder.next());
+        assertFalse(decoder.hasPartialFrame());
+    }
+
+    @Test
+    public void testOversizedFrameIsRejectedWithoutAllocation() throws Exception {
+        byte[] header = ByteBuffer.allocate(4).putInt(Integer.MAX_VALUE - 4).array();
+        FrameDecoder decoder = new FrameDecoder(1024, false, pool);
+        decoder.readFrom(new ByteArrayInputStream(header));
+
+        try {
+            decoder.next();
+            fail("Oversized frame is accepted");
+        } catch (IOException e) {
+            assertThat(decoder.array().length, is(FrameDecoder.INITIAL_SIZE));
+        }
+    }
+
+    @Test(expected = IOException.class)
+    public void testCompressedFlagIsRejectedFromClient() throws Exception {
+        byte[] header = ByteBuffer.allocate(8).putInt(4 | FrameCompression.COMPRESSED_FLAG).array();
+        FrameDecoder decoder = new FrameDecoder(1024, false, pool);
+        decoder.readFrom(new ByteArrayInputStream(header));
+
+        decoder.next();
+    }
+
+    @Test
+    public void testCompressedFlagFromServer() throws Exception {
+        byte[] header = ByteBuffer.allocate(8).putInt(4 | FrameCompression.COMPRESSED_FLAG).array();
+        FrameDecoder decoder = new FrameDecoder(1024, true, pool);
+        decoder.readFrom(new ByteArrayInputStream(header));
+
+        assertTrue(decoder.next());
+        assertTrue(decoder.isFrameCompressed());
+        assertThat(decoder.frameLength(), is(4));
+    }
+
+    @Test
+    public void testLargeFrameFromChannel() throws Exception {
+        StringBuilder text = new StringBuilder();
+        for (int i = 0; i < 30000; i++) {
+            text.append('x');
+        }
+        FrameDecoder decoder = new FrameDecoder(64 * 1024, false, pool);
+        ReadableByteChannel channel =
+                Channels.newChannel(new ByteArrayInputStream(frames(text.toString(), "after")));
+
+        assertThat(readMessage(decoder, channel), is(text.toString()));
+        assertTrue(decoder.array().length >= 30000);
+        assertThat(readMessage(decoder, channel), is("after"));
+        //большой буфер после разбора возвращается в пул, а декодер снова работает с обычным
+        assertThat(decoder.readFrom(channel), is(-1));
+        assertThat(decoder.array().length, is(FrameDecoder.INITIAL_SIZE));
+    }
+
+    @Test
+    public void testRelease() throws Exception {
+        FrameDecoder decoder = new FrameDecoder(1024, false, pool);
+
+        decoder.release();
+
+        assertThat(pool.getPooledBytes(), is((long) FrameDecoder.INITIAL_SIZE));
+        assertThat(decoder.readFrom(new ByteArrayInputStream(frames("a"))), is(-1));
+    }
+
+    private String readMessage(FrameDecoder decoder, InputStream in) throws IOException {
+        while (!decoder.next()) {
+            assertTrue("Stream is over", decoder.readFrom(in) >= 0);
+        }
+        return decode(decoder);
+    }
+
+    private String readMessage(FrameDecoder decoder, ReadableByteChannel channel) throws IOException {
+        while (!decoder.next()) {
+            assertTrue("Channel is over", decoder.readFrom(channel) >= 0);
+        }
+        return decode(decoder);
+    }
+
+    private String decode(FrameDecoder decoder) throws IOException {
+        return codec.decode(decoder.array(), decoder.frameOffset(), decoder.frameLength()).getMessage();
+    }
+
+    private byte[] frames(String... texts) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        for (String text : texts) {
+            byte[] payload = codec.encode(new Message(text, "user"));
+            out.write(ByteBuffer.allocate(4).putInt(payload.length).array());
+            out.write(payload);
+        }
+        return out.toByteArray();
+    }
+}